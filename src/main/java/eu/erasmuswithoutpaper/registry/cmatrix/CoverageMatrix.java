@@ -0,0 +1,101 @@
+package eu.erasmuswithoutpaper.registry.cmatrix;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.erasmuswithoutpaper.registry.common.HeiSearchIndex;
+import eu.erasmuswithoutpaper.registryclient.HeiEntry;
+import eu.erasmuswithoutpaper.registryclient.RegistryClient;
+
+/**
+ * HEI/API coverage matrix of a single catalogue version (see
+ * {@link CoverageMatrixGenerator#generate(RegistryClient)}).
+ *
+ * <p>
+ * All the rows are rendered when the matrix is generated. Filtered views are assembled from these
+ * pre-rendered rows (only the row numbers are rendered again), so they don't need to query the
+ * {@link RegistryClient}. Instances are immutable (and thread-safe).
+ * </p>
+ */
+public class CoverageMatrix {
+
+  private final HeiSearchIndex index;
+  private final Map<HeiEntry, Integer> positions;
+  private final List<String> renderedCells;
+  private final List<String> renderedFootnotes;
+  private final String fullHtml;
+
+  CoverageMatrix(List<HeiEntry> heis, RegistryClient client) {
+    this.index = new HeiSearchIndex(heis);
+    List<HeiEntry> sorted = this.index.getAllHeis();
+    this.positions = new IdentityHashMap<>(sorted.size());
+    this.renderedCells = new ArrayList<>(sorted.size());
+    this.renderedFootnotes = new ArrayList<>(sorted.size());
+    for (HeiEntry hei : sorted) {
+      CoverageMatrixRow row = new CoverageMatrixRow(hei, client);
+      StringBuilder sb = new StringBuilder();
+      row.generateHtmlCells(sb);
+      this.renderedCells.add(sb.toString());
+      sb.setLength(0);
+      row.getOtherApisCell().renderHtmlFootnote(sb);
+      this.renderedFootnotes.add(sb.toString());
+      this.positions.put(hei, this.positions.size());
+    }
+    this.fullHtml = this.render(sorted);
+  }
+
+  /**
+   * @return Approximate memory taken by the matrix (in bytes), not including the HEIs themselves.
+   */
+  public long getApproximateSize() {
+    long size = this.index.getApproximateSize() + 2L * this.fullHtml.length();
+    for (int i = 0; i < this.renderedCells.size(); i++) {
+      size += 2L * (this.renderedCells.get(i).length() + this.renderedFootnotes.get(i).length());
+    }
+    return size;
+  }
+
+  /**
+   * @return Number of HEIs (rows) in the matrix.
+   */
+  public int getHeiCount() {
+    return this.renderedCells.size();
+  }
+
+  /**
+   * Get the HTML table with the matrix.
+   *
+   * @param heiFilter An optional pattern (see
+   *        {@link eu.erasmuswithoutpaper.registry.common.Utils#getHeiFilterPredicate(String)}),
+   *        which should be used to filter HEIs. If null, then all HEIs are included.
+   * @return HTML string with the report.
+   */
+  public String toHtmlTable(String heiFilter) {
+    if (heiFilter == null) {
+      return this.fullHtml;
+    }
+    return this.render(this.index.search(heiFilter));
+  }
+
+  private String render(List<HeiEntry> heis) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<div class='ewpst'>");
+    sb.append("<table class='ewpst__table'>");
+    for (int i = 0; i < heis.size(); i++) {
+      int position = this.positions.get(heis.get(i));
+      CoverageMatrixRow.generateHtmlRow(sb, i + 1, this.renderedCells.get(position));
+    }
+    // Header moved after table body to work around sticky-opacity bug in browsers
+    sb.append(CoverageMatrixRow.generateTableHeader());
+    sb.append("</table>");
+    sb.append("<div class='ewpst__footnotes'>");
+    for (HeiEntry hei : heis) {
+      sb.append(this.renderedFootnotes.get(this.positions.get(hei)));
+    }
+    sb.append("</div>");
+    sb.append("</div>");
+    return sb.toString();
+  }
+}
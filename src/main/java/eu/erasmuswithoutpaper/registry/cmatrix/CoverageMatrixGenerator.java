@@ -6,9 +6,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.stream.Collectors;
 
-import eu.erasmuswithoutpaper.registry.common.Utils;
 import eu.erasmuswithoutpaper.registryclient.ApiSearchConditions;
 import eu.erasmuswithoutpaper.registryclient.HeiEntry;
 import eu.erasmuswithoutpaper.registryclient.RegistryClient;
@@ -46,42 +44,19 @@ public class CoverageMatrixGenerator {
   }
 
   /**
-   * Given an initialized {@link RegistryClient}, generate HTML report describing the HEI/API
-   * coverage.
+   * Given an initialized {@link RegistryClient}, generate the HEI/API coverage matrix.
    *
-   * @param client    The client to fetch HEI/API data from.
-   * @param heiFilter An optional pattern that should be used to filter HEIs
-   * @return HTML string with the report.
+   * <p>
+   * This is an expensive operation (it queries the client for the APIs of every HEI), so the
+   * result should be reused for as long as the catalogue doesn't change (see
+   * {@link CoverageMatrixProvider}).
+   * </p>
+   *
+   * @param client The client to fetch HEI/API data from.
+   * @return The matrix, ready to be rendered.
    */
-  public String generateToHtmlTable(RegistryClient client, String heiFilter) {
-    List<HeiEntry> heis = this.extractInterestingHeis(client);
-    if (heiFilter != null) {
-      heis =
-          heis.stream().filter(Utils.getHeiFilterPredicate(heiFilter)).collect(Collectors.toList());
-    }
-
-    List<CoverageMatrixRow> rows = new ArrayList<>();
-    for (int i = 0; i < heis.size(); i++) {
-      HeiEntry hei = heis.get(i);
-      rows.add(new CoverageMatrixRow(hei, client, i + 1));
-    }
-    StringBuilder sb = new StringBuilder();
-    sb.append("<div class='ewpst'>");
-    sb.append("<table class='ewpst__table'>");
-    for (CoverageMatrixRow row : rows) {
-      row.generateHtmlRow(sb);
-    }
-    // Header moved after table body to work around sticky-opacity bug in browsers
-    sb.append(CoverageMatrixRow.generateTableHeader());
-    sb.append("</table>");
-    sb.append("<div class='ewpst__footnotes'>");
-    for (CoverageMatrixRow row : rows) {
-      OtherApisCell cell = row.getOtherApisCell();
-      cell.renderHtmlFootnote(sb);
-    }
-    sb.append("</div>");
-    sb.append("</div>");
-    return sb.toString();
+  public CoverageMatrix generate(RegistryClient client) {
+    return new CoverageMatrix(this.extractInterestingHeis(client), client);
   }
 
   private List<HeiEntry> extractInterestingHeis(RegistryClient client) {
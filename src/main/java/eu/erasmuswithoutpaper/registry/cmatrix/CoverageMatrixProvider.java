@@ -0,0 +1,63 @@
+package eu.erasmuswithoutpaper.registry.cmatrix;
+
+import eu.erasmuswithoutpaper.registry.repository.CatalogueDependantCache;
+import eu.erasmuswithoutpaper.registry.repository.CatalogueDependantCache.CacheKey;
+import eu.erasmuswithoutpaper.registryclient.RegistryClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Service;
+
+/**
+ * Keeps the {@link CoverageMatrix} of the current catalogue in the {@link CatalogueDependantCache}.
+ *
+ * <p>
+ * Once the matrix has been generated, it is regenerated in the background right after each
+ * catalogue change, and the previous one is served until then. Only a single matrix is being
+ * generated at a time.
+ * </p>
+ */
+@Service
+@ConditionalOnWebApplication
+public class CoverageMatrixProvider {
+
+  private static final CacheKey<CoverageMatrix> MATRIX = CacheKey
+      .create("coverage-matrix", CoverageMatrix.class, CoverageMatrix::getApproximateSize)
+      .refreshingAhead();
+
+  private final CoverageMatrixGenerator generator;
+  private final RegistryClient client;
+  private final CatalogueDependantCache catcache;
+
+  /**
+   * @param generator needed to generate the matrix.
+   * @param client needed to feed the {@link CoverageMatrixGenerator}.
+   * @param catcache needed to cache the matrix.
+   */
+  @Autowired
+  public CoverageMatrixProvider(CoverageMatrixGenerator generator, RegistryClient client,
+      CatalogueDependantCache catcache) {
+    this.generator = generator;
+    this.client = client;
+    this.catcache = catcache;
+  }
+
+  /**
+   * @return The matrix (possibly waiting for it to be generated).
+   */
+  public CoverageMatrix getCoverageMatrix() {
+    return this.catcache.get(MATRIX, () -> this.generator.generate(this.client));
+  }
+
+  /**
+   * Get the HTML table with the matrix.
+   *
+   * @param heiFilter An optional pattern, which should be used to filter HEIs (see
+   *        {@link CoverageMatrix#toHtmlTable(String)}).
+   * @return HTML string with the report.
+   */
+  public String getCoverageMatrixHtml(String heiFilter) {
+    // Filtered views are cheap to slice from the matrix, so they are not cached (the patterns
+    // come from the users, and their views would compete with the matrix for the cache space).
+    return this.getCoverageMatrix().toHtmlTable(heiFilter);
+  }
+}
@@ -150,16 +150,15 @@ class CoverageMatrixRow {
   private final List<CoverageMatrixCell> cells;
   private final OtherApisCell otherApisCell;
 
-  CoverageMatrixRow(HeiEntry hei, RegistryClient client, int rowIndex) {
+  CoverageMatrixRow(HeiEntry hei, RegistryClient client) {
     this.cells = new ArrayList<>();
 
     CoverageMatrixCell cell;
 
-    /* Row index */
-
-    cell = new CoverageMatrixCell(NAME_COLOR_CLASS);
-    this.cells.add(cell);
-    cell.addContentLine(String.valueOf(rowIndex));
+    /*
+     * Row index is not stored here. It depends on the (possibly filtered) list of rows being
+     * rendered, see generateHtmlRow.
+     */
 
     /* Institution */
 
@@ -348,14 +347,21 @@ class CoverageMatrixRow {
     return ODD_COLOR_CLASS;
   }
 
-  void generateHtmlRow(StringBuilder sb) {
+  static void generateHtmlRow(StringBuilder sb, int rowIndex, String renderedCells) {
     sb.append("<tr>");
 
+    CoverageMatrixCell indexCell = new CoverageMatrixCell(NAME_COLOR_CLASS);
+    indexCell.addContentLine(String.valueOf(rowIndex));
+    indexCell.renderHtmlCell(sb);
+    sb.append(renderedCells);
+
+    sb.append("</tr>");
+  }
+
+  void generateHtmlCells(StringBuilder sb) {
     for (CoverageMatrixCell cell : this.cells) {
       cell.renderHtmlCell(sb);
     }
-
-    sb.append("</tr>");
   }
 
   OtherApisCell getOtherApisCell() {
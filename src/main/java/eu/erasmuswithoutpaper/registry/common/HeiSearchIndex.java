@@ -0,0 +1,243 @@
+package eu.erasmuswithoutpaper.registry.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import eu.erasmuswithoutpaper.registry.cmatrix.CoverageMatrixGenerator.HeiComparator;
+import eu.erasmuswithoutpaper.registryclient.HeiEntry;
+
+/**
+ * An immutable in-memory search index over a fixed set of HEIs.
+ *
+ * <p>
+ * It finds exactly the same HEIs as {@link Utils#getHeiFilterPredicate(String)} does, and returns
+ * them in the order defined by {@link HeiComparator} ("reversed domain"), but it doesn't need to
+ * scan (and lowercase) all the HEIs on every query. All the searchable values (SCHAC IDs, names,
+ * PIC and Erasmus codes) are lowercased once, when the index is built, and every substring of up
+ * to {@link #GRAM_LENGTH} characters is mapped to a sorted list of positions of the HEIs which
+ * contain it. A query intersects the lists of its n-grams, and then verifies only the remaining
+ * candidates.
+ * </p>
+ *
+ * <p>
+ * The index is bound to a single catalogue version, and it needs to be rebuilt whenever the
+ * catalogue changes (this is why it is kept in the
+ * {@link eu.erasmuswithoutpaper.registry.repository.CatalogueDependantCache}).
+ * </p>
+ */
+public class HeiSearchIndex {
+
+  private static final int GRAM_LENGTH = 3;
+  private static final int OBJECT_OVERHEAD = 64;
+  private static final String OTHER_ID_PIC = "pic";
+  private static final String OTHER_ID_ERASMUS = "erasmus";
+
+  private final List<HeiEntry> heis;
+  private final String[] ids;
+  private final String[] names;
+  private final String[][] otherIds;
+  private final Map<String, int[]> postings;
+  private final long approximateSize;
+
+  /**
+   * Build the index.
+   *
+   * @param heis All the HEIs which should be searchable.
+   */
+  public HeiSearchIndex(Collection<HeiEntry> heis) {
+    List<HeiEntry> sorted = new ArrayList<>(heis);
+    sorted.sort(new HeiComparator());
+    this.heis = Collections.unmodifiableList(sorted);
+    int count = sorted.size();
+    this.ids = new String[count];
+    this.names = new String[count];
+    this.otherIds = new String[count][];
+
+    Map<String, PostingBuilder> builders = new HashMap<>();
+    for (int pos = 0; pos < count; pos++) {
+      HeiEntry hei = sorted.get(pos);
+      this.ids[pos] = hei.getId().toLowerCase(Locale.ENGLISH);
+      this.names[pos] = hei.getName().toLowerCase(Locale.ENGLISH);
+      List<String> heiOtherIds = new ArrayList<>(hei.getOtherIds(OTHER_ID_PIC));
+      heiOtherIds.addAll(hei.getOtherIds(OTHER_ID_ERASMUS));
+      this.otherIds[pos] = new String[heiOtherIds.size()];
+      for (int idx = 0; idx < heiOtherIds.size(); idx++) {
+        this.otherIds[pos][idx] = heiOtherIds.get(idx).toLowerCase(Locale.ENGLISH);
+      }
+
+      addGrams(builders, this.ids[pos], pos);
+      addGrams(builders, this.names[pos], pos);
+      for (String otherId : this.otherIds[pos]) {
+        addGrams(builders, otherId, pos);
+      }
+    }
+
+    this.postings = new HashMap<>(builders.size() * 4 / 3 + 1);
+    long size = 0;
+    for (Map.Entry<String, PostingBuilder> entry : builders.entrySet()) {
+      int[] posting = entry.getValue().build();
+      this.postings.put(entry.getKey(), posting);
+      size += OBJECT_OVERHEAD + 2L * entry.getKey().length() + 4L * posting.length;
+    }
+    for (int pos = 0; pos < count; pos++) {
+      size += OBJECT_OVERHEAD + 2L * (this.ids[pos].length() + this.names[pos].length());
+      for (String otherId : this.otherIds[pos]) {
+        size += OBJECT_OVERHEAD + 2L * otherId.length();
+      }
+    }
+    this.approximateSize = size;
+  }
+
+  private static void addGrams(Map<String, PostingBuilder> builders, String value, int pos) {
+    for (int start = 0; start < value.length(); start++) {
+      int maxEnd = Math.min(start + GRAM_LENGTH, value.length());
+      for (int end = start + 1; end <= maxEnd; end++) {
+        builders.computeIfAbsent(value.substring(start, end), key -> new PostingBuilder())
+            .add(pos);
+      }
+    }
+  }
+
+  /**
+   * Intersect two sorted arrays. The first one is expected to be the shorter one, so we
+   * binary-search the second one, instead of scanning it.
+   */
+  private static int[] intersect(int[] shorter, int[] longer) {
+    int[] result = new int[shorter.length];
+    int size = 0;
+    int from = 0;
+    for (int value : shorter) {
+      int found = Arrays.binarySearch(longer, from, longer.length, value);
+      if (found >= 0) {
+        result[size++] = value;
+        from = found + 1;
+      } else {
+        from = -found - 1;
+      }
+      if (from >= longer.length) {
+        break;
+      }
+    }
+    return Arrays.copyOf(result, size);
+  }
+
+  /**
+   * @return All the indexed HEIs, in the "reversed domain" order.
+   */
+  public List<HeiEntry> getAllHeis() {
+    return this.heis;
+  }
+
+  /**
+   * @return Approximate memory taken by the index (in bytes), not including the HEIs themselves.
+   */
+  public long getApproximateSize() {
+    return this.approximateSize;
+  }
+
+  /**
+   * Find all HEIs matching the given pattern.
+   *
+   * @param pattern The pattern, as described in {@link Utils#getHeiFilterPredicate(String)}.
+   * @return The matching HEIs, in the "reversed domain" order.
+   */
+  public List<HeiEntry> search(String pattern) {
+    return this.search(pattern, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Find the first HEIs matching the given pattern.
+   *
+   * @param pattern The pattern, as described in {@link Utils#getHeiFilterPredicate(String)}.
+   * @param limit The maximum number of HEIs to be returned.
+   * @return The first (at most <code>limit</code>) matching HEIs, in the "reversed domain" order.
+   */
+  public List<HeiEntry> search(String pattern, int limit) {
+    if (limit <= 0) {
+      return Collections.emptyList();
+    }
+    if (pattern.isEmpty()) {
+      return this.heis.subList(0, Math.min(limit, this.heis.size()));
+    }
+    String needle = pattern.toLowerCase(Locale.ENGLISH);
+    List<HeiEntry> result = new ArrayList<>();
+    for (int pos : this.findCandidates(needle)) {
+      if (this.isMatching(pos, needle)) {
+        result.add(this.heis.get(pos));
+        if (result.size() >= limit) {
+          break;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return Sorted positions of all the HEIs which contain all the n-grams of the needle (this
+   *         is a superset of the HEIs which contain the needle itself).
+   */
+  private int[] findCandidates(String needle) {
+    if (needle.length() <= GRAM_LENGTH) {
+      return this.postings.getOrDefault(needle, PostingBuilder.EMPTY);
+    }
+    List<int[]> lists = new ArrayList<>(needle.length() - GRAM_LENGTH + 1);
+    for (int start = 0; start + GRAM_LENGTH <= needle.length(); start++) {
+      int[] posting = this.postings.get(needle.substring(start, start + GRAM_LENGTH));
+      if (posting == null) {
+        return PostingBuilder.EMPTY;
+      }
+      lists.add(posting);
+    }
+    lists.sort(Comparator.comparingInt(list -> list.length));
+    int[] result = lists.get(0);
+    for (int idx = 1; idx < lists.size() && result.length > 0; idx++) {
+      result = intersect(result, lists.get(idx));
+    }
+    return result;
+  }
+
+  private boolean isMatching(int pos, String needle) {
+    if (this.ids[pos].contains(needle) || this.names[pos].contains(needle)) {
+      return true;
+    }
+    for (String otherId : this.otherIds[pos]) {
+      if (otherId.startsWith(needle)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A growable, sorted and duplicate-free list of HEI positions.
+   */
+  private static class PostingBuilder {
+
+    static final int[] EMPTY = {};
+
+    private int[] items = new int[4];
+    private int size;
+
+    void add(int pos) {
+      // Positions are always added in ascending order, so duplicates are adjacent.
+      if (this.size > 0 && this.items[this.size - 1] == pos) {
+        return;
+      }
+      if (this.size == this.items.length) {
+        this.items = Arrays.copyOf(this.items, this.size * 2);
+      }
+      this.items[this.size++] = pos;
+    }
+
+    int[] build() {
+      return Arrays.copyOf(this.items, this.size);
+    }
+  }
+}
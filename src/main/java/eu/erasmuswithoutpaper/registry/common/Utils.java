@@ -23,6 +23,8 @@ import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
 
 import eu.erasmuswithoutpaper.registry.documentbuilder.KnownNamespace;
 import eu.erasmuswithoutpaper.registryclient.HeiEntry;
@@ -35,6 +37,8 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
 
 /**
  * A set of common static utility methods.
@@ -244,6 +248,45 @@ public class Utils {
     }
   }
 
+  /**
+   * Get a new, safely configured, namespace-aware {@link XMLInputFactory} (for StAX parsing). DTDs
+   * and external entities are not supported.
+   *
+   * @return an {@link XMLInputFactory} instance.
+   */
+  public static XMLInputFactory newSecureXmlInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    return factory;
+  }
+
+  /**
+   * Get a new, safely configured, namespace-aware {@link XMLReader}.
+   *
+   * <p>
+   * The reader is configured the same way as the ones used by {@link #newSecureDocumentBuilder()}
+   * (in particular, it doesn't allow DOCTYPE declarations).
+   * </p>
+   *
+   * @return an {@link XMLReader} instance.
+   */
+  public static XMLReader newSecureXmlReader() {
+    try {
+      SAXParserFactory spf = SAXParserFactory.newInstance();
+      spf.setNamespaceAware(true);
+      spf.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+      spf.setFeature("http://xml.org/sax/features/external-general-entities", false);
+      spf.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+      spf.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+      spf.setXIncludeAware(false);
+      return spf.newSAXParser().getXMLReader();
+    } catch (ParserConfigurationException | SAXException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   /**
    * Adds a proper suffix to a given integer, so that it can be used as an ordinal number.
    *
@@ -61,6 +61,10 @@ public class ProductionConfiguration {
    *     Email to be used when committing a Git change.
    * @param enablePushing
    *     whether to enable pushing Git changes to a remote repository or not.
+   * @param groupCommitWindowMillis
+   *     for how long to collect changes before committing them together (0 to disable).
+   * @param filteredManifestCacheBytes
+   *     how many bytes of filtered manifests to keep in memory (0 to disable).
    * @return {@link ManifestRepositoryImplProperties} instance.
    */
   @Autowired
@@ -68,12 +72,14 @@ public class ProductionConfiguration {
   public ManifestRepositoryImplProperties getRepoImplProperties(
       @Value("${app.repo.path}") String path, @Value("${app.instance-name}") String committerName,
       @Value("${app.reply-to-address}") String committerEmail,
-      @Value("${app.repo.enable-pushing}") boolean enablePushing) {
+      @Value("${app.repo.enable-pushing}") boolean enablePushing,
+      @Value("${app.repo.group-commit-window-millis}") long groupCommitWindowMillis,
+      @Value("${app.repo.filtered-manifest-cache-bytes}") long filteredManifestCacheBytes) {
     if (path.length() == 0) {
       throw new RuntimeException("Missing app.repo.path property");
     }
     return new ManifestRepositoryImplProperties(FileSystems.getDefault(), path, committerName,
-        committerEmail, enablePushing);
+        committerEmail, enablePushing, groupCommitWindowMillis, filteredManifestCacheBytes);
   }
 
   /**
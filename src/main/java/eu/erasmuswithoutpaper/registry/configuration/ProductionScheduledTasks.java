@@ -97,16 +97,19 @@ public class ProductionScheduledTasks {
   }
 
   /**
-   * Push all commits to the remote repository (if there are any to be pushed).
+   * Commit the group-committed changes whose group-commit window has elapsed, and push all commits
+   * to the remote repository (if there are any to be pushed).
    */
   @Scheduled(initialDelay = 0, fixedRate = 30 * SECOND)
   public void pushGitCommits() {
     try {
+      this.repo.flushGroupCommit();
       this.repo.push();
       this.logPushingStatus.setStatus(Severity.OK);
     } catch (ConfigurationException | TransportException e) {
       Sentry.captureException(e);
-      logger.error("Exception while pushing repository changes: " + e);
+      logger.error("Exception while pushing repository changes: " + e + " ("
+          + this.repo.getPushStatistics() + ")");
       this.logPushingStatus.setStatus(Severity.WARNING);
     } catch (RuntimeException e) {
       Sentry.captureException(e);
@@ -0,0 +1,76 @@
+package eu.erasmuswithoutpaper.registry.configuration;
+
+import java.util.List;
+
+import eu.erasmuswithoutpaper.registry.common.Severity;
+import eu.erasmuswithoutpaper.registry.notifier.NotifierFlag;
+import eu.erasmuswithoutpaper.registry.notifier.NotifierService;
+import eu.erasmuswithoutpaper.registry.repository.MaintenanceStatistics;
+import eu.erasmuswithoutpaper.registry.repository.ManifestRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import io.sentry.Sentry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically runs the housekeeping of the manifest repository (see
+ * {@link ManifestRepository#runMaintenance()}).
+ *
+ * <p>
+ * The repository gains new commits every few minutes, and without the housekeeping the loose
+ * objects would pile up, slowing down commits and pushes. The task should be scheduled for a
+ * low-traffic period (see the <code>app.repo.maintenance-cron</code> property).
+ * </p>
+ */
+@Profile({ "production", "development" })
+@Component
+@SuppressFBWarnings("SIC_INNER_SHOULD_BE_STATIC_ANON")
+@ConditionalOnWebApplication
+public class RepositoryMaintenanceTask {
+
+  private static final Logger logger = LoggerFactory.getLogger(RepositoryMaintenanceTask.class);
+
+  private final ManifestRepository repo;
+  private final NotifierFlag maintenanceStatus;
+
+  /**
+   * @param repo The repository to be maintained.
+   * @param notifier Needed to report maintenance failures.
+   * @param adminEmails Needed for the recipients of error-notification flags.
+   */
+  @Autowired
+  public RepositoryMaintenanceTask(ManifestRepository repo, NotifierService notifier,
+      @Value("${app.admin-emails}") List<String> adminEmails) {
+    this.repo = repo;
+    this.maintenanceStatus = new NotifierFlag(adminEmails) {
+      @Override
+      public String getName() {
+        return "Status of background repository maintenance service.";
+      }
+    };
+    notifier.addWatchedFlag(this.maintenanceStatus);
+  }
+
+  /**
+   * Run the git housekeeping (gc, repack with bitmaps), and log its results.
+   */
+  @Scheduled(cron = "${app.repo.maintenance-cron}")
+  public void runMaintenance() {
+    try {
+      MaintenanceStatistics stats = this.repo.runMaintenance();
+      logger.info("Repository maintenance finished: {}", stats);
+      this.maintenanceStatus.setStatus(Severity.OK);
+    } catch (RuntimeException e) {
+      Sentry.captureException(e);
+      logger.error("RuntimeException while running repository maintenance", e);
+      this.maintenanceStatus.setStatus(Severity.ERROR);
+    }
+  }
+}
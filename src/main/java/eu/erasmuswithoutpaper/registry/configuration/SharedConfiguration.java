@@ -2,11 +2,14 @@ package eu.erasmuswithoutpaper.registry.configuration;
 
 import java.util.List;
 
+import eu.erasmuswithoutpaper.registry.documentbuilder.EwpDocBuilder;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.convert.ConversionService;
 import org.springframework.core.convert.support.DefaultConversionService;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.core.task.TaskExecutor;
 import org.springframework.web.filter.ShallowEtagHeaderFilter;
 
 import jakarta.servlet.Filter;
@@ -29,6 +32,19 @@ public class SharedConfiguration {
     return new DefaultConversionService();
   }
 
+  /**
+   * Compiles the XML Schemas of {@link EwpDocBuilder} in the background. It's separate from the
+   * customTaskExecutor, so that the other tasks don't wait for the compilation.
+   *
+   * @return {@link SimpleAsyncTaskExecutor}
+   */
+  @Bean(name = "schemaCompilerExecutor")
+  public TaskExecutor schemaCompilerExecutor() {
+    SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("schema-compiler-");
+    executor.setDaemon(true);
+    return executor;
+  }
+
   /**
    * Adds "lazy" HTTP ETag support to all our responses.
    *
@@ -46,15 +46,15 @@ public class WebConfiguration {
 
       @Override
       public RegistryResponse fetchCatalogue(String etag) throws IOException {
-        String response;
+        byte[] response;
         try {
-          response = repo.getCatalogue();
+          response = repo.getCatalogueSnapshot().getBytes();
         } catch (CatalogueNotFound e) {
           // We want our local client to never throw UnacceptableStaleness errors.
-          response = "<catalogue xmlns=\"" + KnownNamespace.RESPONSE_REGISTRY_V1.getNamespaceUri()
-              + "\"><institutions/></catalogue>";
+          response = ("<catalogue xmlns=\"" + KnownNamespace.RESPONSE_REGISTRY_V1.getNamespaceUri()
+              + "\"><institutions/></catalogue>").getBytes(StandardCharsets.UTF_8);
         }
-        return new Http200RegistryResponse(response.getBytes(StandardCharsets.UTF_8), null, null);
+        return new Http200RegistryResponse(response, null, null);
       }
     });
     // Refresh will be called whenever catalogue is changed, so we don't need to worry
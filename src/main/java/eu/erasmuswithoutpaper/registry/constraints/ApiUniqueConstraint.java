@@ -23,6 +23,11 @@ public class ApiUniqueConstraint implements ManifestConstraint {
     this.registryRepoBaseUrl = registryRepoBaseUrl;
   }
 
+  @Override
+  public boolean dependsOnCatalogue() {
+    return true;
+  }
+
   @Override
   public List<FailedConstraintNotice> filter(Document document, RegistryClient registryClient) {
     List<FailedConstraintNotice> notices = new ArrayList<>();
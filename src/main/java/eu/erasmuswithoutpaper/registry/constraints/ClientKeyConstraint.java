@@ -20,6 +20,11 @@ public class ClientKeyConstraint extends AbstractRsaKeySecurityConstraint {
     super(minKeyLength);
   }
 
+  @Override
+  public boolean dependsOnCatalogue() {
+    return true;
+  }
+
   @Override
   protected FailedConstraintNotice verifyKey(RSAPublicKey publicKey, String keyNumber,
       String heiCovered, RegistryClient registryClient) {
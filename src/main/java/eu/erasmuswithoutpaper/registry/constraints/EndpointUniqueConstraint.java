@@ -32,6 +32,11 @@ public class EndpointUniqueConstraint implements ManifestConstraint {
     this.registryRepoBaseUrl = registryRepoBaseUrl;
   }
 
+  @Override
+  public boolean dependsOnCatalogue() {
+    return true;
+  }
+
   @Override
   public List<FailedConstraintNotice> filter(Document document, RegistryClient registryClient) {
     List<FailedConstraintNotice> notices = new ArrayList<>();
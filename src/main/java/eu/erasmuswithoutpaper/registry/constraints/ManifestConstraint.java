@@ -37,4 +37,20 @@ public interface ManifestConstraint {
    *         himself).
    */
   List<FailedConstraintNotice> filter(Document document, RegistryClient registryClient);
+
+  /**
+   * Tell whether the result of {@link #filter(Document, RegistryClient)} depends on the current
+   * state of the catalogue (e.g. because the constraint checks for conflicts with other manifests).
+   *
+   * <p>
+   * If it does, then the {@link RegistryClient} given to this constraint is a full client of a
+   * catalogue which reflects all the previously imported manifests, including those which haven't
+   * been included in the stored catalogue yet.
+   * </p>
+   *
+   * @return True, if this constraint reads the catalogue via the given {@link RegistryClient}.
+   */
+  default boolean dependsOnCatalogue() {
+    return false;
+  }
 }
@@ -8,7 +8,6 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -16,45 +15,51 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParserFactory;
-import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Validator;
+import javax.xml.validation.ValidatorHandler;
 
 import eu.erasmuswithoutpaper.registry.common.Utils;
 import eu.erasmuswithoutpaper.registry.xmlformatter.XmlFormatter;
+import org.springframework.beans.factory.SmartInitializingSingleton;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.ResourceLoader;
+import org.springframework.core.task.TaskExecutor;
 import org.springframework.stereotype.Service;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-import https.github_com.erasmus_without_paper.ewp_specs_api_discovery.tree.stable_v6.Manifest;
-import jakarta.xml.bind.JAXBContext;
-import jakarta.xml.bind.JAXBException;
-import jakarta.xml.bind.Unmarshaller;
-import jakarta.xml.bind.ValidationEvent;
-import jakarta.xml.bind.ValidationEventHandler;
 import org.apache.xerces.util.XMLCatalogResolver;
 import org.joox.Match;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.CharacterData;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
 import org.w3c.dom.ls.LSInput;
 import org.w3c.dom.ls.LSResourceResolver;
 import org.xml.sax.Attributes;
 import org.xml.sax.ErrorHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
 import org.xml.sax.SAXParseException;
 import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
 import org.xml.sax.helpers.XMLFilterImpl;
 
 /**
@@ -62,10 +67,22 @@ import org.xml.sax.helpers.XMLFilterImpl;
  */
 @Service
 @SuppressFBWarnings("SIC_INNER_SHOULD_BE_STATIC_ANON")
-public class EwpDocBuilder {
+public class EwpDocBuilder implements SmartInitializingSingleton {
+
+  /**
+   * Maximum number of idle parsers (and validators) of each kind kept for reuse.
+   */
+  private static final int POOL_CAPACITY = 32;
+  private static final String NAMESPACE_PREFIXES_FEATURE =
+      "http://xml.org/sax/features/namespace-prefixes";
+  private static final String LEXICAL_HANDLER_PROPERTY =
+      "http://xml.org/sax/properties/lexical-handler";
 
   private final XmlFormatter xmlFormatter;
-  private final Schema compoundSchema;
+  private final CompletableFuture<Schema> compoundSchema;
+  private final ResettablePool<DocumentBuilder> documentBuilders;
+  private final ResettablePool<Validator> validators;
+  private final ResettablePool<XMLReader> xmlReaders;
   private static final Logger logger = LoggerFactory.getLogger(EwpDocBuilder.class);
 
   /**
@@ -73,9 +90,17 @@ public class EwpDocBuilder {
    *     needed for loading XSDs from resources.
    * @param xmlFormatter
    *     needed for pretty-printing the validation results.
+   * @param compileInBackground
+   *     if true, then the XML Schemas will be compiled in the background, and the first
+   *     validation will wait for them. Otherwise, they are compiled before this constructor
+   *     returns.
+   * @param compilerExecutor
+   *     to compile the XML Schemas in the background (not used if compileInBackground is false).
    */
   @Autowired
-  public EwpDocBuilder(ResourceLoader resLoader, XmlFormatter xmlFormatter) {
+  public EwpDocBuilder(ResourceLoader resLoader, XmlFormatter xmlFormatter,
+      @Value("${app.schemas.compile-in-background}") boolean compileInBackground,
+      @Qualifier("schemaCompilerExecutor") TaskExecutor compilerExecutor) {
 
     this.xmlFormatter = xmlFormatter;
 
@@ -151,14 +176,63 @@ public class EwpDocBuilder {
       throw new RuntimeException(e);
     }
 
-    /* 5. Generate a compound schema. */
+    /*
+     * 5. Generate a compound schema. This takes a while (it's the most expensive part of the
+     * application's startup), so we may want to do it in the background.
+     */
 
-    try {
+    if (compileInBackground) {
+      this.compoundSchema = CompletableFuture
+          .supplyAsync(() -> compileSchema(schemaFactory, xsdSources), compilerExecutor)
+          .whenComplete((schema, e) -> {
+            if (e != null) {
+              logger.error("Could not compile the XML Schemas", e);
+            }
+          });
+    } else {
       this.compoundSchema =
-          schemaFactory.newSchema(xsdSources.toArray(new StreamSource[xsdSources.size()]));
+          CompletableFuture.completedFuture(compileSchema(schemaFactory, xsdSources));
+    }
+
+    /*
+     * 6. Prepare pools of reusable parsers and validators. Creating them (especially the secure
+     * ones, which need a new factory) is expensive, compared to validating a small document.
+     */
+
+    this.documentBuilders = new ResettablePool<>("DocumentBuilder", POOL_CAPACITY,
+        Utils::newSecureDocumentBuilder, DocumentBuilder::reset);
+    this.validators = new ResettablePool<>("Validator", POOL_CAPACITY,
+        () -> this.getCompoundSchema().newValidator(), Validator::reset);
+    this.xmlReaders = new ResettablePool<>("XMLReader", POOL_CAPACITY,
+        Utils::newSecureXmlReader, EwpDocBuilder::resetXmlReader);
+  }
+
+  private static Schema compileSchema(SchemaFactory schemaFactory,
+      List<StreamSource> xsdSources) {
+    long start = System.nanoTime();
+    Schema schema;
+    try {
+      schema = schemaFactory.newSchema(xsdSources.toArray(new StreamSource[xsdSources.size()]));
     } catch (SAXException e) {
       throw new RuntimeException(e);
     }
+    logger.info("Compiled {} XML Schemas in {} ms", xsdSources.size(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    return schema;
+  }
+
+  private static void resetXmlReader(XMLReader reader) {
+    // Make sure that the idle reader doesn't keep references to the previously built document.
+    reader.setContentHandler(null);
+    reader.setErrorHandler(null);
+    reader.setDTDHandler(null);
+    reader.setEntityResolver(null);
+    try {
+      reader.setFeature(NAMESPACE_PREFIXES_FEATURE, false);
+      reader.setProperty(LEXICAL_HANDLER_PROPERTY, null);
+    } catch (SAXNotRecognizedException | SAXNotSupportedException e) {
+      throw new RuntimeException(e);
+    }
   }
 
   /**
@@ -180,7 +254,7 @@ public class EwpDocBuilder {
     // We will need to load the document first. This is not required for validation, but it is
     // required for some validation result fields.
 
-    DocumentBuilder docBuilder = Utils.newSecureDocumentBuilder();
+    DocumentBuilder docBuilder = this.documentBuilders.borrow();
     Document doc;
     try {
       doc = docBuilder.parse(new ByteArrayInputStream(xml));
@@ -196,6 +270,8 @@ public class EwpDocBuilder {
       return new BuildResult(false, null, null, null, parseErrors, recovered, notSoPrettyLines);
     } catch (IOException e) {
       throw new RuntimeException(e);
+    } finally {
+      this.documentBuilders.release(docBuilder);
     }
 
     // Do we need pretty output?
@@ -207,9 +283,9 @@ public class EwpDocBuilder {
       prettyLines = Arrays.asList(prettyXml.split("\n"));
     }
 
-    // Validators are not thread-safe (hence, separate instance).
+    // Validators are not thread-safe (hence, separate instance for each caller).
 
-    Validator validator = this.compoundSchema.newValidator();
+    Validator validator = this.validators.borrow();
 
     // We will store all errors here.
 
@@ -238,6 +314,8 @@ public class EwpDocBuilder {
       validator.validate(new StreamSource(new ByteArrayInputStream(xml)));
     } catch (IOException | SAXException e) {
       throw new RuntimeException(e);
+    } finally {
+      this.validators.release(validator);
     }
 
     // Check if the root element matches requirements.
@@ -286,98 +364,283 @@ public class EwpDocBuilder {
 
     byte[] xml = input.getXml();
 
-    // We will need to load the document first. This checks if it is syntactically correct.
+    // Parse, build and validate the document in a single pass. The path recording filter needs to
+    // come first, so that it knows where the validator currently is when an error is reported.
+
+    DocumentBuilder docBuilder = this.documentBuilders.borrow();
+    Document newDocument = docBuilder.newDocument();
+    this.documentBuilders.release(docBuilder);
+    XMLReader xmlReader = this.xmlReaders.borrow();
+    RecordingXmlFilter xmlFilter = new RecordingXmlFilter(xmlReader);
+    DomBuildingXmlFilter domBuilder = new DomBuildingXmlFilter(xmlFilter, newDocument);
+    ValidatorHandler validatorHandler = this.getCompoundSchema().newValidatorHandler();
+    // Custom error handler handles validation errors inside api elements differently.
+    IgnoreApisErrorHandler errorHandler = new IgnoreApisErrorHandler(xmlFilter);
+    validatorHandler.setErrorHandler(errorHandler);
+    domBuilder.setContentHandler(validatorHandler);
 
-    DocumentBuilder docBuilder = Utils.newSecureDocumentBuilder();
-    Document doc;
-    Document docToModify;
     try {
-      doc = docBuilder.parse(new ByteArrayInputStream(xml));
-      docToModify = docBuilder.parse(new ByteArrayInputStream(xml));
+      domBuilder.setFeature(NAMESPACE_PREFIXES_FEATURE, true);
+      domBuilder.setProperty(LEXICAL_HANDLER_PROPERTY, domBuilder);
+      domBuilder.parse(new InputSource(new ByteArrayInputStream(xml)));
     } catch (SAXException e) {
+      // Validation errors don't interrupt parsing, so this is a syntax error.
       List<BuildError> parseErrors = new ArrayList<>();
       parseErrors.add(new BuildError(e.getMessage()));
       return new BuildResult(false, null, null, null, parseErrors);
     } catch (IOException e) {
       throw new RuntimeException(e);
+    } finally {
+      this.xmlReaders.release(xmlReader);
     }
 
+    Document doc = domBuilder.getDocument();
     String rootNamespaceUri = doc.getDocumentElement().getNamespaceURI();
     String rootLocalName = doc.getDocumentElement().getLocalName();
 
-    IgnoreApisValidationEventHandler eventHandler;
-    Unmarshaller unmarshaller;
-    SAXSource source;
-
-    try {
-      SAXParserFactory spf = SAXParserFactory.newInstance();
-      spf.setNamespaceAware(true);
-      XMLReader xmlReader = spf.newSAXParser().getXMLReader();
-
-      // We use custom XmlFilter to keep track of elements visited by JAXB unmarshaller.
-      RecordingXmlFilter xmlFilter = new RecordingXmlFilter(xmlReader);
-
-      // And custom event handler to handle validation errors inside api elements differently.
-      eventHandler = new IgnoreApisValidationEventHandler(xmlFilter);
-      source = new SAXSource(xmlFilter, new InputSource(new ByteArrayInputStream(xml)));
-
-      JAXBContext jc = JAXBContext.newInstance(Manifest.class);
-      unmarshaller = jc.createUnmarshaller();
-      unmarshaller.setSchema(this.compoundSchema);
-      unmarshaller.setEventHandler(eventHandler);
-    } catch (JAXBException | ParserConfigurationException | SAXException e) {
-      return new BuildResult(false, doc, rootNamespaceUri, rootLocalName,
-          Collections.singletonList(new BuildError("Internal error: " + e.getMessage())));
+    if (!errorHandler.errors.isEmpty()) {
+      return new BuildResult(false, doc, rootNamespaceUri, rootLocalName, errorHandler.errors);
     }
 
-    try {
-      // Ignoring the result of unmarshalling, we just care if it throws an exception what means
-      // that xml is invalid.
-      unmarshaller.unmarshal(source);
-    } catch (JAXBException e) {
-      return new BuildResult(false, doc, rootNamespaceUri, rootLocalName, eventHandler.errors);
-    }
+    // We passed the validation, any incorrect API entries are stored by errorHandler
 
-    // We passed the validation, any incorrect API entries are stored by eventHandler
-
-    // Remove all invalid APIs
-    for (RecordingXmlFilter.XmlPathWithUri xmlElementPath : eventHandler.invalidApis) {
-      Match match = xmlElementPath.selectFromDocument(docToModify);
+    // Find all invalid APIs first, so that the document stays intact if anything goes wrong.
+    List<Node> invalidApiNodes = new ArrayList<>();
+    for (RecordingXmlFilter.XmlPathWithUri xmlElementPath : errorHandler.invalidApis) {
+      Match match = xmlElementPath.selectFromDocument(doc);
       if (match.size() == 1) {
-        match.get(0).getParentNode().removeChild(match.get(0));
+        invalidApiNodes.add(match.get(0));
       } else {
         // This shouldn't happen, but if it does then just report that the manifest is invalid.
         logger.error("There was an unexpected failure during validation of manifest,"
             + " we have generated wrong selector that has selected != 1 api entries."
             + " Invalid selector:\n" + xmlElementPath.toString());
         return new BuildResult(false, doc, rootNamespaceUri, rootLocalName,
-            eventHandler.invalidApisErrors);
+            errorHandler.invalidApisErrors);
       }
     }
 
-    return new BuildResult(true, docToModify, rootNamespaceUri, rootLocalName,
-        eventHandler.invalidApisErrors);
+    // Remove all invalid APIs
+    for (Node node : invalidApiNodes) {
+      node.getParentNode().removeChild(node);
+    }
+
+    return new BuildResult(true, doc, rootNamespaceUri, rootLocalName,
+        errorHandler.invalidApisErrors);
+  }
+
+  /**
+   * Get the compound schema, waiting for it to be compiled if necessary.
+   *
+   * @return The {@link Schema} compiled from all our XSDs.
+   */
+  private Schema getCompoundSchema() {
+    try {
+      if (this.compoundSchema.isDone()) {
+        return this.compoundSchema.join();
+      }
+      long start = System.nanoTime();
+      Schema schema = this.compoundSchema.join();
+      logger.info("Waited {} ms for the XML Schemas to be compiled",
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      return schema;
+    } catch (CompletionException e) {
+      throw new IllegalStateException("The XML Schemas could not be compiled", e.getCause());
+    }
+  }
+
+  /**
+   * Wait for the XML Schemas to be compiled, so that the application fails to start if they
+   * cannot be compiled. The rest of the application context has been initialized in the meantime.
+   */
+  @Override
+  public void afterSingletonsInstantiated() {
+    this.getCompoundSchema();
+  }
+
+  /**
+   * @return True, if the XML Schemas have already been compiled (they may be compiled in the
+   *         background, see
+   *         {@link #EwpDocBuilder(ResourceLoader, XmlFormatter, boolean, TaskExecutor)}).
+   */
+  boolean isSchemaCompiled() {
+    return this.compoundSchema.isDone();
   }
 
-  private static final class IgnoreApisValidationEventHandler implements ValidationEventHandler {
+  /**
+   * Get the usage statistics of the internal pools of parsers and validators.
+   *
+   * <p>
+   * A growing number of misses means that new parsers are being created on the hot path, e.g.
+   * because there are more concurrent callers than the pools are able to keep.
+   * </p>
+   *
+   * @return A list of {@link ResettablePool.Statistics}, one for each pool.
+   */
+  public List<ResettablePool.Statistics> getPoolStatistics() {
+    return Arrays.asList(this.documentBuilders.getStatistics(), this.validators.getStatistics(),
+        this.xmlReaders.getStatistics());
+  }
+
+  private static final class IgnoreApisErrorHandler implements ErrorHandler {
     private final RecordingXmlFilter xmlFilter;
     private final List<BuildError> errors = new ArrayList<>();
     private final Set<RecordingXmlFilter.XmlPathWithUri> invalidApis = new HashSet<>();
     private final List<BuildError> invalidApisErrors = new ArrayList<>();
 
-    public IgnoreApisValidationEventHandler(RecordingXmlFilter xmlFilter) {
+    public IgnoreApisErrorHandler(RecordingXmlFilter xmlFilter) {
       this.xmlFilter = xmlFilter;
     }
 
     @Override
-    public boolean handleEvent(ValidationEvent validationEvent) {
+    public void warning(SAXParseException exception) {
+      // Ignore warnings.
+    }
+
+    @Override
+    public void error(SAXParseException exception) {
+      if (!errors.isEmpty()) {
+        // The document is already invalid. We only report the first error, but we still need to
+        // parse the rest of the document to check if it is syntactically correct.
+        return;
+      }
       if (xmlFilter.isCurrentlyInsideApi()) {
         invalidApis.add(xmlFilter.getApiPath());
-        invalidApisErrors.add(new BuildError(validationEvent));
-        return true; // ignore this error and continue validation
+        invalidApisErrors.add(new BuildError(exception));
+        return; // ignore this error and continue validation
       }
-      errors.add(new BuildError(validationEvent));
-      return false;
+      errors.add(new BuildError(exception));
+    }
+
+    @Override
+    public void fatalError(SAXParseException exception) {
+      this.error(exception);
+    }
+  }
+
+  /**
+   * Builds a DOM {@link Document} from the SAX events passing through it (the same one which
+   * {@link Utils#newSecureDocumentBuilder()} would build, i.e. without comments).
+   */
+  private static final class DomBuildingXmlFilter extends XMLFilterImpl implements LexicalHandler {
+    private final Document document;
+    private Node current;
+    private boolean insideCdata;
+
+    private DomBuildingXmlFilter(XMLReader parent, Document document) {
+      super(parent);
+      this.document = document;
+      this.current = document;
+    }
+
+    private Document getDocument() {
+      return this.document;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qualifiedName,
+        Attributes attributes) throws SAXException {
+      Element element = this.document.createElementNS(emptyToNull(uri), qualifiedName);
+      AttributesImpl nonNamespaceAttributes = null;
+      for (int i = 0; i < attributes.getLength(); i++) {
+        String name = attributes.getQName(i);
+        if (name.equals(XMLConstants.XMLNS_ATTRIBUTE)
+            || name.startsWith(XMLConstants.XMLNS_ATTRIBUTE + ":")) {
+          // Namespace declarations are reported as attributes (in the same order as the
+          // DocumentBuilder sees them), but we don't pass them further down the chain.
+          element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, name,
+              attributes.getValue(i));
+          if (nonNamespaceAttributes == null) {
+            nonNamespaceAttributes = new AttributesImpl(attributes);
+          }
+          nonNamespaceAttributes.removeAttribute(nonNamespaceAttributes.getIndex(name));
+        } else {
+          element.setAttributeNS(emptyToNull(attributes.getURI(i)), name,
+              attributes.getValue(i));
+        }
+      }
+      this.current.appendChild(element);
+      this.current = element;
+      super.startElement(uri, localName, qualifiedName,
+          nonNamespaceAttributes != null ? nonNamespaceAttributes : attributes);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qualifiedName)
+        throws SAXException {
+      this.current = this.current.getParentNode();
+      super.endElement(uri, localName, qualifiedName);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+      this.appendText(ch, start, length);
+      super.characters(ch, start, length);
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+      this.appendText(ch, start, length);
+      super.ignorableWhitespace(ch, start, length);
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws SAXException {
+      this.current.appendChild(this.document.createProcessingInstruction(target, data));
+      super.processingInstruction(target, data);
+    }
+
+    @Override
+    public void startCDATA() {
+      this.current.appendChild(this.document.createCDATASection(""));
+      this.insideCdata = true;
+    }
+
+    @Override
+    public void endCDATA() {
+      this.insideCdata = false;
+    }
+
+    @Override
+    public void comment(char[] ch, int start, int length) {
+      // Comments are ignored.
+    }
+
+    @Override
+    public void startDTD(String name, String publicId, String systemId) {
+      // DOCTYPE declarations are not allowed.
+    }
+
+    @Override
+    public void endDTD() {
+      // DOCTYPE declarations are not allowed.
+    }
+
+    @Override
+    public void startEntity(String name) {
+      // Entities are expanded.
+    }
+
+    @Override
+    public void endEntity(String name) {
+      // Entities are expanded.
+    }
+
+    private void appendText(char[] ch, int start, int length) {
+      String text = new String(ch, start, length);
+      Node last = this.current.getLastChild();
+      if (this.insideCdata) {
+        ((CharacterData) last).appendData(text);
+      } else if (last != null && last.getNodeType() == Node.TEXT_NODE) {
+        // The parser may split text into multiple chunks.
+        ((Text) last).appendData(text);
+      } else {
+        this.current.appendChild(this.document.createTextNode(text));
+      }
+    }
+
+    private static String emptyToNull(String uri) {
+      return uri == null || uri.isEmpty() ? null : uri;
     }
   }
 
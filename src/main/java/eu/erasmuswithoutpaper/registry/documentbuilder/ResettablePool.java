@@ -0,0 +1,127 @@
+package eu.erasmuswithoutpaper.registry.documentbuilder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A bounded pool of objects which are expensive to create, not thread-safe, but can be reset and
+ * reused (such as {@link javax.xml.parsers.DocumentBuilder}s and
+ * {@link javax.xml.validation.Validator}s).
+ *
+ * <p>
+ * The pool never blocks. If it's empty, then a new object is created. If it's full, then the
+ * released object is simply dropped.
+ * </p>
+ *
+ * @param <T> type of the pooled objects.
+ */
+public class ResettablePool<T> {
+
+  /**
+   * A snapshot of the usage counters of a {@link ResettablePool}.
+   */
+  public static class Statistics {
+
+    private final String name;
+    private final long hits;
+    private final long misses;
+
+    Statistics(String name, long hits, long misses) {
+      this.name = name;
+      this.hits = hits;
+      this.misses = misses;
+    }
+
+    /**
+     * @return Number of times an object was borrowed without creating a new one.
+     */
+    public long getHits() {
+      return this.hits;
+    }
+
+    /**
+     * @return Number of times a new object needed to be created, because the pool was empty.
+     */
+    public long getMisses() {
+      return this.misses;
+    }
+
+    /**
+     * @return Name of the pool.
+     */
+    public String getName() {
+      return this.name;
+    }
+
+    @Override
+    public String toString() {
+      return this.name + ": " + this.hits + " hits, " + this.misses + " misses";
+    }
+  }
+
+  private final String name;
+  private final BlockingQueue<T> idle;
+  private final Supplier<T> factory;
+  private final Consumer<T> resetter;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param name name of the pool (used in {@link Statistics}).
+   * @param capacity maximum number of idle objects kept in the pool.
+   * @param factory creates new objects, when the pool is empty.
+   * @param resetter brings the released object back to its initial state, before it is put back
+   *        into the pool. If it throws a {@link RuntimeException}, then the object is dropped.
+   */
+  public ResettablePool(String name, int capacity, Supplier<T> factory, Consumer<T> resetter) {
+    this.name = name;
+    this.idle = new ArrayBlockingQueue<>(capacity);
+    this.factory = factory;
+    this.resetter = resetter;
+  }
+
+  /**
+   * Take an object from the pool (or create a new one, if the pool is empty). The caller should
+   * {@link #release(Object)} it when done.
+   *
+   * @return An object which is not used by anyone else.
+   */
+  public T borrow() {
+    T object = this.idle.poll();
+    if (object != null) {
+      this.hits.incrementAndGet();
+      return object;
+    }
+    this.misses.incrementAndGet();
+    return this.factory.get();
+  }
+
+  /**
+   * @return A snapshot of the usage counters of this pool.
+   */
+  public Statistics getStatistics() {
+    return new Statistics(this.name, this.hits.get(), this.misses.get());
+  }
+
+  /**
+   * Reset the object and return it to the pool.
+   *
+   * @param object an object previously acquired with {@link #borrow()}. It must not be used by
+   *        the caller anymore.
+   */
+  public void release(T object) {
+    try {
+      this.resetter.accept(object);
+    } catch (RuntimeException e) {
+      // Don't reuse objects which we weren't able to reset.
+      return;
+    }
+    if (!this.idle.offer(object)) {
+      // The pool is full. Let the garbage collector take care of this one.
+      return;
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package eu.erasmuswithoutpaper.registry.internet;
+
+/**
+ * The contents fetched by {@link Internet#fetchUrl(String)}, along with the statistics of the
+ * transfer.
+ */
+public class FetchedUrl {
+
+  private final byte[] contents;
+  private final long bytesTransferred;
+  private final long transferMillis;
+
+  /**
+   * @param contents The (decompressed) contents of the URL.
+   * @param bytesTransferred The number of bytes actually received (before decompression).
+   * @param transferMillis The time it took to fetch the contents (in milliseconds).
+   */
+  public FetchedUrl(byte[] contents, long bytesTransferred, long transferMillis) {
+    this.contents = contents;
+    this.bytesTransferred = bytesTransferred;
+    this.transferMillis = transferMillis;
+  }
+
+  /**
+   * @return The number of bytes actually received (this is smaller than the size of the contents,
+   *         if the contents were compressed during the transfer).
+   */
+  public long getBytesTransferred() {
+    return this.bytesTransferred;
+  }
+
+  /**
+   * @return The (decompressed) contents of the URL, fully loaded to the memory.
+   */
+  public byte[] getContents() {
+    return this.contents;
+  }
+
+  /**
+   * @return The time it took to fetch the contents (in milliseconds).
+   */
+  public long getTransferMillis() {
+    return this.transferMillis;
+  }
+
+  @Override
+  public String toString() {
+    return this.contents.length + " bytes (" + this.bytesTransferred + " bytes transferred in "
+        + this.transferMillis + " ms)";
+  }
+}
@@ -27,6 +27,25 @@ public interface Internet {
    */
   byte[] getUrl(String url) throws IOException;
 
+  /**
+   * Same as {@link #getUrl(String)}, but also report how many bytes were transferred, and how long
+   * it took.
+   *
+   * <p>
+   * The default implementation simply measures the {@link #getUrl(String)} call (and assumes that
+   * the contents were not compressed).
+   * </p>
+   *
+   * @param url The URL at which the contents can be found.
+   * @return The contents of the URL, along with the statistics of the transfer.
+   * @throws IOException See {@link #getUrl(String)}.
+   */
+  default FetchedUrl fetchUrl(String url) throws IOException {
+    long start = System.nanoTime();
+    byte[] contents = this.getUrl(url);
+    return new FetchedUrl(contents, contents.length, (System.nanoTime() - start) / 1_000_000);
+  }
+
   /**
    * Make an "advanced" request at the given URL. This method allows you to send and retrieve much
    * more data that the {@link #getUrl(String)} method does.
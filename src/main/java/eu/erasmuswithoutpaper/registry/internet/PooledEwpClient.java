@@ -0,0 +1,227 @@
+package eu.erasmuswithoutpaper.registry.internet;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.ssl.SSLConnectionSocketFactoryBuilder;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.ssl.SSLContexts;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+
+/**
+ * A pooled HTTP client for making requests to EWP Network endpoints with a single (optional) TLS
+ * client certificate.
+ *
+ * <p>
+ * The {@link SSLContext} is prepared only once, and the connections are kept alive and reused by
+ * subsequent requests to the same host (so that we don't need to make a full TLS handshake for
+ * each of them). Instances are thread-safe, and they should be shut down (see {@link #shutdown()})
+ * when no longer needed.
+ * </p>
+ *
+ * <p>
+ * The client doesn't interpret the requests and responses any more than
+ * {@link java.net.HttpURLConnection} did (e.g. it doesn't decompress gzipped responses, retry
+ * failed requests, nor store cookies), because that's what the validators need to verify.
+ * </p>
+ */
+class PooledEwpClient {
+
+  private static final int MAX_CONNECTIONS = 100;
+  private static final int MAX_CONNECTIONS_PER_ROUTE = 20;
+  private static final Timeout DEFAULT_TIMEOUT = Timeout.ofSeconds(30);
+  private static final TimeValue VALIDATE_AFTER_INACTIVITY = TimeValue.ofSeconds(2);
+  private static final TimeValue MAX_IDLE_TIME = TimeValue.ofMinutes(1);
+  private static final String DEFAULT_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+  private static SSLContext prepareSslContext(X509Certificate cert, PrivateKey key) {
+    try {
+      /* Create an empty keystore (in JKS format). */
+
+      KeyStore keystore = KeyStore.getInstance("JKS");
+      keystore.load(null);
+
+      /* Import our TLS client certificate (and key) into the keystore. */
+
+      String keyPassword = "irrelevant";
+      keystore.setCertificateEntry("cert", cert);
+      keystore.setKeyEntry("key", key, keyPassword.toCharArray(), new Certificate[] { cert });
+
+      /* Create a new SSL key manager with our certificate and key. */
+
+      KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+      kmf.init(keystore, keyPassword.toCharArray());
+      KeyManager[] km = kmf.getKeyManagers();
+
+      /* Return an appropriate SSLContext initialized with out cert and key. */
+
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(km, null, null);
+      return context;
+
+    } catch (KeyStoreException | NoSuchAlgorithmException | CertificateException | IOException
+        | UnrecoverableKeyException | KeyManagementException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static URI toUri(String url) throws MalformedURLException {
+    URL parsed = new URL(url);
+    if (!"https".equalsIgnoreCase(parsed.getProtocol())) {
+      throw new RuntimeException("Expecting HTTPS connection, got " + url + " instead.");
+    }
+    try {
+      return parsed.toURI();
+    } catch (URISyntaxException e) {
+      MalformedURLException error = new MalformedURLException(e.getMessage());
+      error.initCause(e);
+      throw error;
+    }
+  }
+
+  private final CloseableHttpClient httpClient;
+
+  /**
+   * Create a new client for the given TLS client certificate.
+   *
+   * @param cert The TLS client certificate to be used. If null, then no client certificate will be
+   *        used when making new connections.
+   * @param key The private key used to generate the certificate. If null, then no TLS client
+   *        certificate will be used when making new connections.
+   */
+  PooledEwpClient(X509Certificate cert, PrivateKey key) {
+    SSLContext sslContext;
+    if (cert != null && key != null) {
+      sslContext = prepareSslContext(cert, key);
+    } else {
+      sslContext = SSLContexts.createSystemDefault();
+    }
+    ConnectionConfig connectionConfig = ConnectionConfig.custom()
+        .setConnectTimeout(DEFAULT_TIMEOUT).setSocketTimeout(DEFAULT_TIMEOUT)
+        .setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY).build();
+    this.httpClient = HttpClients.custom()
+        .setConnectionManager(PoolingHttpClientConnectionManagerBuilder.create()
+            .setSSLSocketFactory(
+                SSLConnectionSocketFactoryBuilder.create().setSslContext(sslContext).build())
+            .setMaxConnTotal(MAX_CONNECTIONS).setMaxConnPerRoute(MAX_CONNECTIONS_PER_ROUTE)
+            .setDefaultConnectionConfig(connectionConfig).build())
+        // All connections of this pool use the same certificate, so they are interchangeable.
+        .disableConnectionState().disableContentCompression().disableAutomaticRetries()
+        .disableCookieManagement().evictExpiredConnections().evictIdleConnections(MAX_IDLE_TIME)
+        .build();
+  }
+
+  /**
+   * Close all the pooled connections. The client cannot be used afterwards.
+   */
+  void shutdown() {
+    this.httpClient.close(CloseMode.GRACEFUL);
+  }
+
+  /**
+   * Prepare the HTTP request to be made.
+   *
+   * @param request Description of the request. Its client certificate is ignored.
+   * @param timeout Optional response timeout (in milliseconds). If null, then the default one is
+   *        used.
+   * @return The request, ready to be executed.
+   * @throws MalformedURLException When the request's URL is invalid.
+   */
+  static HttpUriRequestBase toHttpRequest(Request request, Integer timeout)
+      throws MalformedURLException {
+    HttpUriRequestBase httpRequest =
+        new HttpUriRequestBase(request.getMethod(), toUri(request.getUrl()));
+    boolean hasContentType = false;
+    for (Map.Entry<String, String> entry : request.getHeaders().entrySet()) {
+      if (entry.getKey().equalsIgnoreCase("Content-Length")
+          || entry.getKey().equalsIgnoreCase("Transfer-Encoding")) {
+        // These are computed from the entity below.
+        continue;
+      }
+      hasContentType |= entry.getKey().equalsIgnoreCase("Content-Type");
+      httpRequest.addHeader(entry.getKey(), entry.getValue());
+    }
+    if (request.getBody().isPresent()) {
+      if (!hasContentType) {
+        // Same default as HttpURLConnection used.
+        httpRequest.addHeader("Content-Type", DEFAULT_CONTENT_TYPE);
+      }
+      httpRequest.setEntity(new ByteArrayEntity(request.getBody().get(), null));
+    } else if (request.getHeader("Content-Length") != null) {
+      // Keep the (possibly signed) "Content-Length: 0" header.
+      httpRequest.setEntity(new ByteArrayEntity(new byte[0], null));
+    }
+    if (timeout != null) {
+      httpRequest.setConfig(RequestConfig.custom()
+          .setConnectionRequestTimeout(Timeout.ofMilliseconds(timeout))
+          .setResponseTimeout(Timeout.ofMilliseconds(timeout)).build());
+    }
+    return httpRequest;
+  }
+
+  /**
+   * Read the HTTP response.
+   *
+   * @param response The response received from the server. It is not closed.
+   * @return Description of the response (repeated headers are joined with commas).
+   */
+  static Response toResponse(ClassicHttpResponse response) {
+    HeaderMap headers = new HeaderMap();
+    for (Header header : response.getHeaders()) {
+      headers.merge(header.getName(), header.getValue(), (first, next) -> first + ", " + next);
+    }
+    byte[] body;
+    HttpEntity entity = response.getEntity(); // NOPMD closed along with the response
+    try {
+      body = entity != null ? EntityUtils.toByteArray(entity) : new byte[0];
+    } catch (IOException e) {
+      body = new byte[0];
+    }
+    return new Response(response.getCode(), body, headers);
+  }
+
+  /**
+   * Make the request, and read the response.
+   *
+   * @param request Description of the request to be made. Its client certificate is ignored (the
+   *        one passed in the constructor is used instead).
+   * @param timeout Optional response timeout (in milliseconds). If null, then a default timeout of
+   *        30 seconds is used.
+   * @return Description of the response returned by the server.
+   * @throws IOException When the request is invalid, or the server could not be reached.
+   */
+  Response execute(Request request, Integer timeout) throws IOException {
+    HttpUriRequestBase httpRequest = toHttpRequest(request, timeout);
+    try (ClassicHttpResponse response = this.httpClient.executeOpen(null, httpRequest, null)) {
+      return toResponse(response);
+    }
+  }
+}
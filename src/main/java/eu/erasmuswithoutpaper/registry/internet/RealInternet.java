@@ -3,18 +3,22 @@ package eu.erasmuswithoutpaper.registry.internet;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import javax.net.ssl.HttpsURLConnection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
 
 import eu.erasmuswithoutpaper.registry.common.Severity;
 import eu.erasmuswithoutpaper.registry.notifier.NotifierFlag;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
@@ -26,10 +30,11 @@ import org.springframework.mail.javamail.JavaMailSender;
 import org.springframework.mail.javamail.MimeMessageHelper;
 import org.springframework.stereotype.Service;
 
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import jakarta.mail.MessagingException;
 import jakarta.mail.internet.MimeMessage;
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,20 +46,35 @@ import org.slf4j.LoggerFactory;
  * Note, that in "development" profile is set, then no emails will be actually sent (to prevent
  * accidentally spamming the users).
  * </p>
+ *
+ * <p>
+ * Requests are made with a {@link PooledEwpClient} per TLS client certificate, so that subsequent
+ * requests to the same host can reuse its keep-alive connections.
+ * </p>
  */
 @Service
 @Profile({ "production", "development", "console" })
 @SuppressFBWarnings("SIC_INNER_SHOULD_BE_STATIC_ANON")
-public class RealInternet implements Internet {
+public class RealInternet implements Internet, DisposableBean {
 
   private static final Logger logger = LoggerFactory.getLogger(RealInternet.class);
 
+  private static final int GZIP_BUFFER_SIZE = 8192;
+
+  /**
+   * The size of the chunks in which contents of an undeclared length are read.
+   */
+  private static final int CHUNK_SIZE = 64 * 1024;
+
   private final JavaMailSender mailSender;
   private final NotifierFlag emailSendingStatus;
   private final String replyToAddress;
   private final String replyToName;
   private final TaskExecutor taskExecutor;
   private final Environment env;
+  private final long maxUrlContentBytes;
+  private final PooledEwpClient anonymousClient;
+  private final Map<X509Certificate, PooledEwpClient> clients;
 
   private volatile Date lastEmailSendingError;
 
@@ -67,6 +87,8 @@ public class RealInternet implements Internet {
    *        asynchronously.
    * @param env needed to check which Spring profiles were activated (and prevent spamming users in
    *        production environments).
+   * @param maxUrlContentBytes The maximum size of the (decompressed) contents fetched by
+   *        {@link #getUrl(String)}. Larger contents are not fully downloaded.
    */
   @Autowired
   public RealInternet(Optional<JavaMailSender> mailSender,
@@ -74,13 +96,17 @@ public class RealInternet implements Internet {
       @Value("${app.instance-name}") String replyToName,
       @Value("${app.reply-to-address}") String replyToAddress,
       @Autowired(required = false) @Qualifier("customTaskExecutor") TaskExecutor taskExecutor,
-      Environment env) {
+      Environment env,
+      @Value("${app.manifest-fetch.max-bytes}") long maxUrlContentBytes) {
 
     this.mailSender = mailSender.orElse(null);
     this.replyToName = replyToName;
     this.replyToAddress = replyToAddress;
     this.taskExecutor = taskExecutor;
     this.env = env;
+    this.maxUrlContentBytes = Math.min(maxUrlContentBytes, Integer.MAX_VALUE - 8);
+    this.anonymousClient = new PooledEwpClient(null, null);
+    this.clients = new ConcurrentHashMap<>();
 
     this.emailSendingStatus = new NotifierFlag(adminEmails) {
       @Override
@@ -92,21 +118,30 @@ public class RealInternet implements Internet {
   }
 
   @Override
-  public byte[] getUrl(String urlString) throws IOException {
-    URL url = new URL(urlString);
-    InputStream is = null;
-    try {
-      URLConnection conn = url.openConnection();
-      conn.setConnectTimeout(10_000);
-      conn.setReadTimeout(10_000);
-      conn.setAllowUserInteraction(false);
-      is = conn.getInputStream();
-      return IOUtils.toByteArray(is);
-    } finally {
-      if (is != null) {
-        is.close();
-      }
+  public FetchedUrl fetchUrl(String urlString) throws IOException {
+    long start = System.nanoTime();
+    URLConnection conn = new URL(urlString).openConnection();
+    conn.setConnectTimeout(10_000);
+    conn.setReadTimeout(10_000);
+    conn.setAllowUserInteraction(false);
+    if (conn instanceof HttpURLConnection) {
+      conn.setRequestProperty("Accept-Encoding", "gzip");
+    }
+    boolean gzipped = "gzip".equalsIgnoreCase(conn.getContentEncoding());
+    long declaredLength = gzipped ? -1 : conn.getContentLengthLong();
+    if (declaredLength > this.maxUrlContentBytes) {
+      throw new IOException(this.describeSizeLimit(urlString));
     }
+    try (CountingInputStream raw = new CountingInputStream(conn.getInputStream());
+        InputStream is = gzipped ? new GZIPInputStream(raw, GZIP_BUFFER_SIZE) : raw) {
+      byte[] contents = this.readBounded(is, declaredLength, urlString);
+      return new FetchedUrl(contents, raw.getCount(), (System.nanoTime() - start) / 1_000_000);
+    }
+  }
+
+  @Override
+  public byte[] getUrl(String urlString) throws IOException {
+    return this.fetchUrl(urlString).getContents();
   }
 
   @Override
@@ -116,64 +151,22 @@ public class RealInternet implements Internet {
 
   @Override
   public Response makeRequest(Request request, Integer timeout) throws IOException {
-
-    /* Prepare and make the request. */
-
-    SimpleEwpClient client;
+    PooledEwpClient client;
     if (request.getClientCertificate().isPresent()) {
       // If certificate is present, then key-pair is also present.
-      client = new SimpleEwpClient(request.getClientCertificate().get(),
-          request.getClientCertificateKeyPair().get().getPrivate());
+      client = this.clients.computeIfAbsent(request.getClientCertificate().get(),
+          cert -> new PooledEwpClient(cert,
+              request.getClientCertificateKeyPair().get().getPrivate()));
     } else {
-      client = new SimpleEwpClient(null, null);
-    }
-    URL url = new URL(request.getUrl());
-    HttpsURLConnection conn = client.newConnection(url);
-    conn.setRequestMethod(request.getMethod());
-    for (Map.Entry<String, String> entry : request.getHeaders().entrySet()) {
-      conn.setRequestProperty(entry.getKey(), entry.getValue());
-    }
-    if (request.getBody().isPresent()) {
-      conn.setDoOutput(true);
-    }
-
-    if (timeout != null) {
-      conn.setConnectTimeout(timeout);
-      conn.setReadTimeout(timeout);
+      client = this.anonymousClient;
     }
+    return client.execute(request, timeout);
+  }
 
-    conn.connect();
-    if (request.getBody().isPresent()) {
-      conn.getOutputStream().write(request.getBody().get());
-    }
-
-    /* Retrieve all variables needed for the response. */
-
-    // Status
-    final int status = conn.getResponseCode();
-
-    // Headers
-    final Map<String, String> headers = this.convertCommas(conn.getHeaderFields());
-
-    // Body
-    byte[] body;
-    InputStream bodyStream = conn.getErrorStream(); // NOPMD used stream will be closed
-    try {
-      if (bodyStream == null) {
-        bodyStream = conn.getInputStream(); // NOPMD previous stream is null (closed)
-      }
-      body = IOUtils.toByteArray(bodyStream);
-    } catch (IOException e) {
-      body = new byte[0];
-    } finally {
-      if (bodyStream != null) {
-        bodyStream.close();
-      }
-    }
-
-    conn.disconnect();
-
-    return new Response(status, body, headers);
+  @Override
+  public void destroy() {
+    this.anonymousClient.shutdown();
+    this.clients.values().forEach(PooledEwpClient::shutdown);
   }
 
   @Override
@@ -190,12 +183,49 @@ public class RealInternet implements Internet {
     });
   }
 
-  private Map<String, String> convertCommas(Map<String, List<String>> headerFields) {
-    Map<String, String> result = new HashMap<>();
-    for (Map.Entry<String, List<String>> entry : headerFields.entrySet()) {
-      result.put(entry.getKey(), String.join(", ", entry.getValue()));
+  private String describeSizeLimit(String urlString) {
+    return "The contents of " + urlString + " exceed the limit of " + this.maxUrlContentBytes
+        + " bytes.";
+  }
+
+  /**
+   * Read the whole stream, but fail as soon as it exceeds {@link #maxUrlContentBytes} (in case of
+   * compressed streams, this limits the decompressed size).
+   *
+   * <p>
+   * If the length has been declared (and already checked against the limit), then the contents
+   * are read directly into an array of that size. Otherwise, they are read in fixed-size chunks,
+   * which are copied into an array of the exact size at the end.
+   * </p>
+   */
+  private byte[] readBounded(InputStream is, long declaredLength, String urlString)
+      throws IOException {
+    if (declaredLength >= 0) {
+      byte[] contents = new byte[(int) declaredLength];
+      ByteStreams.readFully(is, contents);
+      return contents;
+    }
+    List<byte[]> chunks = new ArrayList<>();
+    long total = 0;
+    int chunkLength = CHUNK_SIZE;
+    while (chunkLength == CHUNK_SIZE) {
+      byte[] chunk = new byte[CHUNK_SIZE];
+      chunkLength = ByteStreams.read(is, chunk, 0, CHUNK_SIZE);
+      total += chunkLength;
+      if (total > this.maxUrlContentBytes) {
+        throw new IOException(this.describeSizeLimit(urlString));
+      }
+      chunks.add(chunk);
+    }
+
+    byte[] contents = new byte[(int) total];
+    int offset = 0;
+    for (byte[] chunk : chunks) {
+      int length = Math.min(CHUNK_SIZE, contents.length - offset);
+      System.arraycopy(chunk, 0, contents, offset, length);
+      offset += length;
     }
-    return result;
+    return contents;
   }
 
   private void sendEmail(List<String> recipients, String subject, String contents) {
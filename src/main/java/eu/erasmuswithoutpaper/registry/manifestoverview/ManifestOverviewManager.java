@@ -135,6 +135,26 @@ public class ManifestOverviewManager {
     this.notifyAboutDuplicates();
   }
 
+  /**
+   * Updates {@link ManifestOverviewInfo} for a number of manifests at once, recalculating the
+   * aggregates only once.
+   *
+   * @param manifestUrls
+   *     URLs of manifests to update.
+   */
+  public void updateManifests(Collection<String> manifestUrls) {
+    this.writeLock.lock();
+    try {
+      for (String manifestUrl : manifestUrls) {
+        this.updateManifestWithoutRecalculatingAggregates(manifestUrl);
+      }
+      this.recalculateAggregates();
+    } finally {
+      this.writeLock.unlock();
+    }
+    this.notifyAboutDuplicates();
+  }
+
   private void updateManifestWithoutRecalculatingAggregates(String manifestUrl) {
     Optional<ManifestSource> source = this.sourceProvider.getOne(manifestUrl);
     if (!source.isPresent()) {
@@ -0,0 +1,112 @@
+package eu.erasmuswithoutpaper.registry.repository;
+
+/**
+ * A snapshot of the counters of a single {@link CatalogueDependantCache.CacheKey}.
+ */
+public class CatalogueCacheStatistics {
+
+  private final String name;
+  private final long entries;
+  private final long sizeBytes;
+  private final long hits;
+  private final long staleHits;
+  private final long misses;
+  private final long loads;
+  private final long failedLoads;
+  private final long totalLoadMillis;
+  private final long maxLoadMillis;
+
+  CatalogueCacheStatistics(String name, long entries, long sizeBytes, long hits, long staleHits,
+      long misses, long loads, long failedLoads, long totalLoadMillis, long maxLoadMillis) {
+    this.name = name;
+    this.entries = entries;
+    this.sizeBytes = sizeBytes;
+    this.hits = hits;
+    this.staleHits = staleHits;
+    this.misses = misses;
+    this.loads = loads;
+    this.failedLoads = failedLoads;
+    this.totalLoadMillis = totalLoadMillis;
+    this.maxLoadMillis = maxLoadMillis;
+  }
+
+  /**
+   * @return Number of values of this key currently kept in the cache (for all the catalogue
+   *         versions).
+   */
+  public long getEntries() {
+    return this.entries;
+  }
+
+  /**
+   * @return Number of loads which have thrown an exception.
+   */
+  public long getFailedLoads() {
+    return this.failedLoads;
+  }
+
+  /**
+   * @return Number of requests served with a value loaded for the current catalogue.
+   */
+  public long getHits() {
+    return this.hits;
+  }
+
+  /**
+   * @return Number of successful loads (including the ones made in the background).
+   */
+  public long getLoads() {
+    return this.loads;
+  }
+
+  /**
+   * @return The longest time (in milliseconds) a single load took.
+   */
+  public long getMaxLoadMillis() {
+    return this.maxLoadMillis;
+  }
+
+  /**
+   * @return Number of requests which needed to wait for the value to be loaded.
+   */
+  public long getMisses() {
+    return this.misses;
+  }
+
+  /**
+   * @return The name of the key.
+   */
+  public String getName() {
+    return this.name;
+  }
+
+  /**
+   * @return Approximate memory taken by the cached values of this key (in bytes).
+   */
+  public long getSizeBytes() {
+    return this.sizeBytes;
+  }
+
+  /**
+   * @return Number of requests served with a value loaded for the previous catalogue (while the
+   *         fresh one was being loaded in the background).
+   */
+  public long getStaleHits() {
+    return this.staleHits;
+  }
+
+  /**
+   * @return Total time (in milliseconds) spent in successful loads.
+   */
+  public long getTotalLoadMillis() {
+    return this.totalLoadMillis;
+  }
+
+  @Override
+  public String toString() {
+    return this.name + ": " + this.entries + " entries (" + this.sizeBytes + " bytes), "
+        + this.hits + " hits, " + this.staleHits + " stale hits, " + this.misses + " misses, "
+        + this.loads + " loads (" + this.totalLoadMillis + " ms total, max " + this.maxLoadMillis
+        + " ms), " + this.failedLoads + " failed loads";
+  }
+}
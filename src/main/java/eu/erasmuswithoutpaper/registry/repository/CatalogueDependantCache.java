@@ -1,41 +1,397 @@
 package eu.erasmuswithoutpaper.registry.repository;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
 import org.springframework.stereotype.Service;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
- * Terribly simple in-memory key-value cache, which is completely cleared whenever a new (and
- * <i>different</i>) catalogue is generated.
+ * In-memory cache of values which are dependent <b>solely</b> on the catalogue contents. E.g. the
+ * HEI search index, or the HEI/API coverage matrix.
+ *
+ * <p>
+ * Entries are keyed by the version of the catalogue (its ETag), by a typed {@link CacheKey}, and
+ * by an optional parameter (e.g. a search pattern). Every value is loaded only once per catalogue
+ * version (concurrent readers wait for the same load), and the total approximate size of the
+ * entries is bounded (least recently used entries are evicted first).
+ * </p>
  *
  * <p>
- * We can use this to keep cached values which are dependent <b>solely</b> on the catalogue
- * contents. E.g. the HTML contents of the API/HEI coverage matrix.
+ * When a new (and <i>different</i>) catalogue is generated, the entries of the previous version
+ * are not discarded right away. Until their fresh replacements are loaded (in the background), they
+ * are served to the readers as they are. Entries of all the older versions are dropped.
  * </p>
  */
 @Service
 public class CatalogueDependantCache {
 
-  private static final Integer KEY_CMATRIX_HTML = 1;
+  /**
+   * Identifies a single kind of cached values (and their type).
+   *
+   * <p>
+   * Keys are compared by identity, so they should be kept in constants.
+   * </p>
+   *
+   * @param <V> The type of the cached values.
+   */
+  public static final class CacheKey<V> {
+
+    private final String name;
+    private final Class<V> type;
+    private final ToLongFunction<? super V> weigher;
+    private final boolean refreshAhead;
+
+    private CacheKey(String name, Class<V> type, ToLongFunction<? super V> weigher,
+        boolean refreshAhead) {
+      this.name = name;
+      this.type = type;
+      this.weigher = weigher;
+      this.refreshAhead = refreshAhead;
+    }
+
+    /**
+     * Create a new key.
+     *
+     * @param name The name of the key (used in statistics and logs).
+     * @param type The type of the cached values.
+     * @param weigher Computes the approximate memory taken by a value (in bytes).
+     * @param <V> The type of the cached values.
+     * @return A new key.
+     */
+    public static <V> CacheKey<V> create(String name, Class<V> type,
+        ToLongFunction<? super V> weigher) {
+      return new CacheKey<>(name, type, weigher, false);
+    }
+
+    /**
+     * @return The name of this key.
+     */
+    public String getName() {
+      return this.name;
+    }
+
+    /**
+     * Create a new key, whose values (those which were cached when the catalogue has changed) are
+     * reloaded in the background right after every catalogue change, before anyone requests them.
+     * This is useful for values which take long to load.
+     *
+     * @return A new key.
+     */
+    public CacheKey<V> refreshingAhead() {
+      return new CacheKey<>(this.name, this.type, this.weigher, true);
+    }
+
+    @Override
+    public String toString() {
+      return this.name;
+    }
+  }
+
+  private static final class EntryKey {
+
+    private final String version;
+    private final CacheKey<?> key;
+    private final String param;
 
-  private final ConcurrentMap<Integer, Object> cache = new ConcurrentHashMap<>();
+    EntryKey(String version, CacheKey<?> key, String param) {
+      this.version = version;
+      this.key = key;
+      this.param = param;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof EntryKey)) {
+        return false;
+      }
+      EntryKey other = (EntryKey) obj;
+      return this.key == other.key && this.version.equals(other.version)
+          && this.param.equals(other.param);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(this.version, System.identityHashCode(this.key), this.param);
+    }
+
+    @Override
+    public String toString() {
+      return this.key + "(" + this.param + ")@" + this.version;
+    }
+  }
+
+  private static final class Entry {
+
+    private final Object value;
+    private final Supplier<?> loader;
+    private final int weight;
+
+    Entry(Object value, Supplier<?> loader, long weight) {
+      this.value = value;
+      this.loader = loader;
+      this.weight = (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+  }
+
+  private static final class Counters {
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder failedLoads = new LongAdder();
+    private final LongAdder totalLoadNanos = new LongAdder();
+    private final AtomicLong maxLoadNanos = new AtomicLong();
+  }
 
   /**
-   * @return Cached coverage matrix HTML.
+   * The current and the previous catalogue versions (replaced as a whole).
    */
-  public String getCoverageMatrixHtml() {
-    return (String) this.cache.get(KEY_CMATRIX_HTML);
+  private static final class Versions {
+
+    private final String current;
+    private final String previous;
+
+    Versions(String current, String previous) {
+      this.current = current;
+      this.previous = previous;
+    }
   }
 
+  private static final Logger logger = LoggerFactory.getLogger(CatalogueDependantCache.class);
+
   /**
-   * @param value New coverage matrix HTML.
+   * The version used before we are notified about the first catalogue change. (We don't need to
+   * know the actual version of the catalogue; we only need to know when it changes.)
    */
-  public void putCoverageMatrixHtml(String value) {
-    this.cache.put(KEY_CMATRIX_HTML, value);
+  private static final String INITIAL_VERSION = "initial";
+
+  private final Cache<EntryKey, Entry> cache;
+  private final long maxSizeBytes;
+  private final TaskExecutor taskExecutor;
+  private final ConcurrentMap<String, Counters> counters = new ConcurrentHashMap<>();
+  private final Set<EntryKey> refreshing = ConcurrentHashMap.newKeySet();
+  private volatile Versions versions = new Versions(INITIAL_VERSION, null);
+
+  /**
+   * @param maxSizeBytes The limit of the (approximate) memory taken by the cached values.
+   * @param taskExecutor to load fresh values in the background, while the stale ones are being
+   *        served. If null, stale values are never served.
+   */
+  @Autowired
+  public CatalogueDependantCache(@Value("${app.catalogue-cache-bytes}") long maxSizeBytes,
+      @Autowired(required = false) @Qualifier("customTaskExecutor") TaskExecutor taskExecutor) {
+    this.maxSizeBytes = maxSizeBytes;
+    this.taskExecutor = taskExecutor;
+    // A single segment, because Guava splits the weight limit between the segments, and we keep
+    // only a few (but large) values.
+    this.cache = CacheBuilder.newBuilder().concurrencyLevel(1).maximumWeight(maxSizeBytes)
+        .weigher((EntryKey key, Entry entry) -> entry.weight).build();
+  }
+
+  /**
+   * Same as {@link #get(CacheKey, String, Supplier)}, but for values which don't need a parameter.
+   *
+   * @param key The kind of the value.
+   * @param loader Computes the value (from the current catalogue), if it's not cached.
+   * @param <V> The type of the value.
+   * @return The cached (or freshly loaded) value.
+   */
+  public <V> V get(CacheKey<V> key, Supplier<V> loader) {
+    return this.get(key, "", loader);
+  }
+
+  /**
+   * Get the value for the current catalogue, loading it if necessary.
+   *
+   * <p>
+   * If the value hasn't been loaded yet for the current catalogue, but it's still cached for the
+   * previous one, then the previous value is returned, and the fresh one is loaded in the
+   * background.
+   * </p>
+   *
+   * @param key The kind of the value.
+   * @param param Distinguishes the values of the same kind (e.g. a search pattern).
+   * @param loader Computes the value (from the current catalogue), if it's not cached. It must not
+   *        return null. Any exceptions it throws are passed to the caller (and nothing is cached).
+   * @param <V> The type of the value.
+   * @return The cached (or freshly loaded) value.
+   */
+  public <V> V get(CacheKey<V> key, String param, Supplier<V> loader) {
+    Counters keyCounters = this.getCounters(key);
+    Versions current = this.versions;
+    EntryKey entryKey = new EntryKey(current.current, key, param);
+    Entry entry = this.cache.getIfPresent(entryKey);
+    if (entry != null) {
+      keyCounters.hits.increment();
+      return key.type.cast(entry.value);
+    }
+    if (current.previous != null && this.taskExecutor != null) {
+      Entry stale = this.cache.getIfPresent(new EntryKey(current.previous, key, param));
+      if (stale != null) {
+        keyCounters.staleHits.increment();
+        this.refreshInBackground(entryKey, loader);
+        // The executor might have been synchronous.
+        Entry fresh = this.cache.getIfPresent(entryKey);
+        return key.type.cast(fresh != null ? fresh.value : stale.value);
+      }
+    }
+    keyCounters.misses.increment();
+    return key.type.cast(this.load(entryKey, loader).value);
+  }
+
+  /**
+   * @return The limit of the (approximate) memory taken by the cached values.
+   */
+  public long getMaxSizeBytes() {
+    return this.maxSizeBytes;
+  }
+
+  /**
+   * @return A snapshot of the statistics of all the keys used so far, sorted by their names.
+   */
+  public List<CatalogueCacheStatistics> getStatistics() {
+    Map<String, long[]> sizes = new HashMap<>();
+    for (Map.Entry<EntryKey, Entry> item : this.cache.asMap().entrySet()) {
+      long[] size = sizes.computeIfAbsent(item.getKey().key.name, name -> new long[2]);
+      size[0]++;
+      size[1] += item.getValue().weight;
+    }
+    List<CatalogueCacheStatistics> result = new ArrayList<>();
+    for (Map.Entry<String, Counters> item : this.counters.entrySet()) {
+      Counters keyCounters = item.getValue();
+      long[] size = sizes.getOrDefault(item.getKey(), new long[2]);
+      result.add(new CatalogueCacheStatistics(item.getKey(), size[0], size[1],
+          keyCounters.hits.sum(), keyCounters.staleHits.sum(), keyCounters.misses.sum(),
+          keyCounters.loads.sum(), keyCounters.failedLoads.sum(),
+          keyCounters.totalLoadNanos.sum() / 1_000_000,
+          keyCounters.maxLoadNanos.get() / 1_000_000));
+    }
+    result.sort(Comparator.comparing(CatalogueCacheStatistics::getName));
+    return result;
+  }
+
+  /**
+   * Called whenever the catalogue changes.
+   *
+   * <p>
+   * This is called by the thread which has changed the catalogue (and which usually holds the
+   * repository lock), so all the reloading is left to the task executor.
+   * </p>
+   *
+   * @param version The version (ETag) of the new catalogue.
+   */
+  void onCatalogueChanged(String version) {
+    List<Map.Entry<EntryKey, Entry>> toRefresh = new ArrayList<>();
+    synchronized (this) {
+      String previous = this.versions.current;
+      if (previous.equals(version)) {
+        return;
+      }
+      this.versions = new Versions(version, previous);
+      this.cache.asMap().keySet()
+          .removeIf(key -> !key.version.equals(version) && !key.version.equals(previous));
+      for (Map.Entry<EntryKey, Entry> item : this.cache.asMap().entrySet()) {
+        if (item.getKey().key.refreshAhead && item.getKey().version.equals(previous)) {
+          toRefresh.add(item);
+        }
+      }
+    }
+    if (this.taskExecutor == null) {
+      return;
+    }
+    for (Map.Entry<EntryKey, Entry> item : toRefresh) {
+      EntryKey stale = item.getKey();
+      this.refreshInBackground(new EntryKey(version, stale.key, stale.param),
+          item.getValue().loader);
+    }
+  }
+
+  private Entry compute(EntryKey entryKey, Supplier<?> loader) {
+    Counters keyCounters = this.getCounters(entryKey.key);
+    long start = System.nanoTime();
+    Object value;
+    try {
+      value = loader.get();
+    } catch (RuntimeException e) {
+      keyCounters.failedLoads.increment();
+      throw e;
+    }
+    long took = System.nanoTime() - start;
+    keyCounters.loads.increment();
+    keyCounters.totalLoadNanos.add(took);
+    keyCounters.maxLoadNanos.accumulateAndGet(took, Math::max);
+    @SuppressWarnings("unchecked")
+    ToLongFunction<Object> weigher = (ToLongFunction<Object>) entryKey.key.weigher;
+    return new Entry(entryKey.key.type.cast(value), loader, weigher.applyAsLong(value));
+  }
+
+  private Counters getCounters(CacheKey<?> key) {
+    return this.counters.computeIfAbsent(key.name, name -> new Counters());
+  }
+
+  private Entry load(EntryKey entryKey, Supplier<?> loader) {
+    try {
+      return this.cache.get(entryKey, () -> this.compute(entryKey, loader));
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new RuntimeException(cause);
+    } catch (ExecutionError e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw e;
+    }
   }
 
-  synchronized void clear() {
-    this.cache.clear();
+  private void refreshInBackground(EntryKey entryKey, Supplier<?> loader) {
+    if (!this.refreshing.add(entryKey)) {
+      // Already being refreshed.
+      return;
+    }
+    try {
+      this.taskExecutor.execute(() -> {
+        try {
+          this.load(entryKey, loader);
+        } catch (RuntimeException e) {
+          logger.error("Could not refresh " + entryKey, e);
+        } finally {
+          this.refreshing.remove(entryKey);
+        }
+      });
+    } catch (RuntimeException e) {
+      this.refreshing.remove(entryKey);
+      throw e;
+    }
   }
 }
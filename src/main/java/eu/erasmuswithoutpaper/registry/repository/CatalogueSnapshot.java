@@ -0,0 +1,88 @@
+package eu.erasmuswithoutpaper.registry.repository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * An immutable, ready-to-serve copy of a single version of the catalogue.
+ *
+ * <p>
+ * The catalogue is polled by every EWP node, so all the per-response work (encoding, compressing
+ * and computing the ETag) is done only once, when a new version of the catalogue is stored. The
+ * byte arrays returned by the getters MUST NOT be modified.
+ * </p>
+ */
+public class CatalogueSnapshot {
+
+  private final String content;
+  private final byte[] raw;
+  private final byte[] gzipped;
+  private final String etag;
+  private final long lastModified;
+
+  CatalogueSnapshot(String content, long lastModified) {
+    this.content = content;
+    this.raw = content.getBytes(StandardCharsets.UTF_8);
+    this.gzipped = gzip(this.raw);
+    this.etag = "\"" + DigestUtils.sha256Hex(this.raw) + "\"";
+    this.lastModified = lastModified;
+  }
+
+  /**
+   * @return The catalogue contents, encoded in UTF-8.
+   */
+  public byte[] getBytes() {
+    return this.raw;
+  }
+
+  /**
+   * @return The catalogue contents.
+   */
+  public String getContent() {
+    return this.content;
+  }
+
+  /**
+   * @return A strong ETag (including the quotes) of the uncompressed representation, based on the
+   *         SHA-256 digest of its contents.
+   */
+  public String getETag() {
+    return this.etag;
+  }
+
+  /**
+   * @return The catalogue contents, encoded in UTF-8 and compressed with gzip.
+   */
+  public byte[] getGzippedBytes() {
+    return this.gzipped;
+  }
+
+  /**
+   * @return A strong ETag (including the quotes) of the gzip-compressed representation.
+   */
+  public String getGzippedETag() {
+    return this.etag.substring(0, this.etag.length() - 1) + "-gzip\"";
+  }
+
+  /**
+   * @return The time at which this version of the catalogue was stored (in milliseconds since the
+   *         epoch).
+   */
+  public long getLastModified() {
+    return this.lastModified;
+  }
+
+  private static byte[] gzip(byte[] data) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 8 + 64);
+    try (GZIPOutputStream gzipStream = new GZIPOutputStream(out)) {
+      gzipStream.write(data);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,125 @@
+package eu.erasmuswithoutpaper.registry.repository;
+
+import org.eclipse.jgit.internal.storage.file.GC.RepoStatistics;
+
+/**
+ * The results of a single {@link ManifestRepository#runMaintenance()} call.
+ */
+public class MaintenanceStatistics {
+
+  private final RepoStatistics before;
+  private final RepoStatistics after;
+  private final long durationMillis;
+  private final long lockHeldMicros;
+
+  MaintenanceStatistics(RepoStatistics before, RepoStatistics after, long durationMillis,
+      long lockHeldMicros) {
+    this.before = before;
+    this.after = after;
+    this.durationMillis = durationMillis;
+    this.lockHeldMicros = lockHeldMicros;
+  }
+
+  /**
+   * @return Number of pack bitmap indexes after the maintenance.
+   */
+  public long getBitmapsAfter() {
+    return this.after.numberOfBitmaps;
+  }
+
+  /**
+   * @return How long (in milliseconds) the whole maintenance took.
+   */
+  public long getDurationMillis() {
+    return this.durationMillis;
+  }
+
+  /**
+   * @return How long (in microseconds) the repository lock was held (readers and writers were
+   *         blocked only during this time).
+   */
+  public long getLockHeldMicros() {
+    return this.lockHeldMicros;
+  }
+
+  /**
+   * @return Number of loose objects after the maintenance.
+   */
+  public long getLooseObjectsAfter() {
+    return this.after.numberOfLooseObjects;
+  }
+
+  /**
+   * @return Number of loose objects before the maintenance.
+   */
+  public long getLooseObjectsBefore() {
+    return this.before.numberOfLooseObjects;
+  }
+
+  /**
+   * @return Total size (in bytes) of the loose objects after the maintenance.
+   */
+  public long getLooseSizeBytesAfter() {
+    return this.after.sizeOfLooseObjects;
+  }
+
+  /**
+   * @return Total size (in bytes) of the loose objects before the maintenance.
+   */
+  public long getLooseSizeBytesBefore() {
+    return this.before.sizeOfLooseObjects;
+  }
+
+  /**
+   * @return Number of objects stored in packs after the maintenance.
+   */
+  public long getPackedObjectsAfter() {
+    return this.after.numberOfPackedObjects;
+  }
+
+  /**
+   * @return Number of objects stored in packs before the maintenance.
+   */
+  public long getPackedObjectsBefore() {
+    return this.before.numberOfPackedObjects;
+  }
+
+  /**
+   * @return Number of pack files after the maintenance.
+   */
+  public long getPackFilesAfter() {
+    return this.after.numberOfPackFiles;
+  }
+
+  /**
+   * @return Number of pack files before the maintenance.
+   */
+  public long getPackFilesBefore() {
+    return this.before.numberOfPackFiles;
+  }
+
+  /**
+   * @return Total size (in bytes) of the pack files after the maintenance.
+   */
+  public long getPackSizeBytesAfter() {
+    return this.after.sizeOfPackedObjects;
+  }
+
+  /**
+   * @return Total size (in bytes) of the pack files before the maintenance.
+   */
+  public long getPackSizeBytesBefore() {
+    return this.before.sizeOfPackedObjects;
+  }
+
+  @Override
+  public String toString() {
+    return "loose objects " + this.getLooseObjectsBefore() + " -> " + this.getLooseObjectsAfter()
+        + " (" + this.getLooseSizeBytesBefore() + " -> " + this.getLooseSizeBytesAfter()
+        + " bytes), packed objects " + this.getPackedObjectsBefore() + " -> "
+        + this.getPackedObjectsAfter() + ", packs " + this.getPackFilesBefore() + " -> "
+        + this.getPackFilesAfter() + " (" + this.getPackSizeBytesBefore() + " -> "
+        + this.getPackSizeBytesAfter() + " bytes), " + this.getBitmapsAfter() + " bitmaps, took "
+        + this.durationMillis + " ms (lock held " + this.lockHeldMicros + " us)";
+  }
+}
@@ -0,0 +1,81 @@
+package eu.erasmuswithoutpaper.registry.repository;
+
+/**
+ * A snapshot of the counters of the filtered manifest cache kept by {@link ManifestRepository}.
+ */
+public class ManifestCacheStatistics {
+
+  private final long hits;
+  private final long misses;
+  private final long evictions;
+  private final long entries;
+  private final long sizeBytes;
+  private final long maxSizeBytes;
+
+  ManifestCacheStatistics(long hits, long misses, long evictions, long entries, long sizeBytes,
+      long maxSizeBytes) {
+    this.hits = hits;
+    this.misses = misses;
+    this.evictions = evictions;
+    this.entries = entries;
+    this.sizeBytes = sizeBytes;
+    this.maxSizeBytes = maxSizeBytes;
+  }
+
+  /**
+   * @return Number of manifests currently kept in the cache.
+   */
+  public long getEntries() {
+    return this.entries;
+  }
+
+  /**
+   * @return Number of manifests evicted from the cache, because it was full.
+   */
+  public long getEvictions() {
+    return this.evictions;
+  }
+
+  /**
+   * @return Ratio of {@link #getHits()} to all the requests (1.0 if there were no requests yet).
+   */
+  public double getHitRate() {
+    long requests = this.hits + this.misses;
+    return requests == 0 ? 1.0 : (double) this.hits / requests;
+  }
+
+  /**
+   * @return Number of requests served from the cache.
+   */
+  public long getHits() {
+    return this.hits;
+  }
+
+  /**
+   * @return The configured limit for {@link #getSizeBytes()}.
+   */
+  public long getMaxSizeBytes() {
+    return this.maxSizeBytes;
+  }
+
+  /**
+   * @return Number of requests which needed to read the manifest from the working copy.
+   */
+  public long getMisses() {
+    return this.misses;
+  }
+
+  /**
+   * @return Approximate memory taken by the cached manifests (in bytes).
+   */
+  public long getSizeBytes() {
+    return this.sizeBytes;
+  }
+
+  @Override
+  public String toString() {
+    return this.entries + " manifests (" + this.sizeBytes + " of " + this.maxSizeBytes
+        + " bytes), " + this.hits + " hits, " + this.misses + " misses, " + this.evictions
+        + " evictions";
+  }
+}
@@ -1,6 +1,8 @@
 package eu.erasmuswithoutpaper.registry.repository;
 
+import java.time.Instant;
 import java.util.List;
+import java.util.Optional;
 
 import eu.erasmuswithoutpaper.registryclient.RegistryClient;
 import org.springframework.beans.factory.DisposableBean;
@@ -41,11 +43,13 @@ public interface ManifestRepository extends DisposableBean {
   }
 
   /**
-   * Acquire a read lock for the current thread.
+   * Acquire the shared side of the global repository lock for the current thread.
    *
    * <p>
-   * This guarantees that no other thread will read the repository until the lock is
-   * released. You MUST release the lock after you make your changes (use try..finally).
+   * This doesn't block other readers and writers of single manifests (these are synchronized with
+   * finer-grained locks internally), but it guarantees that no global operation (such as a
+   * {@link #commit(String)}, or a transaction wrapped in {@link #acquireWriteLock()}) will run
+   * until the lock is released. You MUST release the lock afterwards (use try..finally).
    * </p>
    */
   void acquireReadLock();
@@ -54,8 +58,10 @@ public interface ManifestRepository extends DisposableBean {
    * Acquire a write lock for the current thread.
    *
    * <p>
-   * This guarantees that no other thread will read or write to the repository until the lock is
-   * released. You MUST release the lock after you make your changes (use try..finally).
+   * This is a global barrier - it guarantees that no other thread will read or write to the
+   * repository until the lock is released. Use it only when you truly need a consistent view of
+   * the whole repository (e.g. when modifying a number of manifests and committing them together).
+   * You MUST release the lock after you make your changes (use try..finally).
    * </p>
    */
   void acquireWriteLock();
@@ -87,6 +93,15 @@ public interface ManifestRepository extends DisposableBean {
    */
   boolean deleteManifest(String urlString);
 
+  /**
+   * Commit all the queued {@link #groupCommit(String)} changes, if the group-commit window has
+   * elapsed. This should be called periodically, so that the changes don't stay uncommitted for too
+   * long after the updates stop.
+   *
+   * @return <b>true</b> if something was indeed committed.
+   */
+  boolean flushGroupCommit();
+
   /**
    * Retrieve the list of all manifest URLs which are currently stored in the repository. The URLs
    * retrieved should equal the ones previously used in {@link #putOriginalManifest(String, byte[])}
@@ -96,6 +111,24 @@ public interface ManifestRepository extends DisposableBean {
    */
   List<String> getAllFilteredManifestUrls();
 
+  /**
+   * Same as {@link #commit(String)}, but in the group-commit mode the commit may be postponed, and
+   * folded together with other changes committed this way.
+   *
+   * <p>
+   * The first queued change opens a time window (configured in
+   * {@link ManifestRepositoryImplProperties#getGroupCommitWindowMillis()}). All the changes made
+   * until the window elapses are committed as a single commit, with a message which includes all
+   * the queued messages (in order). If the group-commit mode is disabled, then this is equivalent
+   * to {@link #commit(String)}.
+   * </p>
+   *
+   * @param message The log message describing the changes. It will be included in the message of
+   *        the group commit.
+   * @return <b>true</b> if something was committed during this call.
+   */
+  boolean groupCommit(String message);
+
   /**
    * Retrieve the current catalogue contents from repository's working copy.
    *
@@ -104,6 +137,69 @@ public interface ManifestRepository extends DisposableBean {
    */
   String getCatalogue() throws CatalogueNotFound;
 
+  /**
+   * Retrieve the current catalogue, prepared for serving it over HTTP.
+   *
+   * <p>
+   * The snapshot is computed only once for each version of the catalogue (usually in
+   * {@link #putCatalogue(String, RegistryClient)}), so this method is cheap to call.
+   * </p>
+   *
+   * @return A {@link CatalogueSnapshot} of the current catalogue contents.
+   * @throws CatalogueNotFound when no catalogue has been put in the repository yet.
+   */
+  CatalogueSnapshot getCatalogueSnapshot() throws CatalogueNotFound;
+
+  /**
+   * Find the commit which was the head of the "master" branch at the given time.
+   *
+   * @param time the point in time.
+   * @return The ID of the commit, or empty if there were no commits at that time yet.
+   */
+  Optional<String> findCommitAt(Instant time);
+
+  /**
+   * Retrieve the catalogue contents, as they were committed in the given revision.
+   *
+   * <p>
+   * The contents are read straight from the git object database, so neither the working copy nor
+   * the repository lock are touched. Recently read contents are cached.
+   * </p>
+   *
+   * @param revision a commit ID (possibly abbreviated), or any other revision expression understood
+   *        by git (e.g. <code>master~3</code>).
+   * @return The catalogue contents.
+   * @throws CatalogueNotFound when the revision doesn't exist, or it didn't contain the catalogue.
+   */
+  byte[] getHistoricalCatalogue(String revision) throws CatalogueNotFound;
+
+  /**
+   * Retrieve the <b>filtered</b> manifest contents, as they were committed in the given revision.
+   * See {@link #getHistoricalCatalogue(String)} for details.
+   *
+   * @param urlString Unique URL of the manifest.
+   * @param revision as in {@link #getHistoricalCatalogue(String)}.
+   * @return The manifest contents.
+   * @throws ManifestNotFound when the revision doesn't exist, or it didn't contain the manifest.
+   */
+  byte[] getHistoricalManifestFiltered(String urlString, String revision) throws ManifestNotFound;
+
+  /**
+   * Retrieve the <b>original</b> manifest contents, as they were committed in the given revision.
+   * See {@link #getHistoricalCatalogue(String)} for details.
+   *
+   * @param urlString Unique URL of the manifest.
+   * @param revision as in {@link #getHistoricalCatalogue(String)}.
+   * @return The manifest contents.
+   * @throws ManifestNotFound when the revision doesn't exist, or it didn't contain the manifest.
+   */
+  byte[] getHistoricalManifestOriginal(String urlString, String revision) throws ManifestNotFound;
+
+  /**
+   * @return The statistics of the in-memory cache used by {@link #getManifestFiltered(String)}.
+   */
+  ManifestCacheStatistics getFilteredManifestCacheStatistics();
+
   /**
    * Retrieve the <b>filtered</b> manifest contents from repository's working copy.
    *
@@ -130,11 +226,22 @@ public interface ManifestRepository extends DisposableBean {
    */
   byte[] getManifestOriginal(String urlString) throws ManifestNotFound;
 
+  /**
+   * @return The current {@link PushStatistics}.
+   */
+  PushStatistics getPushStatistics();
+
   /**
    * Push all committed changes to the remote repository, for logging purposes.
    *
+   * <p>
+   * The repository is locked only while the snapshot of the branch is taken, the network transfer
+   * runs without holding the lock. After a failure, the subsequent calls do nothing until the
+   * (exponentially growing) back-off period elapses.
+   * </p>
+   *
    * @return <b>true</b> if something was actually pushed, <b>false</b> if there was nothing to
-   *         push, or pushing has been disabled.
+   *         push, pushing has been disabled, or we are backing off after previous failures.
    * @throws TransportException When network error occurs during the process.
    * @throws ConfigurationException When pushing is enabled, but not configured properly.
    * @throws RuntimeException When changes cannot be pushed for some reason.
@@ -192,6 +299,19 @@ public interface ManifestRepository extends DisposableBean {
    */
   void releaseWriteLock();
 
+  /**
+   * Run the git housekeeping: pack the refs, repack all the objects into a single pack (with
+   * bitmap indexes), and prune the loose objects which are not needed anymore.
+   *
+   * <p>
+   * The repository lock is held only while the refs are being packed, so this can be run while the
+   * repository is being used. Pushes are postponed until the maintenance is finished.
+   * </p>
+   *
+   * @return The object counts and sizes before and after the maintenance.
+   */
+  MaintenanceStatistics runMaintenance();
+
   /**
    * Returns catalog's last modified time.
    *
@@ -1,10 +1,8 @@
 package eu.erasmuswithoutpaper.registry.repository;
 
-import static org.joox.JOOX.$;
-
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
@@ -13,15 +11,30 @@ import java.nio.file.FileVisitor;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.nio.file.attribute.FileTime;
+import java.text.ParseException;
+import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import eu.erasmuswithoutpaper.registry.common.Utils;
 import eu.erasmuswithoutpaper.registryclient.RegistryClient;
@@ -30,7 +43,11 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.stereotype.Service;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Striped;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.eclipse.jgit.api.Git;
@@ -38,14 +55,35 @@ import org.eclipse.jgit.api.RmCommand;
 import org.eclipse.jgit.api.Status;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.api.errors.TransportException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEditor.DeletePath;
+import org.eclipse.jgit.dircache.DirCacheEditor.PathEdit;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.errors.AmbiguousObjectException;
+import org.eclipse.jgit.errors.RevisionSyntaxException;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.internal.storage.file.GC.RepoStatistics;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.GcConfig;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.CommitTimeRevFilter;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
-import org.joox.Match;
+import org.eclipse.jgit.storage.pack.PackConfig;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xml.sax.SAXException;
 
 /**
  * Implementation of {@link ManifestRepository}.
@@ -55,6 +93,15 @@ import org.xml.sax.SAXException;
  * changes to git's default "origin" remote. The underlying Git working copy needs to be initiated
  * beforehand.
  * </p>
+ *
+ * <p>
+ * Locking: the write side of the global {@link #lock} is a barrier, held by the operations which
+ * touch the whole working copy (commits, {@link #deleteAll(RegistryClient)}) and by the callers of
+ * {@link #acquireWriteLock()}. All the other operations hold its read side, plus a finer-grained
+ * lock - one of the {@link #manifestLocks} (striped by manifest URL) or the
+ * {@link #catalogueLock}. This way, operations on different manifests don't block each other.
+ * Catalogue reads don't lock at all.
+ * </p>
  */
 @Service
 @SuppressFBWarnings("SIC_INNER_SHOULD_BE_STATIC_ANON")
@@ -63,20 +110,96 @@ public class ManifestRepositoryImpl implements ManifestRepository {
 
   private static final Logger logger = LoggerFactory.getLogger(ManifestRepositoryImpl.class);
 
+  private static final long MIN_PUSH_BACKOFF_MILLIS = 30_000;
+  private static final long MAX_PUSH_BACKOFF_MILLIS = 30 * 60_000;
+
+  /**
+   * Maximum size (in bytes) of the historical file contents kept in {@link #historicalFileCache}.
+   */
+  private static final long HISTORICAL_FILE_CACHE_BYTES = 16 * 1024 * 1024;
+
   private final ManifestRepositoryImplProperties repoProperties;
   private final CatalogueDependantCache catcache;
   private final Git git;
 
   private final ReentrantReadWriteLock lock;
+  private final Striped<ReadWriteLock> manifestLocks = Striped.readWriteLock(64);
+  private final ReentrantLock catalogueLock = new ReentrantLock();
   private final SortedSet<String> index;
 
-  private volatile String cachedCatalogueContent = null;
+  /**
+   * Recently used filtered manifests, keyed by their URLs, and weighted by their (approximate)
+   * size. Kept up to date by {@link #putFilteredManifest(String, String)},
+   * {@link #deleteManifest(String)} and {@link #deleteAll(RegistryClient)}.
+   */
+  private final Cache<String, String> filteredManifestCache;
+
+  /**
+   * Recently read historical file contents, keyed by the commit ID and the relative path (empty if
+   * the file didn't exist in that commit). Commits never change, so the entries never need to be
+   * invalidated.
+   */
+  private final Cache<String, Optional<byte[]>> historicalFileCache = CacheBuilder.newBuilder()
+      .maximumWeight(HISTORICAL_FILE_CACHE_BYTES)
+      .weigher((String key, Optional<byte[]> value) -> key.length() + value.map(v -> v.length)
+          .orElse(0))
+      .build();
+
+  /**
+   * True, if {@link #index} has been changed since index.xml was last written. The file is
+   * rewritten only once per commit (see {@link #flushIndexIfDirty()}).
+   */
+  private volatile boolean indexDirty;
+
+  /**
+   * Paths (relative to the working copy root) of all files written or deleted since the last
+   * commit. Only these paths are staged by {@link #commit(String)}.
+   */
+  private final SortedSet<String> dirtyPaths = new ConcurrentSkipListSet<>();
+
+  /**
+   * SHA-256 digests of the current contents of the files in the working copy (keyed by their
+   * relative paths), so that {@link #writeFile(Path, byte[])} can detect changes without reading
+   * the previous contents. Populated lazily (each file is read at most once), and kept up to date
+   * by the methods which modify the working copy - so the working copy MUST NOT be modified by
+   * anyone else.
+   */
+  private final Map<String, String> fileHashes = new ConcurrentHashMap<>();
+
+  /**
+   * True until the first successful commit. The working copy might contain changes which were left
+   * uncommitted by the previous run (and are not in {@link #dirtyPaths}), so the first commit needs
+   * to scan the whole working copy.
+   */
+  private boolean fullStagingRequired = true;
+
+  /**
+   * Messages passed to {@link #groupCommit(String)} since the last commit. Guarded by the write
+   * lock.
+   */
+  private final List<String> groupCommitMessages = new ArrayList<>();
+  private long groupCommitWindowStart;
+
+  /**
+   * Makes sure that only one push is in progress at a time. It is separate from {@link #lock}, so
+   * that the (slow) network transfer doesn't block readers and writers of the repository.
+   */
+  private final ReentrantLock pushLock = new ReentrantLock();
+  private volatile int consecutivePushFailures;
+  private volatile long nextPushAttemptTime;
+  private final AtomicLong successfulPushes = new AtomicLong();
+  private final AtomicLong failedPushes = new AtomicLong();
+  private volatile long lastPushMillis;
+  private final AtomicLong maxPushMillis = new AtomicLong();
+  private volatile long lastPushLockWaitMicros;
+  private final AtomicLong maxPushLockWaitMicros = new AtomicLong();
+
+  private volatile CatalogueSnapshot cachedCatalogue = null;
 
   /**
    * @param repoProperties Repository properties to use. These cannot be changed after the object is
    *        instantiated.
-   * @param catcache needed because it needs to be notified (cleared) whenever the catalogue
-   *        changes.
+   * @param catcache needed because it needs to be notified whenever the catalogue changes.
    */
   @Autowired
   @SuppressFBWarnings("BC_UNCONFIRMED_CAST_OF_RETURN_VALUE")
@@ -94,12 +217,15 @@ public class ManifestRepositoryImpl implements ManifestRepository {
     }
 
     this.lock = new ReentrantReadWriteLock(true);
+    this.filteredManifestCache = CacheBuilder.newBuilder()
+        .maximumWeight(this.repoProperties.getFilteredManifestCacheBytes())
+        .weigher(ManifestRepositoryImpl::getApproximateSize).recordStats().build();
     Optional<SortedSet<String>> loadedIndex = this.loadIndex();
     if (loadedIndex.isPresent()) {
-      this.index = this.loadIndex().get();
+      this.index = new ConcurrentSkipListSet<>(loadedIndex.get());
     } else {
-      this.index = new TreeSet<>();
-      this.flushIndex();
+      this.index = new ConcurrentSkipListSet<>();
+      this.indexDirty = true;
       this.commit("Upgrade repository structure");
     }
   }
@@ -118,27 +244,12 @@ public class ManifestRepositoryImpl implements ManifestRepository {
   public boolean commit(String message) {
     this.lock.writeLock().lock();
     try {
-      this.git.add().addFilepattern(".").call();
-      Status status = this.git.status().call();
-      if (!status.getMissing().isEmpty() || !status.getRemoved().isEmpty()) {
-        RmCommand rm = this.git.rm();
-        for (String deletedFile : Iterables.concat(status.getMissing(), status.getRemoved())) {
-          rm.addFilepattern(deletedFile);
-        }
-        rm.call();
+      if (!this.groupCommitMessages.isEmpty()) {
+        // Don't let the queued changes get committed under someone else's message.
+        this.groupCommitMessages.add(message);
+        return this.commitGroup();
       }
-      status = this.git.status().call();
-      if (status.hasUncommittedChanges()) {
-        PersonIdent committer = new PersonIdent(this.repoProperties.getCommitterName(),
-            this.repoProperties.getCommitterEmail());
-        this.git.commit().setMessage(message).setAuthor(committer).setCommitter(committer).call();
-        logger.info("New commit saved: " + message);
-        return true;
-      } else {
-        return false;
-      }
-    } catch (GitAPIException e) {
-      throw new RuntimeException(e);
+      return this.commitAll(message);
     } finally {
       this.lock.writeLock().unlock();
     }
@@ -184,6 +295,7 @@ public class ManifestRepositoryImpl implements ManifestRepository {
         @Override
         public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
           Files.delete(file);
+          ManifestRepositoryImpl.this.onFileDeleted(file);
           return FileVisitResult.CONTINUE;
         }
 
@@ -192,10 +304,11 @@ public class ManifestRepositoryImpl implements ManifestRepository {
           throw exc;
         }
       });
-      this.cachedCatalogueContent = null;
+      this.cachedCatalogue = null;
+      this.filteredManifestCache.invalidateAll();
       this.index.clear();
       this.flushIndex();
-      this.onCatalogueContentChanged(client);
+      this.onCatalogueContentChanged(client, "");
     } catch (IOException e) {
       throw new RuntimeException(e);
     } finally {
@@ -205,37 +318,68 @@ public class ManifestRepositoryImpl implements ManifestRepository {
 
   @Override
   public boolean deleteManifest(String urlString) {
-    this.lock.writeLock().lock();
+    this.lock.readLock().lock();
     try {
-
-      Path path1 = this.getPathForOriginalManifestUrl(urlString);
-      Path path2 = this.getPathForFilteredManifestUrl(urlString);
-      boolean result = false;
+      Lock manifestLock = this.manifestLocks.get(urlString).writeLock();
+      manifestLock.lock();
       try {
-        if (Files.exists(path1)) {
-          Files.delete(path1);
-          result = true;
+
+        Path path1 = this.getPathForOriginalManifestUrl(urlString);
+        Path path2 = this.getPathForFilteredManifestUrl(urlString);
+        boolean result = false;
+        try {
+          if (Files.exists(path1)) {
+            Files.delete(path1);
+            this.onFileDeleted(path1);
+            result = true;
+          }
+          if (Files.exists(path2)) {
+            Files.delete(path2);
+            this.onFileDeleted(path2);
+            result = true;
+          }
+        } catch (IOException e) {
+          throw new RuntimeException(e);
         }
-        if (Files.exists(path2)) {
-          Files.delete(path2);
-          result = true;
+
+        this.filteredManifestCache.invalidate(urlString);
+        if (result == true) {
+          this.removeFromIndex(urlString);
         }
-      } catch (IOException e) {
-        throw new RuntimeException(e);
+        return result;
+      } finally {
+        manifestLock.unlock();
       }
+    } finally {
+      this.lock.readLock().unlock();
+    }
+  }
 
-      if (result == true) {
-        this.removeFromIndex(urlString);
+  @Override
+  public void destroy() {
+    this.lock.writeLock().lock();
+    try {
+      if (!this.groupCommitMessages.isEmpty()) {
+        this.commitGroup();
       }
-      return result;
+      this.flushIndexIfDirty();
     } finally {
       this.lock.writeLock().unlock();
     }
+    this.git.close();
   }
 
   @Override
-  public void destroy() {
-    this.git.close();
+  public boolean flushGroupCommit() {
+    this.lock.writeLock().lock();
+    try {
+      if (this.groupCommitMessages.isEmpty() || !this.isGroupCommitWindowElapsed()) {
+        return false;
+      }
+      return this.commitGroup();
+    } finally {
+      this.lock.writeLock().unlock();
+    }
   }
 
   /**
@@ -280,6 +424,22 @@ public class ManifestRepositoryImpl implements ManifestRepository {
     }
   }
 
+  @Override
+  public Optional<String> findCommitAt(Instant time) {
+    try (RevWalk walk = new RevWalk(this.git.getRepository())) {
+      ObjectId head = this.git.getRepository().resolve("master");
+      if (head == null) {
+        return Optional.empty();
+      }
+      walk.markStart(walk.parseCommit(head));
+      walk.setRevFilter(CommitTimeRevFilter.before(time.toEpochMilli()));
+      RevCommit commit = walk.next();
+      return commit == null ? Optional.empty() : Optional.of(commit.name());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   @Override
   public List<String> getAllFilteredManifestUrls() {
     return new ArrayList<>(this.index);
@@ -287,8 +447,24 @@ public class ManifestRepositoryImpl implements ManifestRepository {
 
   @Override
   public String getCatalogue() throws CatalogueNotFound {
+    return this.getCatalogueSnapshot().getContent();
+  }
+
+  @Override
+  public CatalogueSnapshot getCatalogueSnapshot() throws CatalogueNotFound {
     // Do we have a cached copy?
-    if (this.cachedCatalogueContent == null) {
+    CatalogueSnapshot snapshot = this.cachedCatalogue;
+    if (snapshot != null) {
+      return snapshot;
+    }
+
+    // Not yet loaded. Make sure we don't race with putCatalogue.
+    this.catalogueLock.lock();
+    try {
+      snapshot = this.cachedCatalogue;
+      if (snapshot != null) {
+        return snapshot;
+      }
 
       // Does it exist in our repo?
       Path path = this.getPathForCatalogue();
@@ -298,41 +474,102 @@ public class ManifestRepositoryImpl implements ManifestRepository {
 
       // Read it.
       byte[] encoded;
+      long lastModified;
       try {
         encoded = Files.readAllBytes(path);
+        lastModified = Files.getLastModifiedTime(path).toMillis();
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
 
-      // Convert it to String.
-      this.cachedCatalogueContent = new String(encoded, StandardCharsets.UTF_8);
+      // Convert it to String, and prepare it for serving.
+      snapshot = new CatalogueSnapshot(new String(encoded, StandardCharsets.UTF_8), lastModified);
+      this.cachedCatalogue = snapshot;
+      return snapshot;
+    } finally {
+      this.catalogueLock.unlock();
+    }
+  }
+
+  @Override
+  public byte[] getHistoricalCatalogue(String revision) throws CatalogueNotFound {
+    Optional<byte[]> contents = this.getHistoricalFile(revision, this.getPathForCatalogue());
+    if (!contents.isPresent()) {
+      throw new CatalogueNotFound();
+    }
+    return contents.get();
+  }
+
+  @Override
+  public byte[] getHistoricalManifestFiltered(String urlString, String revision)
+      throws ManifestNotFound {
+    Optional<byte[]> contents =
+        this.getHistoricalFile(revision, this.getPathForFilteredManifestUrl(urlString));
+    if (!contents.isPresent()) {
+      throw new ManifestNotFound();
+    }
+    return contents.get();
+  }
+
+  @Override
+  public byte[] getHistoricalManifestOriginal(String urlString, String revision)
+      throws ManifestNotFound {
+    Optional<byte[]> contents =
+        this.getHistoricalFile(revision, this.getPathForOriginalManifestUrl(urlString));
+    if (!contents.isPresent()) {
+      throw new ManifestNotFound();
     }
+    return contents.get();
+  }
 
-    return this.cachedCatalogueContent;
+  @Override
+  public ManifestCacheStatistics getFilteredManifestCacheStatistics() {
+    long sizeBytes = 0;
+    for (Map.Entry<String, String> entry : this.filteredManifestCache.asMap().entrySet()) {
+      sizeBytes += getApproximateSize(entry.getKey(), entry.getValue());
+    }
+    CacheStats stats = this.filteredManifestCache.stats();
+    return new ManifestCacheStatistics(stats.hitCount(), stats.missCount(),
+        stats.evictionCount(), this.filteredManifestCache.size(), sizeBytes,
+        this.repoProperties.getFilteredManifestCacheBytes());
   }
 
   @Override
   public String getManifestFiltered(String urlString) throws ManifestNotFound {
     this.lock.readLock().lock();
     try {
+      Lock manifestLock = this.manifestLocks.get(urlString).readLock();
+      manifestLock.lock();
+      try {
 
-      // Does it exist in our repo?
-      Path path = this.getPathForFilteredManifestUrl(urlString);
-      if (!Files.exists(path)) {
-        throw new ManifestNotFound();
-      }
+        // Do we have it cached?
+        String cached = this.filteredManifestCache.getIfPresent(urlString);
+        if (cached != null) {
+          return cached;
+        }
 
-      // Read it.
-      byte[] encoded;
-      try {
-        encoded = Files.readAllBytes(path);
-      } catch (IOException e) {
-        throw new RuntimeException(e);
-      }
+        // Does it exist in our repo?
+        Path path = this.getPathForFilteredManifestUrl(urlString);
+        if (!Files.exists(path)) {
+          throw new ManifestNotFound();
+        }
+
+        // Read it.
+        byte[] encoded;
+        try {
+          encoded = Files.readAllBytes(path);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
 
-      // Convert it to String.
-      return new String(encoded, StandardCharsets.UTF_8);
+        // Convert it to String, and cache it.
+        String contents = new String(encoded, StandardCharsets.UTF_8);
+        this.filteredManifestCache.put(urlString, contents);
+        return contents;
 
+      } finally {
+        manifestLock.unlock();
+      }
     } finally {
       this.lock.readLock().unlock();
     }
@@ -342,87 +579,176 @@ public class ManifestRepositoryImpl implements ManifestRepository {
   public byte[] getManifestOriginal(String urlString) throws ManifestNotFound {
     this.lock.readLock().lock();
     try {
+      Lock manifestLock = this.manifestLocks.get(urlString).readLock();
+      manifestLock.lock();
+      try {
 
-      // Does it exist in our repo?
-      Path path = this.getPathForOriginalManifestUrl(urlString);
-      if (!Files.exists(path)) {
-        throw new ManifestNotFound();
-      }
+        // Does it exist in our repo?
+        Path path = this.getPathForOriginalManifestUrl(urlString);
+        if (!Files.exists(path)) {
+          throw new ManifestNotFound();
+        }
 
-      try {
-        return Files.readAllBytes(path);
-      } catch (IOException e) {
-        throw new RuntimeException(e);
-      }
+        try {
+          return Files.readAllBytes(path);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
 
+      } finally {
+        manifestLock.unlock();
+      }
     } finally {
       this.lock.readLock().unlock();
     }
   }
 
   @Override
-  public boolean push() throws TransportException, ConfigurationException, RuntimeException {
+  public PushStatistics getPushStatistics() {
+    return new PushStatistics(this.successfulPushes.get(), this.failedPushes.get(),
+        this.consecutivePushFailures, this.nextPushAttemptTime, this.lastPushMillis,
+        this.maxPushMillis.get(), this.lastPushLockWaitMicros, this.maxPushLockWaitMicros.get());
+  }
+
+  @Override
+  public boolean groupCommit(String message) {
     this.lock.writeLock().lock();
     try {
-      if (this.repoProperties.isPushingEnabled()) {
-        try {
-          if (!this.unpushedCommitsExist()) {
-            return false;
-          }
-          this.git.push().setTimeout(30).call();
-          logger.info("Successfully pushed to origin");
-          return true;
-        } catch (TransportException e) {
-          throw e;
-        } catch (GitAPIException e) {
-          throw new RuntimeException(e);
-        }
-      } else {
+      if (this.repoProperties.getGroupCommitWindowMillis() <= 0) {
+        return this.commit(message);
+      }
+      if (this.groupCommitMessages.isEmpty()) {
+        this.groupCommitWindowStart = System.currentTimeMillis();
+      }
+      this.groupCommitMessages.add(message);
+      if (!this.isGroupCommitWindowElapsed()) {
         return false;
       }
+      return this.commitGroup();
     } finally {
       this.lock.writeLock().unlock();
     }
   }
 
+  @Override
+  public boolean push() throws TransportException, ConfigurationException, RuntimeException {
+    if (!this.repoProperties.isPushingEnabled()) {
+      return false;
+    }
+    if (!this.pushLock.tryLock()) {
+      // Some other thread is pushing right now.
+      return false;
+    }
+    try {
+      if (System.currentTimeMillis() < this.nextPushAttemptTime) {
+        // Backing off after previous failures.
+        return false;
+      }
+      ObjectId head = this.getUnpushedHead();
+      if (head == null) {
+        return false;
+      }
+
+      /*
+       * The snapshot is pushed without holding the repository lock. Commits are immutable, so
+       * nothing we push can be changed by the commits made in the meantime (these will be pushed
+       * next time).
+       */
+
+      long start = System.nanoTime();
+      try {
+        Iterable<PushResult> results = this.git.push().setTimeout(30)
+            .setRefSpecs(new RefSpec(head.name() + ":refs/heads/master")).call();
+        for (PushResult result : results) {
+          for (RemoteRefUpdate update : result.getRemoteUpdates()) {
+            if (update.getStatus() != RemoteRefUpdate.Status.OK
+                && update.getStatus() != RemoteRefUpdate.Status.UP_TO_DATE) {
+              throw new RuntimeException("Push of " + update.getRemoteName() + " failed: "
+                  + update.getStatus() + " " + update.getMessage());
+            }
+          }
+        }
+      } catch (TransportException | RuntimeException e) {
+        this.onPushFinished(start, false);
+        throw e;
+      } catch (GitAPIException e) {
+        this.onPushFinished(start, false);
+        throw new RuntimeException(e);
+      }
+      this.onPushFinished(start, true);
+      logger.info("Successfully pushed {} to origin in {} ms", head.name(), this.lastPushMillis);
+      return true;
+    } finally {
+      this.pushLock.unlock();
+    }
+  }
+
   @Override
   public boolean putCatalogue(String contents, RegistryClient client) {
-    this.lock.writeLock().lock();
+    this.lock.readLock().lock();
     try {
-      boolean changed = this.writeFile(this.getPathForCatalogue(), contents);
-      this.cachedCatalogueContent = contents;
-      if (changed) {
-        this.onCatalogueContentChanged(client);
+      this.catalogueLock.lock();
+      try {
+        Path path = this.getPathForCatalogue();
+        boolean changed = this.writeFile(path, contents);
+        CatalogueSnapshot previous = this.cachedCatalogue;
+        if (changed || previous == null || !previous.getContent().equals(contents)) {
+          long lastModified;
+          try {
+            lastModified = Files.getLastModifiedTime(path).toMillis();
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+          this.cachedCatalogue = new CatalogueSnapshot(contents, lastModified);
+        }
+        if (changed) {
+          this.onCatalogueContentChanged(client, this.cachedCatalogue.getETag());
+        }
+        return changed;
+      } finally {
+        this.catalogueLock.unlock();
       }
-      return changed;
     } finally {
-      this.lock.writeLock().unlock();
+      this.lock.readLock().unlock();
     }
   }
 
   @Override
   public boolean putFilteredManifest(String urlString, String filteredContents) {
-    this.lock.writeLock().lock();
+    this.lock.readLock().lock();
     try {
-      boolean changed =
-          this.writeFile(this.getPathForFilteredManifestUrl(urlString), filteredContents);
-      this.addToIndex(urlString);
-      return changed;
+      Lock manifestLock = this.manifestLocks.get(urlString).writeLock();
+      manifestLock.lock();
+      try {
+        boolean changed =
+            this.writeFile(this.getPathForFilteredManifestUrl(urlString), filteredContents);
+        this.filteredManifestCache.put(urlString, filteredContents);
+        this.addToIndex(urlString);
+        return changed;
+      } finally {
+        manifestLock.unlock();
+      }
     } finally {
-      this.lock.writeLock().unlock();
+      this.lock.readLock().unlock();
     }
   }
 
   @Override
   public boolean putOriginalManifest(String urlString, byte[] originalContents) {
-    this.lock.writeLock().lock();
+    this.lock.readLock().lock();
     try {
-      boolean changed =
-          this.writeFile(this.getPathForOriginalManifestUrl(urlString), originalContents);
-      this.addToIndex(urlString);
-      return changed;
+      Lock manifestLock = this.manifestLocks.get(urlString).writeLock();
+      manifestLock.lock();
+      try {
+        boolean changed =
+            this.writeFile(this.getPathForOriginalManifestUrl(urlString), originalContents);
+        this.addToIndex(urlString);
+        return changed;
+      } finally {
+        manifestLock.unlock();
+      }
     } finally {
-      this.lock.writeLock().unlock();
+      this.lock.readLock().unlock();
     }
   }
 
@@ -436,14 +762,115 @@ public class ManifestRepositoryImpl implements ManifestRepository {
     this.lock.writeLock().unlock();
   }
 
-  private void addToIndex(String url) {
-    this.lock.writeLock().lock();
+  @Override
+  public MaintenanceStatistics runMaintenance() {
+    // Repacking and pushing at the same time would only slow each other down.
+    this.pushLock.lock();
     try {
-      this.index.add(url);
-      this.flushIndex();
+      final long start = System.nanoTime();
+      GC gc = new GC((FileRepository) this.git.getRepository());
+      final RepoStatistics before = gc.getStatistics();
+
+      /*
+       * Packing the refs competes with commits for the ref lock files, so we do it while holding
+       * the write lock. It takes only a moment.
+       */
+
+      final long lockHeldMicros;
+      this.lock.writeLock().lock();
+      final long lockStart = System.nanoTime();
+      try {
+        this.git.packRefs().setAll(true).call();
+      } finally {
+        lockHeldMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - lockStart);
+        this.lock.writeLock().unlock();
+      }
+
+      /*
+       * Repacking and pruning is safe to be done concurrently with commits. Only the unreferenced
+       * objects older than gc.pruneExpire (two weeks by default) are pruned, so the objects of a
+       * commit which is just being created are left alone.
+       */
+
+      PackConfig packConfig = new PackConfig(this.git.getRepository());
+      packConfig.setBuildBitmaps(true);
+      gc.setPackConfig(packConfig);
+      gc.setGcConfig(new GcConfig(GcConfig.PackRefsMode.FALSE));
+      gc.gc().get();
+
+      RepoStatistics after = gc.getStatistics();
+      long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      return new MaintenanceStatistics(before, after, durationMillis, lockHeldMicros);
+    } catch (IOException | ParseException | GitAPIException | ExecutionException e) {
+      throw new RuntimeException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
     } finally {
-      this.lock.writeLock().unlock();
+      this.pushLock.unlock();
+    }
+  }
+
+  /**
+   * @return Approximate size (in bytes) of a {@link #filteredManifestCache} entry. Manifests are
+   *         (mostly) ASCII, so their strings take one byte per character.
+   */
+  private static int getApproximateSize(String url, String contents) {
+    return url.length() + contents.length();
+  }
+
+  private void addToIndex(String url) {
+    if (this.index.add(url)) {
+      this.indexDirty = true;
+    }
+  }
+
+  /**
+   * Stage and commit all the changes. The caller must hold the write lock.
+   */
+  private boolean commitAll(String message) {
+    this.flushIndexIfDirty();
+    try {
+      boolean changed;
+      if (this.fullStagingRequired) {
+        changed = this.stageAllChanges();
+        this.fullStagingRequired = false;
+      } else {
+        changed = this.stageDirtyPaths();
+      }
+      this.dirtyPaths.clear();
+      if (changed) {
+        PersonIdent committer = new PersonIdent(this.repoProperties.getCommitterName(),
+            this.repoProperties.getCommitterEmail());
+        this.git.commit().setMessage(message).setAuthor(committer).setCommitter(committer).call();
+        logger.info("New commit saved: " + message);
+        return true;
+      } else {
+        return false;
+      }
+    } catch (GitAPIException | IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Commit everything, with a message built of all the queued {@link #groupCommitMessages}. The
+   * caller must hold the write lock.
+   */
+  private boolean commitGroup() {
+    String message;
+    if (this.groupCommitMessages.size() == 1) {
+      message = this.groupCommitMessages.get(0);
+    } else {
+      StringBuilder sb = new StringBuilder();
+      sb.append("Group commit of ").append(this.groupCommitMessages.size()).append(" changes\n");
+      for (String queued : this.groupCommitMessages) {
+        sb.append('\n').append(queued).append('\n');
+      }
+      message = sb.toString();
     }
+    this.groupCommitMessages.clear();
+    return this.commitAll(message);
   }
 
   private void flushIndex() {
@@ -461,6 +888,13 @@ public class ManifestRepositoryImpl implements ManifestRepository {
     }
     sb.append("</index>\n");
     this.writeFile(this.getPathForIndex(), sb.toString());
+    this.indexDirty = false;
+  }
+
+  private void flushIndexIfDirty() {
+    if (this.indexDirty) {
+      this.flushIndex();
+    }
   }
 
   private Path getPathForCatalogue() {
@@ -484,95 +918,305 @@ public class ManifestRepositoryImpl implements ManifestRepository {
         .toAbsolutePath();
   }
 
+  /**
+   * Read the file from the given revision (or from {@link #historicalFileCache}). The returned
+   * array MUST NOT be modified.
+   *
+   * @return The contents of the file, or empty if either the revision or the file didn't exist.
+   */
+  private Optional<byte[]> getHistoricalFile(String revision, Path path) {
+    ObjectId commitId;
+    try {
+      commitId = this.git.getRepository().resolve(revision + "^{commit}");
+    } catch (AmbiguousObjectException | RevisionSyntaxException e) {
+      return Optional.empty();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    if (commitId == null) {
+      return Optional.empty();
+    }
+    String relativePath = this.getRelativePath(path);
+    try {
+      return this.historicalFileCache.get(commitId.name() + ":" + relativePath,
+          () -> this.readHistoricalFile(commitId, relativePath));
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @return The path relative to the root of the working copy (with "/" separators, as in git).
+   */
+  private String getRelativePath(Path path) {
+    return this.getRootPath().relativize(path.toAbsolutePath()).toString().replace("\\", "/");
+  }
+
+  private Path getRootPath() {
+    return this.repoProperties.getFileSystem().getPath(this.repoProperties.getPath())
+        .toAbsolutePath();
+  }
+
+  /**
+   * @return The SHA-256 digest of the current contents of the file, or null if it doesn't exist.
+   */
+  private String getStoredFileHash(String relativePath, Path path) throws IOException {
+    String hash = this.fileHashes.get(relativePath);
+    if (hash == null && Files.exists(path)) {
+      try (InputStream in = Files.newInputStream(path)) {
+        hash = DigestUtils.sha256Hex(in);
+      }
+      this.fileHashes.put(relativePath, hash);
+    }
+    return hash;
+  }
+
+  /**
+   * Take a snapshot of the "master" branch (holding the repository lock only for a moment).
+   *
+   * @return The commit to be pushed, or null if there's nothing to push.
+   */
+  private ObjectId getUnpushedHead() throws ConfigurationException {
+    ObjectId head;
+    ObjectId origin;
+    long waitStart = System.nanoTime();
+    this.lock.readLock().lock();
+    try {
+      long waitMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - waitStart);
+      this.lastPushLockWaitMicros = waitMicros;
+      this.maxPushLockWaitMicros.accumulateAndGet(waitMicros, Math::max);
+      head = this.git.getRepository().resolve("master");
+      origin = this.git.getRepository().resolve("origin/master");
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      this.lock.readLock().unlock();
+    }
+    if (head == null || origin == null) {
+      throw new ConfigurationException(
+          "You need to have 'master' and 'origin/master' branches in your repo.");
+    }
+    try (RevWalk walk = new RevWalk(this.git.getRepository())) {
+      if (walk.isMergedInto(walk.parseCommit(head), walk.parseCommit(origin))) {
+        return null;
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return head;
+  }
+
+  private boolean isGroupCommitWindowElapsed() {
+    return System.currentTimeMillis() - this.groupCommitWindowStart
+        >= this.repoProperties.getGroupCommitWindowMillis();
+  }
+
   private Optional<SortedSet<String>> loadIndex() {
 
     SortedSet<String> result = new TreeSet<>();
 
-    byte[] encoded;
+    InputStream input;
     try {
-      encoded = Files.readAllBytes(this.getPathForIndex());
+      input = Files.newInputStream(this.getPathForIndex());
     } catch (IOException e) {
       /* Index missing. This means that we're upgrading from older format. */
       return Optional.empty();
     }
 
-    Match doc;
-    try {
-      doc = $(new ByteArrayInputStream(encoded));
-    } catch (SAXException | IOException e) {
+    try (input) {
+      XMLStreamReader reader = Utils.newSecureXmlInputFactory().createXMLStreamReader(input);
+      try {
+        while (reader.hasNext()) {
+          if (reader.next() == XMLStreamConstants.START_ELEMENT
+              && "url".equals(reader.getLocalName())) {
+            result.add(reader.getElementText());
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException | IOException e) {
       throw new RuntimeException(e);
     }
-    result.addAll(doc.find("url").texts());
 
     return Optional.of(result);
   }
 
-  private void onCatalogueContentChanged(RegistryClient client) {
-    this.catcache.clear();
+  private void onFileDeleted(Path path) {
+    String relativePath = this.getRelativePath(path);
+    this.fileHashes.remove(relativePath);
+    this.dirtyPaths.add(relativePath);
+  }
+
+  /**
+   * Update the push statistics, and the back-off state. The caller must hold {@link #pushLock}.
+   */
+  private void onPushFinished(long startNanos, boolean success) {
+    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    this.lastPushMillis = millis;
+    this.maxPushMillis.accumulateAndGet(millis, Math::max);
+    if (success) {
+      this.successfulPushes.incrementAndGet();
+      this.consecutivePushFailures = 0;
+      this.nextPushAttemptTime = 0;
+    } else {
+      this.failedPushes.incrementAndGet();
+      int failures = this.consecutivePushFailures + 1;
+      this.consecutivePushFailures = failures;
+      long backoff = Math.min(MIN_PUSH_BACKOFF_MILLIS << Math.min(failures - 1, 16),
+          MAX_PUSH_BACKOFF_MILLIS);
+      this.nextPushAttemptTime = System.currentTimeMillis() + backoff;
+      logger.warn("Push failed {} time(s) in a row, next attempt in {} s", failures,
+          backoff / 1000);
+    }
+  }
+
+  /**
+   * @param version The ETag of the new catalogue (empty if there's no catalogue).
+   */
+  private void onCatalogueContentChanged(RegistryClient client, String version) {
     try {
       client.refresh();
     } catch (RefreshFailureException e) {
       logger.error("Local registry client refresh failed: " + e);
     }
+    // Switched only after the refresh, so that no value computed from the previous state of the
+    // client can be cached under the new version.
+    this.catcache.onCatalogueChanged(version);
+  }
+
+  /**
+   * Read the file straight from the git object database (without touching the working copy).
+   */
+  private Optional<byte[]> readHistoricalFile(ObjectId commitId, String relativePath)
+      throws IOException {
+    try (ObjectReader reader = this.git.getRepository().newObjectReader();
+        RevWalk walk = new RevWalk(reader);
+        TreeWalk treeWalk = new TreeWalk(reader)) {
+      treeWalk.addTree(walk.parseCommit(commitId).getTree());
+      treeWalk.setRecursive(true);
+      treeWalk.setFilter(PathFilter.create(relativePath));
+      while (treeWalk.next()) {
+        if (treeWalk.getPathString().equals(relativePath)) {
+          return Optional
+              .of(reader.open(treeWalk.getObjectId(0), Constants.OBJ_BLOB).getBytes());
+        }
+      }
+      return Optional.empty();
+    }
   }
 
   private void removeFromIndex(String url) {
-    this.lock.writeLock().lock();
-    try {
-      this.index.remove(url);
-      this.flushIndex();
-    } finally {
-      this.lock.writeLock().unlock();
+    if (this.index.remove(url)) {
+      this.indexDirty = true;
     }
   }
 
-  private boolean unpushedCommitsExist() throws GitAPIException, ConfigurationException {
-    this.lock.writeLock().lock();
-    try {
-      ObjectId head = this.git.getRepository().resolve("master");
-      ObjectId origin = this.git.getRepository().resolve("origin/master");
-      if (head == null || origin == null) {
-        throw new ConfigurationException(
-            "You need to have 'master' and 'origin/master' branches in your repo.");
+  /**
+   * Stage all changes found in the working copy (the equivalent of "git add --all").
+   *
+   * @return <b>true</b> if the index differs from HEAD afterwards.
+   */
+  private boolean stageAllChanges() throws GitAPIException {
+    this.git.add().addFilepattern(".").call();
+    Status status = this.git.status().call();
+    if (!status.getMissing().isEmpty() || !status.getRemoved().isEmpty()) {
+      RmCommand rm = this.git.rm();
+      for (String deletedFile : Iterables.concat(status.getMissing(), status.getRemoved())) {
+        rm.addFilepattern(deletedFile);
       }
-      Iterable<RevCommit> commits = this.git.log().addRange(origin, head).call();
-      return Iterables.size(commits) > 0;
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+      rm.call();
+    }
+    return this.git.status().call().hasUncommittedChanges();
+  }
+
+  /**
+   * Stage only the {@link #dirtyPaths}, by editing the index directly. Neither the rest of the
+   * working copy, nor the history is scanned.
+   *
+   * @return <b>true</b> if the index differs from HEAD afterwards.
+   */
+  private boolean stageDirtyPaths() throws IOException {
+    Path root = this.getRootPath();
+    DirCache dirCache = this.git.getRepository().lockDirCache();
+    try (ObjectInserter inserter = this.git.getRepository().newObjectInserter()) {
+      DirCacheEditor editor = dirCache.editor();
+      for (String relativePath : this.dirtyPaths) {
+        Path file = root.resolve(relativePath);
+        if (!Files.exists(file)) {
+          editor.add(new DeletePath(relativePath));
+          continue;
+        }
+        byte[] contents = Files.readAllBytes(file);
+        Instant lastModified = Files.getLastModifiedTime(file).toInstant();
+        ObjectId blobId = inserter.insert(Constants.OBJ_BLOB, contents);
+        editor.add(new PathEdit(relativePath) {
+          @Override
+          public void apply(DirCacheEntry entry) {
+            entry.setFileMode(FileMode.REGULAR_FILE);
+            entry.setObjectId(blobId);
+            entry.setLength(contents.length);
+            entry.setLastModified(lastModified);
+          }
+        });
+      }
+      editor.finish();
+      final ObjectId treeId = dirCache.writeTree(inserter);
+      inserter.flush();
+      dirCache.write();
+      if (!dirCache.commit()) {
+        throw new IOException("Could not update the git index");
+      }
+      ObjectId headTreeId = this.git.getRepository().resolve(Constants.HEAD + "^{tree}");
+      if (headTreeId == null) {
+        return dirCache.getEntryCount() > 0;
+      }
+      return !headTreeId.equals(treeId);
     } finally {
-      this.lock.writeLock().unlock();
+      dirCache.unlock();
     }
   }
 
+  /**
+   * Replace the contents of the file, unless they are already equal to the given ones.
+   *
+   * <p>
+   * The new contents are written to a temporary file first (it's kept inside the ".git" directory,
+   * so that it never gets committed), which is then atomically moved in place. This way, readers
+   * never see partially written files.
+   * </p>
+   *
+   * <p>
+   * The caller must hold a lock which protects the given path (see {@link ManifestRepositoryImpl}).
+   * </p>
+   */
   @SuppressFBWarnings("NP_NULL_ON_SOME_PATH_FROM_RETURN_VALUE")
   private boolean writeFile(Path path, byte[] contents) {
-    this.lock.writeLock().lock();
     try {
-
-      byte[] previousContents;
-      if (!Files.exists(path)) {
-        previousContents = null;
-      } else {
-        try {
-          previousContents = Files.readAllBytes(path);
-        } catch (IOException e) {
-          throw new RuntimeException(e);
-        }
-      }
-
-      if (previousContents != null && Arrays.equals(previousContents, contents)) {
+      String relativePath = this.getRelativePath(path);
+      String hash = DigestUtils.sha256Hex(contents);
+      if (hash.equals(this.getStoredFileHash(relativePath, path))) {
         return false;
-      } else {
-        if (path.getParent() != null) {
-          Files.createDirectories(path.getParent());
-        }
-        Files.write(path, contents);
-        return true;
       }
+      if (path.getParent() != null) {
+        Files.createDirectories(path.getParent());
+      }
+      Path tempDir = this.repoProperties.getFileSystem()
+          .getPath(this.git.getRepository().getDirectory().getAbsolutePath(), "ewp-tmp");
+      Files.createDirectories(tempDir);
+      Path temp = tempDir.resolve(UUID.randomUUID() + ".tmp");
+      try {
+        Files.write(temp, contents, StandardOpenOption.CREATE_NEW);
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+      this.fileHashes.put(relativePath, hash);
+      this.dirtyPaths.add(relativePath);
+      return true;
     } catch (IOException e) {
       throw new RuntimeException(e);
-    } finally {
-      this.lock.writeLock().unlock();
     }
   }
 
@@ -601,18 +1245,10 @@ public class ManifestRepositoryImpl implements ManifestRepository {
 
   @Override
   public long getCatalogueLastModified() {
-    if (this.cachedCatalogueContent == null) {
+    CatalogueSnapshot snapshot = this.cachedCatalogue;
+    if (snapshot == null) {
       return 0;
     }
-
-    this.lock.readLock().lock();
-    try {
-      FileTime lastModifiedTime = Files.getLastModifiedTime(getPathForCatalogue());
-      return lastModifiedTime.toMillis();
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    } finally {
-      this.lock.readLock().unlock();
-    }
+    return snapshot.getLastModified();
   }
 }
@@ -12,6 +12,8 @@ public class ManifestRepositoryImplProperties {
   private final String committerName;
   private final String committerEmail;
   private final boolean pushingEnabled;
+  private final long groupCommitWindowMillis;
+  private final long filteredManifestCacheBytes;
 
   /**
    * @param fileSystem value for {@link #getFileSystem()}.
@@ -19,14 +21,19 @@ public class ManifestRepositoryImplProperties {
    * @param committerName value for {@link #getCommitterName()}.
    * @param committerEmail value for {@link #getCommitterEmail()}.
    * @param enablePushing value for {@link #isPushingEnabled()}.
+   * @param groupCommitWindowMillis value for {@link #getGroupCommitWindowMillis()}.
+   * @param filteredManifestCacheBytes value for {@link #getFilteredManifestCacheBytes()}.
    */
   public ManifestRepositoryImplProperties(FileSystem fileSystem, String path, String committerName,
-      String committerEmail, boolean enablePushing) {
+      String committerEmail, boolean enablePushing, long groupCommitWindowMillis,
+      long filteredManifestCacheBytes) {
     this.fileSystem = fileSystem;
     this.path = path;
     this.committerName = committerName;
     this.committerEmail = committerEmail;
     this.pushingEnabled = enablePushing;
+    this.groupCommitWindowMillis = groupCommitWindowMillis;
+    this.filteredManifestCacheBytes = filteredManifestCacheBytes;
   }
 
   /**
@@ -43,6 +50,23 @@ public class ManifestRepositoryImplProperties {
     return this.committerName;
   }
 
+  /**
+   * @return Maximum (approximate) size in bytes of the filtered manifests kept in memory by
+   *         {@link ManifestRepository#getManifestFiltered(String)}. Zero disables the cache.
+   */
+  public long getFilteredManifestCacheBytes() {
+    return this.filteredManifestCacheBytes;
+  }
+
+  /**
+   * @return For how long (in milliseconds) changes passed to
+   *         {@link ManifestRepository#groupCommit(String)} should be collected before they are
+   *         committed together. Zero disables the group-commit mode.
+   */
+  public long getGroupCommitWindowMillis() {
+    return this.groupCommitWindowMillis;
+  }
+
   /**
    * @return {@link FileSystem} implementation to be used for storage. Due to the limits of the
    *         underlying JGit library this needs to be a real file system.
@@ -0,0 +1,95 @@
+package eu.erasmuswithoutpaper.registry.repository;
+
+/**
+ * A snapshot of the counters describing the {@link ManifestRepository#push()} calls.
+ */
+public class PushStatistics {
+
+  private final long successfulPushes;
+  private final long failedPushes;
+  private final int consecutiveFailures;
+  private final long nextAttemptTime;
+  private final long lastPushMillis;
+  private final long maxPushMillis;
+  private final long lastLockWaitMicros;
+  private final long maxLockWaitMicros;
+
+  PushStatistics(long successfulPushes, long failedPushes, int consecutiveFailures,
+      long nextAttemptTime, long lastPushMillis, long maxPushMillis, long lastLockWaitMicros,
+      long maxLockWaitMicros) {
+    this.successfulPushes = successfulPushes;
+    this.failedPushes = failedPushes;
+    this.consecutiveFailures = consecutiveFailures;
+    this.nextAttemptTime = nextAttemptTime;
+    this.lastPushMillis = lastPushMillis;
+    this.maxPushMillis = maxPushMillis;
+    this.lastLockWaitMicros = lastLockWaitMicros;
+    this.maxLockWaitMicros = maxLockWaitMicros;
+  }
+
+  /**
+   * @return Number of failures since the last successful push.
+   */
+  public int getConsecutiveFailures() {
+    return this.consecutiveFailures;
+  }
+
+  /**
+   * @return Number of pushes which have failed (or have been rejected by the remote).
+   */
+  public long getFailedPushes() {
+    return this.failedPushes;
+  }
+
+  /**
+   * @return How long (in microseconds) the last push needed to wait for the repository lock, before
+   *         it was able to take the snapshot of the branch to be pushed.
+   */
+  public long getLastLockWaitMicros() {
+    return this.lastLockWaitMicros;
+  }
+
+  /**
+   * @return How long (in milliseconds) the last push attempt took (excluding the lock wait).
+   */
+  public long getLastPushMillis() {
+    return this.lastPushMillis;
+  }
+
+  /**
+   * @return Maximum value of {@link #getLastLockWaitMicros()} observed so far.
+   */
+  public long getMaxLockWaitMicros() {
+    return this.maxLockWaitMicros;
+  }
+
+  /**
+   * @return Maximum value of {@link #getLastPushMillis()} observed so far.
+   */
+  public long getMaxPushMillis() {
+    return this.maxPushMillis;
+  }
+
+  /**
+   * @return The time (in milliseconds since the epoch) before which no new push attempts will be
+   *         made, because the previous ones have failed. Zero, if the last push was successful.
+   */
+  public long getNextAttemptTime() {
+    return this.nextAttemptTime;
+  }
+
+  /**
+   * @return Number of pushes which have succeeded.
+   */
+  public long getSuccessfulPushes() {
+    return this.successfulPushes;
+  }
+
+  @Override
+  public String toString() {
+    return this.successfulPushes + " pushes, " + this.failedPushes + " failures ("
+        + this.consecutiveFailures + " consecutive), last push " + this.lastPushMillis
+        + " ms (max " + this.maxPushMillis + " ms), last lock wait " + this.lastLockWaitMicros
+        + " us (max " + this.maxLockWaitMicros + " us)";
+  }
+}
@@ -3,12 +3,15 @@ package eu.erasmuswithoutpaper.registry.updater;
 import static org.joox.JOOX.$;
 import static org.w3c.dom.Node.ELEMENT_NODE;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -21,6 +24,8 @@ import javax.xml.parsers.DocumentBuilder;
 import eu.erasmuswithoutpaper.registry.common.Utils;
 import eu.erasmuswithoutpaper.registry.documentbuilder.KnownElement;
 import eu.erasmuswithoutpaper.registry.documentbuilder.KnownNamespace;
+import eu.erasmuswithoutpaper.registry.xmlformatter.PrettyXmlWriter;
+import eu.erasmuswithoutpaper.registry.xmlformatter.XmlFormatter;
 
 import com.google.common.base.Joiner;
 import org.apache.commons.codec.binary.Base64;
@@ -36,39 +41,172 @@ import org.w3c.dom.Node;
  * manifest documents).
  *
  * <p>
+ * The builder is meant to be long-lived. It remembers the contribution of each of the manifest
+ * {@link Document}s it has seen (their host elements, HEI names and IDs, and public keys), so that
+ * rebuilding the catalogue after a single manifest changes doesn't require processing all the other
+ * manifests again. Manifests are recognized by the identity of their {@link Document} objects, so
+ * the caller needs to pass a new {@link Document} whenever a manifest changes.
+ * </p>
+ *
+ * <p>
+ * The catalogue is built directly as a formatted XML string. Only the host elements are formatted
+ * with {@link XmlFormatter} (once per manifest), the merged sections are streamed, so the whole
+ * catalogue is never built (and converted) in memory.
+ * </p>
+ *
+ * <p>
  * It's not a service, because it holds a non-thread-safe {@link #doc} field.
  * </p>
  */
 class CatalogueBuilder {
 
+  /**
+   * The contribution of a single manifest to the catalogue.
+   */
+  private static class ManifestFragment {
+
+    private final List<Element> hostElements = new ArrayList<>();
+    private final Map<String, Map<String, Set<String>>> heiIdTypeSets = new TreeMap<>();
+    private final Map<String, Map<String, Set<String>>> heiLangNameSets = new TreeMap<>();
+
+    /**
+     * Fingerprints of the public keys, mapped to their pretty-printed Base64 representations.
+     */
+    private final Map<String, String> keys = new TreeMap<>();
+
+    /**
+     * The {@link #hostElements}, already formatted by {@link XmlFormatter} (at the nesting level
+     * of the catalogue's children). Computed on first use.
+     */
+    private String hostsXml;
+  }
+
+  /**
+   * The sections of the catalogue which need to be merged from all the manifests.
+   */
+  private static class MergedSections {
+    private final Map<String, Map<String, Set<String>>> heiIdTypeSets = new TreeMap<>();
+    private final Map<String, Map<String, Set<String>>> heiLangNameSets = new TreeMap<>();
+    private final Map<String, String> keys = new TreeMap<>();
+  }
+
   private static final Logger logger = LoggerFactory.getLogger(CatalogueBuilder.class);
 
+  private static final String CATALOGUE_END_TAG = "\n</catalogue>\n";
+
   private final DocumentBuilder docbuilder;
+  private final XmlFormatter xmlFormatter;
 
+  /**
+   * All the host elements from the {@link #fragments} belong to this document. Its root is used
+   * to format them (see {@link #formatHosts(ManifestFragment)}).
+   */
   private Document doc;
 
-  public CatalogueBuilder() {
+  private Element catalogueElem;
+
+  /**
+   * The formatted start tag of the {@link #catalogueElem}.
+   */
+  private String catalogueStartTag;
+
+  private Map<Document, ManifestFragment> fragments = new IdentityHashMap<>();
+
+  /**
+   * @param xmlFormatter to format the catalogue (and its parts).
+   */
+  public CatalogueBuilder(XmlFormatter xmlFormatter) {
     this.docbuilder = Utils.newSecureDocumentBuilder();
+    this.xmlFormatter = xmlFormatter;
   }
 
   /**
-   * Build a catalogue document from the given list of manifests.
+   * Build a formatted catalogue from the given list of manifests.
+   *
+   * <p>
+   * Only the host elements of new manifests get formatted via {@link XmlFormatter} (and then
+   * remembered). The merged sections are streamed directly with a {@link PrettyXmlWriter}.
+   * </p>
    *
    * @param manifests List of {@link Document}s - each MUST contain a VALID (and already filtered)
-   *        Discovery API Manifest document.
-   * @return A new {@link Document} with a valid Registry catalogue response.
+   *        Discovery API Manifest document. These documents MUST NOT be modified after they are
+   *        passed to this method.
+   * @return A formatted XML string with a valid Registry catalogue response.
    */
-  public synchronized Document build(List<Document> manifests) {
+  public synchronized String buildXml(List<Document> manifests) {
 
-    // Create a new document with the <catalogue> root.
+    List<ManifestFragment> used = new ArrayList<>();
+    MergedSections merged = this.collectFragments(manifests, used);
 
-    this.doc = this.docbuilder.newDocument();
-    Element catalogueElem = this.newElem("catalogue");
-    this.doc.appendChild(catalogueElem);
+    StringWriter out = new StringWriter();
+    out.write(this.catalogueStartTag);
+    PrettyXmlWriter writer = new PrettyXmlWriter(out, 1);
+    try {
+      for (ManifestFragment fragment : used) {
+        if (fragment.hostsXml == null) {
+          fragment.hostsXml = this.formatHosts(fragment);
+        }
+        writer.writeFormatted(fragment.hostsXml);
+      }
 
-    Map<String, Map<String, Set<String>>> heiIdTypeSets = new TreeMap<>();
-    Map<String, Map<String, Set<String>>> heiLangNameSets = new TreeMap<>();
-    Map<String, RSAPublicKey> actualKeys = new TreeMap<>();
+      writer.startElement("institutions");
+      for (Map.Entry<String, Map<String, Set<String>>> entry : merged.heiLangNameSets
+          .entrySet()) {
+        writer.startElement("hei");
+        writer.attribute("id", entry.getKey());
+        for (Map.Entry<String, Set<String>> entry2 : merged.heiIdTypeSets.get(entry.getKey())
+            .entrySet()) {
+          for (String id : entry2.getValue()) {
+            writer.startElement("other-id");
+            writer.attribute("type", entry2.getKey());
+            writer.text(id);
+            writer.endElement();
+          }
+        }
+        for (Map.Entry<String, Set<String>> entry3 : entry.getValue().entrySet()) {
+          for (String nameUsed : entry3.getValue()) {
+            writer.startElement("name");
+            if (entry3.getKey().length() > 0) {
+              writer.attribute("xml:lang", entry3.getKey());
+            }
+            writer.text(nameUsed);
+            writer.endElement();
+          }
+        }
+        writer.endElement();
+      }
+      writer.endElement();
+
+      if (!merged.keys.isEmpty()) {
+        writer.startElement("binaries");
+        for (Entry<String, String> entry : merged.keys.entrySet()) {
+          writer.startElement("rsa-public-key");
+          writer.attribute("sha-256", entry.getKey());
+          writer.text(entry.getValue());
+          writer.endElement();
+        }
+        writer.endElement();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e); // won't happen, we're writing to a StringWriter
+    }
+    out.write(CATALOGUE_END_TAG);
+    return out.toString();
+  }
+
+  /**
+   * Find (or compute) the fragments of all the given manifests, and merge their HEIs and keys.
+   * Forget the fragments of all the other manifests.
+   */
+  private MergedSections collectFragments(List<Document> manifests,
+      List<ManifestFragment> used) {
+
+    if (this.doc == null) {
+      this.createCatalogueDocument();
+    }
+
+    MergedSections merged = new MergedSections();
+    Map<Document, ManifestFragment> usedFragments = new IdentityHashMap<>();
 
     // For each of the given manifests...
 
@@ -80,89 +218,40 @@ class CatalogueBuilder {
         continue;
       }
 
-      for (Element hostElement : $(manifestDoc).children()) {
-        catalogueElem.appendChild(getHost(hostElement, heiIdTypeSets, heiLangNameSets, actualKeys));
-      }
-    }
-
-    // Create and append the <institutions> element.
-
-    Element institutions = this.newElem("institutions");
-    catalogueElem.appendChild(institutions);
+      // Reuse its fragment, if we have already seen this manifest.
 
-    // For each of the institutions found in the manifests...
-
-    for (Map.Entry<String, Map<String, Set<String>>> entry : heiLangNameSets.entrySet()) {
-      String heiId = entry.getKey();
-
-      // Append a new <hei id='...'> element to <institutions>.
-
-      Element hei = this.newElem("hei");
-      institutions.appendChild(hei);
-      hei.setAttribute("id", heiId);
-
-      // For each type of <other-id> used for this HEI (among all the manifests)...
-
-      Map<String, Set<String>> idTypeSets = heiIdTypeSets.get(heiId);
-      for (Map.Entry<String, Set<String>> entry2 : idTypeSets.entrySet()) {
-
-        // Create an <other-id> element for each unique ID used.
-
-        for (String id : entry2.getValue()) {
-          Element otherId = this.newElem("other-id", id);
-          hei.appendChild(otherId);
-          otherId.setAttribute("type", entry2.getKey());
-        }
+      ManifestFragment fragment = this.fragments.get(manifestDoc);
+      if (fragment == null) {
+        fragment = this.getFragment(manifestDoc);
       }
+      usedFragments.put(manifestDoc, fragment);
+      used.add(fragment);
 
-      // For each language of <name> used for this HEI (among all the manifests)...
+      mergeSets(merged.heiIdTypeSets, fragment.heiIdTypeSets);
+      mergeSets(merged.heiLangNameSets, fragment.heiLangNameSets);
+      merged.keys.putAll(fragment.keys);
+    }
 
-      Map<String, Set<String>> langNameSets = entry.getValue();
-      for (Map.Entry<String, Set<String>> entry3 : langNameSets.entrySet()) {
-        String lang = entry3.getKey();
+    // Forget the fragments of manifests which are no longer present.
 
-        // Create a <name> element for each unique name used.
+    this.fragments = usedFragments;
+    return merged;
+  }
 
-        for (String nameUsed : entry3.getValue()) {
-          Element name = this.newElem("name", nameUsed);
-          hei.appendChild(name);
-          if (lang.length() > 0) {
-            name.setAttributeNS(XMLConstants.XML_NS_URI, "xml:lang", lang);
-          }
-        }
-      }
-    }
+  private void createCatalogueDocument() {
 
-    // Include all the previously referenced public keys.
-
-    if (!actualKeys.isEmpty()) {
-      Element binariesElem = this.newElem("binaries");
-      catalogueElem.appendChild(binariesElem);
-      for (Entry<String, RSAPublicKey> entry : actualKeys.entrySet()) {
-        Element keyElem = this.newElem("rsa-public-key");
-        binariesElem.appendChild(keyElem);
-        keyElem.setAttribute("sha-256", entry.getKey());
-        // We want binaries "pretty-printed" (chunked and indented).
-        StringBuilder sb = new StringBuilder();
-        sb.append('\n');
-        for (String line : this.getBase64EncodedLines(entry.getValue().getEncoded())) {
-          sb.append("            ");
-          if (line.length() > 0) {
-            sb.append(line);
-            sb.append('\n');
-          }
-        }
-        sb.append("        ");
-        keyElem.setTextContent(sb.toString());
-      }
-    }
+    // Create a new document with the <catalogue> root.
+
+    this.doc = this.docbuilder.newDocument();
+    this.catalogueElem = this.newElem("catalogue");
+    this.doc.appendChild(this.catalogueElem);
 
     // Add xmlns:xxx attributes for most of the KnownNamespace prefixes.
 
     List<String> chunks = new ArrayList<>();
     for (KnownNamespace ns : KnownNamespace.values()) {
       if (ns.isToBeIncludedInCatalogueXmlns() && ns != KnownNamespace.RESPONSE_REGISTRY_V1) {
-        catalogueElem.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+        this.catalogueElem.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
             "xmlns:" + ns.getPreferredPrefix(), ns.getNamespaceUri());
       }
       if (ns.isToBeIncludedInCatalogueXmlns()) {
@@ -173,16 +262,74 @@ class CatalogueBuilder {
     // Compose a proper xsi:schemaLocation attribute.
 
     String schemaLocation = "\n        " + Joiner.on("\n\n        ").join(chunks) + "\n    ";
-    catalogueElem.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:xsi",
+    this.catalogueElem.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:xsi",
         XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI);
-    catalogueElem.setAttributeNS("http://www.w3.org/2001/XMLSchema-instance", "xsi:schemaLocation",
-        schemaLocation);
+    this.catalogueElem.setAttributeNS("http://www.w3.org/2001/XMLSchema-instance",
+        "xsi:schemaLocation", schemaLocation);
+
+    // Remember how the formatter prints its start tag (with a placeholder child).
+
+    this.catalogueElem.appendChild(this.newElem("institutions"));
+    String formatted = this.xmlFormatter.format(this.doc);
+    this.catalogueStartTag = formatted.substring(0, this.getStartTagLength(formatted));
+    this.detachCatalogueChildren();
+  }
 
-    return this.doc;
+  /**
+   * Format the hosts of the given fragment in the context of the catalogue root (so that the same
+   * namespace declarations are in scope), and extract them from the result.
+   */
+  private String formatHosts(ManifestFragment fragment) {
+    if (fragment.hostElements.isEmpty()) {
+      return "";
+    }
+    this.detachCatalogueChildren();
+    for (Element hostElement : fragment.hostElements) {
+      this.catalogueElem.appendChild(hostElement);
+    }
+    String formatted = this.xmlFormatter.format(this.doc);
+    this.detachCatalogueChildren();
+    if (!formatted.endsWith(CATALOGUE_END_TAG)) {
+      throw new RuntimeException("Unexpected formatter output");
+    }
+    return formatted.substring(this.getStartTagLength(formatted),
+        formatted.length() - CATALOGUE_END_TAG.length());
+  }
+
+  private int getStartTagLength(String formatted) {
+    // The root has many attributes, so the formatter puts its closing bracket in a separate line.
+    return formatted.indexOf("\n>") + 2;
+  }
+
+  private void detachCatalogueChildren() {
+    while (this.catalogueElem.getFirstChild() != null) {
+      this.catalogueElem.removeChild(this.catalogueElem.getFirstChild());
+    }
+  }
+
+  private ManifestFragment getFragment(Document manifestDoc) {
+    ManifestFragment fragment = new ManifestFragment();
+    for (Element hostElement : $(manifestDoc).children()) {
+      fragment.hostElements.add(getHost(hostElement, fragment.heiIdTypeSets,
+          fragment.heiLangNameSets, fragment.keys));
+    }
+    return fragment;
+  }
+
+  private static void mergeSets(Map<String, Map<String, Set<String>>> target,
+      Map<String, Map<String, Set<String>>> source) {
+    for (Map.Entry<String, Map<String, Set<String>>> entry : source.entrySet()) {
+      Map<String, Set<String>> targetSets =
+          target.computeIfAbsent(entry.getKey(), k -> new TreeMap<>());
+      for (Map.Entry<String, Set<String>> entry2 : entry.getValue().entrySet()) {
+        targetSets.computeIfAbsent(entry2.getKey(), k -> new TreeSet<>())
+            .addAll(entry2.getValue());
+      }
+    }
   }
 
   private Element getHost(Element srcHostElem, Map<String, Map<String, Set<String>>> heiIdTypeSets,
-      Map<String, Map<String, Set<String>>> heiLangNameSets, Map<String, RSAPublicKey> actualKeys) {
+      Map<String, Map<String, Set<String>>> heiLangNameSets, Map<String, String> actualKeys) {
     Element destHostElem = this.newElem("host");
     Element destApisElem = this.newElem("apis-implemented");
     Element destCliCreds = this.newElem("client-credentials-in-use");
@@ -230,7 +377,7 @@ class CatalogueBuilder {
     return destHostElem;
   }
 
-  private void addKey(Node node, Map<String, RSAPublicKey> actualKeys, Element destCreds) {
+  private void addKey(Node node, Map<String, String> actualKeys, Element destCreds) {
     for (Node credential : Utils.asNodeList(node.getChildNodes())) {
       if ("rsa-public-key".equals(credential.getLocalName())) {
         RSAPublicKey key = this.parseValidRsaPublicKey(credential.getTextContent());
@@ -238,7 +385,9 @@ class CatalogueBuilder {
         String fingerprint = DigestUtils.sha256Hex(key.getEncoded());
         destKeyElem.setAttribute("sha-256", fingerprint);
         destCreds.appendChild(destKeyElem);
-        actualKeys.put(fingerprint, key);
+        if (!actualKeys.containsKey(fingerprint)) {
+          actualKeys.put(fingerprint, this.getPrettyBase64(key.getEncoded()));
+        }
       }
     }
   }
@@ -289,6 +438,23 @@ class CatalogueBuilder {
     return destHeisElem;
   }
 
+  /**
+   * We want binaries "pretty-printed" (chunked and indented).
+   */
+  private String getPrettyBase64(byte[] data) {
+    StringBuilder sb = new StringBuilder();
+    sb.append('\n');
+    for (String line : this.getBase64EncodedLines(data)) {
+      sb.append("            ");
+      if (line.length() > 0) {
+        sb.append(line);
+        sb.append('\n');
+      }
+    }
+    sb.append("        ");
+    return sb.toString();
+  }
+
   private String[] getBase64EncodedLines(byte[] data) {
     Base64 encoder = new Base64(76, new byte[] { '\n' });
     String encoded = encoder.encodeToString(data);
@@ -0,0 +1,240 @@
+package eu.erasmuswithoutpaper.registry.updater;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import eu.erasmuswithoutpaper.registry.internet.FetchedUrl;
+import eu.erasmuswithoutpaper.registry.internet.Internet;
+import eu.erasmuswithoutpaper.registry.sourceprovider.ManifestSource;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Downloads the contents of {@link ManifestSource}s, possibly many of them in parallel.
+ *
+ * <p>
+ * Fetching is the slowest part of the reload cycle (each request may block for many seconds if the
+ * partner's server is slow), but it doesn't need access to the {@link
+ * eu.erasmuswithoutpaper.registry.repository.ManifestRepository}. {@link RegistryUpdaterImpl}
+ * uses this service to download all manifests first, and only then imports them one by one.
+ * </p>
+ *
+ * <p>
+ * The number of concurrent downloads is limited globally (by the size of the thread pool), and
+ * per single host (so that we don't flood partners which serve many manifests). The per-host limit
+ * is applied before the downloads are handed over to the thread pool: the surplus manifests of a
+ * host wait in that host's queue, so they don't occupy threads which other hosts could use.
+ * </p>
+ */
+@Service
+@ConditionalOnWebApplication
+public class ManifestFetcher implements DisposableBean {
+
+  /**
+   * The result of a single fetch attempt. Holds either the contents, or the error which occurred.
+   */
+  public static class FetchedManifest {
+
+    private final Date attemptDate;
+    private final FetchedUrl fetched;
+    private final IOException error;
+
+    private FetchedManifest(Date attemptDate, FetchedUrl fetched, IOException error) {
+      this.attemptDate = new Date(attemptDate.getTime());
+      this.fetched = fetched;
+      this.error = error;
+    }
+
+    /**
+     * @return The moment at which we have started to fetch the manifest.
+     */
+    public Date getAttemptDate() {
+      return new Date(this.attemptDate.getTime());
+    }
+
+    /**
+     * @return The fetched contents of the manifest.
+     * @throws IOException The exception reported by {@link Internet#fetchUrl(String)}, if fetching
+     *         has failed.
+     */
+    public byte[] getContents() throws IOException {
+      if (this.error != null) {
+        throw this.error;
+      }
+      return this.fetched.getContents();
+    }
+
+    /**
+     * @return The statistics of the transfer (bytes transferred and transfer time), or empty, if
+     *         fetching has failed.
+     */
+    public Optional<FetchedUrl> getTransfer() {
+      return Optional.ofNullable(this.fetched);
+    }
+  }
+
+  /**
+   * Fetches of a single host: the number of them being run, and those waiting for their turn.
+   * Guarded by {@link ManifestFetcher#hostQueues}.
+   */
+  private static class HostQueue {
+    private final Deque<FutureTask<FetchedManifest>> pending = new ArrayDeque<>();
+    private int running;
+  }
+
+  private final Internet internet;
+  private final int threadsPerHost;
+  private final ExecutorService executor;
+  private final Map<String, HostQueue> hostQueues = new HashMap<>();
+
+  /**
+   * @param internet to fetch the manifest contents.
+   * @param threads the maximum number of manifests fetched at the same time.
+   * @param threadsPerHost the maximum number of manifests fetched from the same host at the same
+   *        time.
+   */
+  @Autowired
+  public ManifestFetcher(Internet internet, @Value("${app.manifest-fetch.threads}") int threads,
+      @Value("${app.manifest-fetch.threads-per-host}") int threadsPerHost) {
+    this.internet = internet;
+    this.threadsPerHost = threadsPerHost;
+    this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(),
+        new ThreadFactoryBuilder().setNameFormat("manifest-fetcher-%d").setDaemon(true).build());
+    ((ThreadPoolExecutor) this.executor).allowCoreThreadTimeOut(true);
+  }
+
+  @Override
+  public void destroy() {
+    this.executor.shutdownNow();
+  }
+
+  /**
+   * Fetch a single manifest in the calling thread.
+   *
+   * @param source The source to fetch.
+   * @return The result of the fetch (successful or not).
+   */
+  public FetchedManifest fetch(ManifestSource source) {
+    Date attemptDate = new Date();
+    try {
+      return new FetchedManifest(attemptDate, this.internet.fetchUrl(source.getUrl()), null);
+    } catch (IOException e) {
+      return new FetchedManifest(attemptDate, null, e);
+    }
+  }
+
+  /**
+   * Fetch all the given manifests in parallel. Return only after all of them have been fetched
+   * (or have failed to be fetched).
+   *
+   * @param sources The sources to fetch.
+   * @return The list of results, in the same order as the given sources.
+   */
+  public List<FetchedManifest> fetchAll(List<ManifestSource> sources) {
+    List<FutureTask<FetchedManifest>> tasks = new ArrayList<>(sources.size());
+    for (ManifestSource source : sources) {
+      FutureTask<FetchedManifest> task = new FutureTask<>(() -> this.fetch(source));
+      tasks.add(task);
+      this.dispatch(getHost(source.getUrl()), task);
+    }
+
+    List<FetchedManifest> results = new ArrayList<>(sources.size());
+    for (int i = 0; i < tasks.size(); i++) {
+      try {
+        results.add(tasks.get(i).get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        for (FutureTask<FetchedManifest> task : tasks) {
+          task.cancel(true);
+        }
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Hand the task over to the thread pool, or queue it, if the host already has as many fetches
+   * running as it is allowed to. This way, a host which serves many manifests never occupies more
+   * than {@link #threadsPerHost} threads, and the other hosts' manifests don't wait behind it.
+   */
+  private void dispatch(String host, FutureTask<FetchedManifest> task) {
+    synchronized (this.hostQueues) {
+      HostQueue queue = this.hostQueues.computeIfAbsent(host, h -> new HostQueue());
+      if (queue.running >= this.threadsPerHost) {
+        queue.pending.add(task);
+        return;
+      }
+      queue.running++;
+    }
+    this.execute(host, task);
+  }
+
+  private void execute(String host, FutureTask<FetchedManifest> task) {
+    try {
+      this.executor.execute(() -> {
+        try {
+          task.run();
+        } finally {
+          this.onFinished(host);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // We are being shut down. Nobody should wait for this task (nor for the queued ones).
+      task.cancel(false);
+      this.onFinished(host);
+    }
+  }
+
+  /**
+   * Called after a task of the given host has finished. Start the next queued task of this host
+   * (if any).
+   */
+  private void onFinished(String host) {
+    FutureTask<FetchedManifest> next;
+    synchronized (this.hostQueues) {
+      HostQueue queue = this.hostQueues.get(host);
+      next = queue.pending.poll();
+      if (next == null) {
+        queue.running--;
+        if (queue.running == 0) {
+          this.hostQueues.remove(host);
+        }
+        return;
+      }
+    }
+    this.execute(host, next);
+  }
+
+  private static String getHost(String url) {
+    try {
+      return new URL(url).getHost();
+    } catch (MalformedURLException e) {
+      return "";
+    }
+  }
+}
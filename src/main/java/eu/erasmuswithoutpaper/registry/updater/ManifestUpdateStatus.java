@@ -6,6 +6,7 @@ import java.util.List;
 import java.util.Optional;
 
 import eu.erasmuswithoutpaper.registry.common.Severity;
+import eu.erasmuswithoutpaper.registry.internet.FetchedUrl;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 
 import com.google.gson.Gson;
@@ -55,6 +56,10 @@ public class ManifestUpdateStatus {
   @Column(name = "last_access_notices_json")
   private String lastAccessNoticesJson;
 
+  private Long lastBytesTransferred;
+
+  private Long lastTransferMillis;
+
   /**
    * Needed for Hibernate. Don't use explicitly.
    */
@@ -113,6 +118,32 @@ public class ManifestUpdateStatus {
     return result;
   }
 
+  /**
+   * @return The number of bytes transferred when the manifest was last fetched (before
+   *         decompression). Empty, if the last attempt to fetch it has failed.
+   */
+  public Optional<Long> getLastBytesTransferred() {
+    return Optional.ofNullable(this.lastBytesTransferred);
+  }
+
+  /**
+   * @return The time it took to fetch the manifest last time (in milliseconds). Empty, if the last
+   *         attempt to fetch it has failed.
+   */
+  public Optional<Long> getLastTransferMillis() {
+    return Optional.ofNullable(this.lastTransferMillis);
+  }
+
+  /**
+   * @return The statistics of the last transfer, formatted for humans.
+   */
+  public String getLastTransferFormatted() {
+    if (this.lastBytesTransferred == null) {
+      return "(none)";
+    }
+    return this.lastBytesTransferred + " bytes in " + this.lastTransferMillis + " ms";
+  }
+
   /**
    * @return The URL of the manifest who's update status is being described by this entity.
    */
@@ -134,6 +165,21 @@ public class ManifestUpdateStatus {
     this.lastAccessFlagStatus = severity.getIntegerValue();
   }
 
+  /**
+   * @param transfer the statistics of the last transfer, or null if the last attempt to fetch the
+   *        manifest has failed. See {@link #getLastBytesTransferred()} and
+   *        {@link #getLastTransferMillis()}.
+   */
+  public void setLastTransfer(FetchedUrl transfer) {
+    if (transfer == null) {
+      this.lastBytesTransferred = null;
+      this.lastTransferMillis = null;
+    } else {
+      this.lastBytesTransferred = transfer.getBytesTransferred();
+      this.lastTransferMillis = transfer.getTransferMillis();
+    }
+  }
+
   /**
    * @param notices see {@link #getLastAccessNotices()}.
    */
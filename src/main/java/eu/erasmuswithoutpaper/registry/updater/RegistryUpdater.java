@@ -39,4 +39,18 @@ public interface RegistryUpdater {
    *        from the {@link ManifestSourceProvider#getAll()} list!
    */
   void reloadManifestSource(ManifestSource manifestSource);
+
+  /**
+   * Schedule a reload of a single {@link ManifestSource} and return immediately.
+   *
+   * <p>
+   * Reloads scheduled within a short time window are coalesced, and run as a single batch, so the
+   * catalogue is rebuilt (and the changes are committed) only once per batch. See
+   * {@link #reloadManifestSource(ManifestSource)} for details on the process.
+   * </p>
+   *
+   * @param manifestSource {@link ManifestSource} to be reloaded. It SHOULD be one of the sources
+   *        from the {@link ManifestSourceProvider#getAll()} list!
+   */
+  void scheduleManifestSourceReload(ManifestSource manifestSource);
 }
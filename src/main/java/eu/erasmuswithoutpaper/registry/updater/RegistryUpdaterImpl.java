@@ -4,14 +4,17 @@ import static org.joox.JOOX.$;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import eu.erasmuswithoutpaper.registry.common.Severity;
 import eu.erasmuswithoutpaper.registry.common.Severity.OneOfTheValuesIsUndetermined;
@@ -22,7 +25,6 @@ import eu.erasmuswithoutpaper.registry.documentbuilder.BuildError;
 import eu.erasmuswithoutpaper.registry.documentbuilder.BuildParams;
 import eu.erasmuswithoutpaper.registry.documentbuilder.EwpDocBuilder;
 import eu.erasmuswithoutpaper.registry.documentbuilder.KnownNamespace;
-import eu.erasmuswithoutpaper.registry.internet.Internet;
 import eu.erasmuswithoutpaper.registry.manifestoverview.ManifestOverviewManager;
 import eu.erasmuswithoutpaper.registry.notifier.NotifierFlag;
 import eu.erasmuswithoutpaper.registry.notifier.NotifierService;
@@ -31,11 +33,20 @@ import eu.erasmuswithoutpaper.registry.repository.ManifestNotFound;
 import eu.erasmuswithoutpaper.registry.repository.ManifestRepository;
 import eu.erasmuswithoutpaper.registry.sourceprovider.ManifestSource;
 import eu.erasmuswithoutpaper.registry.sourceprovider.ManifestSourceProvider;
+import eu.erasmuswithoutpaper.registry.updater.ManifestFetcher.FetchedManifest;
 import eu.erasmuswithoutpaper.registry.updater.ManifestParser.NotValidManifest;
 import eu.erasmuswithoutpaper.registry.xmlformatter.XmlFormatter;
+import eu.erasmuswithoutpaper.registryclient.CatalogueFetcher.Http200RegistryResponse;
+import eu.erasmuswithoutpaper.registryclient.ClientImpl;
+import eu.erasmuswithoutpaper.registryclient.ClientImplOptions;
 import eu.erasmuswithoutpaper.registryclient.RegistryClient;
+import eu.erasmuswithoutpaper.registryclient.RegistryClient.RefreshFailureException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.stereotype.Service;
 
 import com.google.common.collect.Sets;
@@ -60,24 +71,99 @@ public class RegistryUpdaterImpl implements RegistryUpdater {
 
   private static final Logger logger = LoggerFactory.getLogger(RegistryUpdaterImpl.class);
 
+  /**
+   * The result of processing a freshly fetched manifest, ready to be stored in the repository.
+   */
+  private static class ProcessedManifest {
+
+    private final byte[] originalContents;
+    private final Document document;
+    private final String filteredContents;
+    private final List<UpdateNotice> notices;
+    private final Severity severity;
+
+    /**
+     * @param document the filtered document, or null if the manifest wasn't valid.
+     * @param filteredContents the formatted filtered document, or null if the manifest wasn't
+     *        valid.
+     */
+    ProcessedManifest(byte[] originalContents, Document document, String filteredContents,
+        List<UpdateNotice> notices, Severity severity) {
+      this.originalContents = originalContents;
+      this.document = document;
+      this.filteredContents = filteredContents;
+      this.notices = notices;
+      this.severity = severity;
+    }
+  }
+
   private final ManifestSourceProvider manifestSourceProvider;
   private final ManifestUpdateStatusRepository manifestUpdateStatusRepository;
-  private final Internet internet;
+  private final ManifestFetcher fetcher;
   private final ManifestRepository repo;
   private final EwpDocBuilder docBuilder;
   private final XmlFormatter xmlFormatter;
+
+  /**
+   * Modified by {@link #onSourcesUpdated()} under the repository write lock, but read by the
+   * imports, which don't hold any repository locks at that point.
+   */
   private final Map<ManifestSource, ManifestUpdateStatusNotifierFlag> notifierFlags;
   private final NotifierService notifier;
   private final ManifestParser parser;
   private final ManifestOverviewManager manifestOverviewManager;
   private final RegistryClient registryClient;
   private final Map<String, Document> cachedManifestsMap;
+  private final CatalogueBuilder catalogueBuilder;
+  private final TaskExecutor taskExecutor;
+  private final TaskScheduler taskScheduler;
+  private final long reloadDebounceMillis;
+
+  /**
+   * Changes which have been stored in the repository, but not yet committed (nor reflected in the
+   * catalogue and in the manifest overview). Keys are manifest URLs, values are the lines to be
+   * included in the commit message. Guarded by the repository write lock, or by the repository
+   * read lock together with the monitor of this map (see {@link #storeManifest}).
+   */
+  private final Map<String, String> pendingChanges;
+
+  /**
+   * True, if some filtered manifests have changed since the catalogue was last rebuilt. Guarded the
+   * same way as {@link #pendingChanges}.
+   */
+  private boolean catalogueDirty;
+
+  /**
+   * The filtered manifests the catalogue was last built from, keyed by their URLs. Guarded the
+   * same way as {@link #pendingChanges}.
+   */
+  private Map<String, Document> catalogueManifests;
+
+  /**
+   * The filtered manifests which have changed since the catalogue was last built, keyed by their
+   * URLs. Guarded the same way as {@link #pendingChanges}.
+   */
+  private final Map<String, Document> pendingManifests;
+
+  /**
+   * A client of the catalogue built in memory from the {@link #catalogueManifests} with the
+   * {@link #pendingManifests} applied. Created on demand (see {@link #getCatalogueView()}), and
+   * dropped whenever the pending manifests change. Guarded the same way as
+   * {@link #pendingChanges}.
+   */
+  private RegistryClient catalogueView;
+
+  /**
+   * Sources queued by {@link #scheduleManifestSourceReload(ManifestSource)}. Guarded by itself.
+   */
+  private final Set<ManifestSource> scheduledReloads;
+  private boolean scheduledReloadsDrainPending;
 
   /**
    * @param manifestSourceProvider         to get the list of Manifest sources.
    * @param manifestUpdateStatusRepository to manage the {@link ManifestUpdateStatus}es, for each of
    *                                       the manifests.
-   * @param internet                       to fetch the manifest contents.
+   * @param fetcher                        to fetch the manifest contents.
    * @param repo                           to store the new content of the fetched manifests.
    * @param docBuilder                     to parse the manifests.
    * @param xmlFormatter                   to format the filtered versions of the manifests.
@@ -87,25 +173,39 @@ public class RegistryUpdaterImpl implements RegistryUpdater {
    *         {@link eu.erasmuswithoutpaper.registry.manifestoverview.ManifestOverviewInfo} for
    *         each of covered manifests.
    * @param registryClient                 to be able to check current catalogue state.
+   * @param taskExecutor                   to run the scheduled (debounced) reloads.
+   * @param taskScheduler                  to delay the scheduled reloads.
+   * @param reloadDebounceMillis           how long to wait for more reload requests before
+   *                                       running the scheduled reloads.
    */
   @Autowired
   public RegistryUpdaterImpl(ManifestSourceProvider manifestSourceProvider,
-      ManifestUpdateStatusRepository manifestUpdateStatusRepository, Internet internet,
+      ManifestUpdateStatusRepository manifestUpdateStatusRepository, ManifestFetcher fetcher,
       ManifestRepository repo, EwpDocBuilder docBuilder, XmlFormatter xmlFormatter,
       NotifierService notifier, ManifestParser parser,
-      ManifestOverviewManager manifestOverviewManager, RegistryClient registryClient) {
+      ManifestOverviewManager manifestOverviewManager, RegistryClient registryClient,
+      @Qualifier("customTaskExecutor") TaskExecutor taskExecutor, TaskScheduler taskScheduler,
+      @Value("${app.manifest-reload.debounce-millis}") long reloadDebounceMillis) {
     this.manifestSourceProvider = manifestSourceProvider;
     this.manifestUpdateStatusRepository = manifestUpdateStatusRepository;
-    this.internet = internet;
+    this.fetcher = fetcher;
     this.repo = repo;
     this.docBuilder = docBuilder;
     this.xmlFormatter = xmlFormatter;
     this.notifier = notifier;
     this.manifestOverviewManager = manifestOverviewManager;
     this.registryClient = registryClient;
-    this.notifierFlags = new HashMap<>();
+    this.notifierFlags = new ConcurrentHashMap<>();
     this.parser = parser;
     this.cachedManifestsMap = new HashMap<>();
+    this.catalogueBuilder = new CatalogueBuilder(xmlFormatter);
+    this.taskExecutor = taskExecutor;
+    this.taskScheduler = taskScheduler;
+    this.reloadDebounceMillis = reloadDebounceMillis;
+    this.pendingChanges = new LinkedHashMap<>();
+    this.catalogueManifests = Collections.emptyMap();
+    this.pendingManifests = new LinkedHashMap<>();
+    this.scheduledReloads = new LinkedHashSet<>();
     if (this.manifestSourceProvider.getAll() != null) {
       this.onSourcesUpdated();
     }
@@ -225,13 +325,70 @@ public class RegistryUpdaterImpl implements RegistryUpdater {
       return;
     }
 
-    for (ManifestSource source : manifestProviders) {
-      this.reloadManifestSource(source);
-    }
+    this.reloadManifestSources(manifestProviders);
   }
 
   @Override
   public void reloadManifestSource(ManifestSource source) {
+    this.reloadManifestSources(Collections.singletonList(source));
+  }
+
+  @Override
+  public void scheduleManifestSourceReload(ManifestSource source) {
+    synchronized (this.scheduledReloads) {
+      this.scheduledReloads.add(source);
+      if (this.scheduledReloadsDrainPending) {
+        // It will be picked up by the already scheduled run.
+        return;
+      }
+      this.scheduledReloadsDrainPending = true;
+    }
+    if (this.reloadDebounceMillis > 0) {
+      // The scheduler only hands the reloads over to the executor, so it's never held up by them.
+      this.taskScheduler.schedule(() -> this.taskExecutor.execute(this::runScheduledReloads),
+          Instant.now().plusMillis(this.reloadDebounceMillis));
+    } else {
+      this.taskExecutor.execute(this::runScheduledReloads);
+    }
+  }
+
+  private void runScheduledReloads() {
+    List<ManifestSource> sources;
+    synchronized (this.scheduledReloads) {
+      sources = new ArrayList<>(this.scheduledReloads);
+      this.scheduledReloads.clear();
+      this.scheduledReloadsDrainPending = false;
+    }
+    this.reloadManifestSources(sources);
+  }
+
+  /**
+   * Reload the given sources as a single batch. The catalogue, the manifest overview and the
+   * repository commit are updated only once, after all the sources have been imported.
+   */
+  private void reloadManifestSources(List<ManifestSource> sources) {
+
+    /*
+     * Fetching is done in parallel (and without holding any locks), so that slow partners don't
+     * delay each other. Importing the fetched contents is still done sequentially.
+     */
+
+    List<FetchedManifest> fetched = this.fetcher.fetchAll(sources);
+    try {
+      for (int i = 0; i < sources.size(); i++) {
+        this.importManifestSource(sources.get(i), fetched.get(i));
+      }
+    } finally {
+      this.repo.acquireWriteLock();
+      try {
+        this.flushPendingChanges();
+      } finally {
+        this.repo.releaseWriteLock();
+      }
+    }
+  }
+
+  private void importManifestSource(ManifestSource source, FetchedManifest fetched) {
 
     // Get the flag for this source.
 
@@ -245,10 +402,6 @@ public class RegistryUpdaterImpl implements RegistryUpdater {
       throw new RuntimeException("notifierFlags were not updated");
     }
 
-    // This will hold our list of notices/warnings.
-
-    List<UpdateNotice> notices = new ArrayList<>();
-
     // Fetch the previous status from the database, or create a new one.
     String sourceUrl = source.getUrl();
     ManifestUpdateStatus status = this.manifestUpdateStatusRepository
@@ -258,157 +411,318 @@ public class RegistryUpdaterImpl implements RegistryUpdater {
 
       // Update the last access attempt.
 
-      status.setLastAccessAttempt(new Date());
+      status.setLastAccessAttempt(fetched.getAttemptDate());
+      status.setLastTransfer(fetched.getTransfer().orElse(null));
 
       // Read the original contents from the source.
 
       byte[] originalContents;
       try {
-        originalContents = this.internet.getUrl(source.getUrl());
+        originalContents = fetched.getContents();
       } catch (IOException e) {
         StringBuilder sb = new StringBuilder();
         sb.append("<p>The Registry was unable to fetch the manifest from its location.\n");
         sb.append("The IOException reported was:</p>");
         sb.append("<p><code>" + Utils.escapeHtml(e.toString()) + "</code></p>");
+        List<UpdateNotice> notices = new ArrayList<>();
         notices.add(new UpdateNotice(Severity.ERROR, sb.toString()));
         status.setLastAccessFlagStatus(Severity.ERROR);
         status.setLastAccessNotices(notices);
         return;
       }
 
-      // Lock the manifest repository for exclusive read and write access.
+      /*
+       * Parsing, validating, filtering and formatting work on our private copy of the document,
+       * so we can do all of that before we lock the repository.
+       */
 
-      this.repo.acquireWriteLock();
+      RegistryClient catalogue = this.registryClient; // NOPMD not ours to close
+      if (this.dependsOnCatalogue(source)) {
+        /*
+         * Some of the constraints need to see all the previously imported manifests, including
+         * those imported earlier in this batch. The catalogue itself is rebuilt only once the
+         * whole batch is imported, so these constraints get an in-memory view of it.
+         */
+        catalogue = this.getCatalogueView();
+      }
+      ProcessedManifest processed = this.processManifest(source, originalContents, catalogue);
+
+      /*
+       * Storing a single manifest doesn't need the global barrier. The repository synchronizes
+       * access to the manifest files by itself, so the readers of other manifests are not blocked.
+       */
+
+      this.repo.acquireReadLock();
       try {
+        this.storeManifest(source, notifierFlag, processed);
+      } finally {
+        this.repo.releaseReadLock();
+      }
 
-        // Store the original contents to the repository.
+      // Update the manifest status.
 
-        this.repo.putOriginalManifest(source.getUrl(), originalContents);
+      status.setLastAccessFlagStatus(processed.severity);
+      status.setLastAccessNotices(processed.notices);
 
-        // Try to read it (and dynamically convert it to version 5).
+    } finally {
+      this.manifestUpdateStatusRepository.save(status);
+      if (!status.getLastAccessNotices().isEmpty()) {
+        logger.info("Manifest update notices for url: {}, notifier flag name: {}, notices: {}",
+            status.getUrl(), notifierFlag.getName(), status.getLastAccessNotices());
+      }
+      notifierFlag.setStatus(status.getLastAccessFlagStatus());
 
-        Document doc;
-        List<BuildError> nonLethalErrors = new ArrayList<>();
-        try {
-          doc = this.parser.parseManifest(originalContents, nonLethalErrors);
-        } catch (NotValidManifest e) {
-          // The manifest failed basic validation. We cannot continue.
-
-          this.repo.commit("Update original (invalid!) contents of manifest: " + source.getUrl());
-          notices.add(new UpdateNotice(Severity.ERROR,
-              "The file doesn't contain a proper supported manifest element. "
-                  + "The manifest will not be imported. We will keep serving the last "
-                  + "successfully imported version of this manifest, if we have one."));
-          for (String error : e.getErrorList()) {
-            notices.add(new UpdateNotice(Severity.ERROR, Utils.escapeHtml(error)));
-          }
-          status.setLastAccessFlagStatus(Severity.ERROR);
-          status.setLastAccessNotices(notices);
-          return;
-        }
+      logger.info("Reloading " + source.getUrl() + " ("
+          + status.getLastAccessFlagStatus().toString()
+          + fetched.getTransfer().map(transfer -> ", fetched " + transfer).orElse("") + ")");
+    }
+  }
 
-        Severity noticesSeverity = Severity.OK;
+  /**
+   * Parse, validate, filter and format the fetched manifest. This doesn't touch the repository.
+   */
+  private ProcessedManifest processManifest(ManifestSource source, byte[] originalContents,
+      RegistryClient catalogue) {
 
-        if (!nonLethalErrors.isEmpty()) {
-          notices.add(new UpdateNotice(Severity.WARNING,
-              "This file contains some invalid elements inside one of "
-                  + "<code>&lt;apis-implemented&gt;<code> elements."
-                  + " This manifest will be imported but incorrect APIs will be ignored."));
-          for (BuildError error : nonLethalErrors) {
-            notices.add(new UpdateNotice(Severity.WARNING, Utils.escapeHtml(error.getMessage())));
-          }
-          noticesSeverity = Severity.WARNING;
-        }
+    // This will hold our list of notices/warnings.
 
-        /*
-         * The contents passed XML Schema validation, but they are still unsafe. We need to create
-         * the filtered version of these contents. We do this by applying all the filters which has
-         * been connected to this manifest source.
-         *
-         * Filters may generate additional notices. These notices won't prevent the whole manifest
-         * from being imported, but the filtering process may also change (or remove) parts of the
-         * manifest document.
-         */
+    List<UpdateNotice> notices = new ArrayList<>();
 
-        for (ManifestConstraint constraint : source.getConstraints()) {
-          for (FailedConstraintNotice notice : constraint.filter(doc, registryClient)) {
-            // We are converting one type of notice to another.
-            notices.add(new UpdateNotice(notice.getSeverity(), notice.getMessageHtml()));
-            try {
-              if (notice.getSeverity().isMoreSevereThan(noticesSeverity)) {
-                noticesSeverity = notice.getSeverity();
-              }
-            } catch (OneOfTheValuesIsUndetermined e) {
-              throw new RuntimeException(e); // won't happen
-            }
+    // Try to read it (and dynamically convert it to version 5).
+
+    Document doc;
+    List<BuildError> nonLethalErrors = new ArrayList<>();
+    try {
+      doc = this.parser.parseManifest(originalContents, nonLethalErrors);
+    } catch (NotValidManifest e) {
+      // The manifest failed basic validation. We cannot continue.
+
+      notices.add(new UpdateNotice(Severity.ERROR,
+          "The file doesn't contain a proper supported manifest element. "
+              + "The manifest will not be imported. We will keep serving the last "
+              + "successfully imported version of this manifest, if we have one."));
+      for (String error : e.getErrorList()) {
+        notices.add(new UpdateNotice(Severity.ERROR, Utils.escapeHtml(error)));
+      }
+      return new ProcessedManifest(originalContents, null, null, notices, Severity.ERROR);
+    }
+
+    Severity noticesSeverity = Severity.OK;
+
+    if (!nonLethalErrors.isEmpty()) {
+      notices.add(new UpdateNotice(Severity.WARNING,
+          "This file contains some invalid elements inside one of "
+              + "<code>&lt;apis-implemented&gt;<code> elements."
+              + " This manifest will be imported but incorrect APIs will be ignored."));
+      for (BuildError error : nonLethalErrors) {
+        notices.add(new UpdateNotice(Severity.WARNING, Utils.escapeHtml(error.getMessage())));
+      }
+      noticesSeverity = Severity.WARNING;
+    }
+
+    /*
+     * The contents passed XML Schema validation, but they are still unsafe. We need to create the
+     * filtered version of these contents. We do this by applying all the filters which has been
+     * connected to this manifest source.
+     *
+     * Filters may generate additional notices. These notices won't prevent the whole manifest from
+     * being imported, but the filtering process may also change (or remove) parts of the manifest
+     * document.
+     */
+
+    for (ManifestConstraint constraint : source.getConstraints()) {
+      for (FailedConstraintNotice notice : constraint.filter(doc, catalogue)) {
+        // We are converting one type of notice to another.
+        notices.add(new UpdateNotice(notice.getSeverity(), notice.getMessageHtml()));
+        try {
+          if (notice.getSeverity().isMoreSevereThan(noticesSeverity)) {
+            noticesSeverity = notice.getSeverity();
           }
+        } catch (OneOfTheValuesIsUndetermined e) {
+          throw new RuntimeException(e); // won't happen
         }
+      }
+    }
 
-        /*
-         * The document is now filtered and safe. We need to store the filtered version to the
-         * repository. First, we will run a formatter against it.
-         */
+    /*
+     * The document is now filtered and safe. Before it gets stored in the repository, we will run
+     * a formatter against it.
+     */
 
-        String filteredContents = this.xmlFormatter.format(doc);
-        boolean changed = this.repo.putFilteredManifest(source.getUrl(), filteredContents);
+    String filteredContents = this.xmlFormatter.format(doc);
+    return new ProcessedManifest(originalContents, doc, filteredContents, notices,
+        noticesSeverity);
+  }
 
-        // If anything changed...
+  /**
+   * Store the results of {@link #processManifest} in the repository. The
+   * caller must hold (at least) the repository read lock.
+   */
+  private void storeManifest(ManifestSource source, ManifestUpdateStatusNotifierFlag notifierFlag,
+      ProcessedManifest processed) {
 
-        if (changed) {
-          this.cachedManifestsMap.remove(source.getUrl());
+    // Store the original contents to the repository.
 
-          // Update the list of our notifierFlag's recipients.
+    this.repo.putOriginalManifest(source.getUrl(), processed.originalContents);
 
-          Match manifest = $(doc).namespaces(KnownNamespace.prefixMap());
-          List<String> emails = manifest.xpath("mf6:host/ewp:admin-email").texts();
-          notifierFlag.setRecipientEmails(emails);
-          this.onManifestAdminEmailsChanged(source.getUrl(), emails);
+    if (processed.filteredContents == null) {
+      synchronized (this.pendingChanges) {
+        this.pendingChanges.putIfAbsent(source.getUrl(), describeChange(
+            "Update original (invalid!) contents of manifest", source, processed));
+      }
+      return;
+    }
 
-          // Update the catalogue too.
+    boolean changed = this.repo.putFilteredManifest(source.getUrl(), processed.filteredContents);
 
-          this.updateTheCatalogue(false);
+    // If anything changed...
 
-          // And update manifest overview info in manifest overview manager.
+    if (changed) {
+      synchronized (this.pendingChanges) {
+        this.onFilteredManifestChanged(source, notifierFlag, processed);
+      }
+    }
+  }
 
-          this.manifestOverviewManager.updateManifest(source.getUrl());
+  /**
+   * Update our bookkeeping after the filtered manifest has changed. The caller must hold the
+   * monitor of {@link #pendingChanges}.
+   */
+  private void onFilteredManifestChanged(ManifestSource source,
+      ManifestUpdateStatusNotifierFlag notifierFlag, ProcessedManifest processed) {
+    // The catalogue will be built from the same document, so its fragment can be reused.
 
-          // Commit repository changes.
+    this.cachedManifestsMap.put(source.getUrl(), processed.document);
 
-          StringBuilder sb = new StringBuilder();
-          sb.append("Update manifest");
-          if (notices.size() > 0) {
-            sb.append(" (").append(notices.size()).append(" notices)");
-          }
-          sb.append(": ").append(source.getUrl());
-          this.repo.commit(sb.toString());
-        }
+    // Update the list of our notifierFlag's recipients.
 
-        // Update the manifest status.
+    Match manifest = $(processed.document).namespaces(KnownNamespace.prefixMap());
+    List<String> emails = manifest.xpath("mf6:host/ewp:admin-email").texts();
+    notifierFlag.setRecipientEmails(emails);
+    this.onManifestAdminEmailsChanged(source.getUrl(), emails);
 
-        status.setLastAccessFlagStatus(noticesSeverity);
-        status.setLastAccessNotices(notices);
-        return;
+    /*
+     * The catalogue, the manifest overview and the commit will be updated once the whole batch
+     * is imported (see flushPendingChanges).
+     */
 
-      } finally {
-        this.repo.releaseWriteLock();
+    this.pendingChanges.put(source.getUrl(),
+        describeChange("Update manifest", source, processed));
+    this.pendingManifests.put(source.getUrl(), processed.document);
+    this.catalogueView = null;
+    this.catalogueDirty = true;
+  }
+
+  /**
+   * @return A line for the commit message, which attributes the change to the manifest source.
+   */
+  private static String describeChange(String action, ManifestSource source,
+      ProcessedManifest processed) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(action);
+    if (processed.notices.size() > 0) {
+      sb.append(" (").append(processed.notices.size()).append(" notices)");
+    }
+    sb.append(": ").append(source.getUrl());
+    return sb.toString();
+  }
+
+  private boolean dependsOnCatalogue(ManifestSource source) {
+    for (ManifestConstraint constraint : source.getConstraints()) {
+      if (constraint.dependsOnCatalogue()) {
+        return true;
       }
-    } finally {
-      this.manifestUpdateStatusRepository.save(status);
-      if (!status.getLastAccessNotices().isEmpty()) {
-        logger.info("Manifest update notices for url: {}, notifier flag name: {}, notices: {}",
-            status.getUrl(), notifierFlag.getName(), status.getLastAccessNotices());
+    }
+    return false;
+  }
+
+  /**
+   * @return The {@link #registryClient}, if the catalogue is up-to-date. Otherwise, a client of
+   *         the catalogue with all the pending changes of the filtered manifests applied. This
+   *         catalogue is built in memory only (the {@link CatalogueBuilder} reuses the fragments
+   *         of the unchanged manifests), and it is not stored in the repository.
+   */
+  private RegistryClient getCatalogueView() {
+    this.repo.acquireReadLock();
+    try {
+      synchronized (this.pendingChanges) {
+        if (!this.catalogueDirty) {
+          return this.registryClient;
+        }
+        if (this.catalogueView == null) {
+          Map<String, Document> manifests = new LinkedHashMap<>(this.catalogueManifests);
+          manifests.putAll(this.pendingManifests);
+          String catalogueXml = this.catalogueBuilder.buildXml(new ArrayList<>(manifests.values()));
+          this.catalogueView = newCatalogueClient(catalogueXml);
+        }
+        return this.catalogueView;
       }
-      notifierFlag.setStatus(status.getLastAccessFlagStatus());
+    } finally {
+      this.repo.releaseReadLock();
+    }
+  }
 
-      logger.info("Reloading " + source.getUrl() + " ("
-          + status.getLastAccessFlagStatus().toString() + ")");
+  /**
+   * @return A client of the given catalogue. It doesn't refresh itself, so it doesn't need to be
+   *         closed.
+   */
+  private static RegistryClient newCatalogueClient(String catalogueXml) {
+    byte[] contents = catalogueXml.getBytes(StandardCharsets.UTF_8);
+    ClientImplOptions options = new ClientImplOptions();
+    options.setCatalogueFetcher(etag -> new Http200RegistryResponse(contents, null, null));
+    // The catalogue will never change, so we don't need to worry about staleness.
+    options.setMaxAcceptableStaleness(1000L * 60 * 60 * 24 * 365);
+    RegistryClient client = new ClientImpl(options); // NOPMD doesn't need to be closed
+    try {
+      client.refresh();
+    } catch (RefreshFailureException e) {
+      throw new RuntimeException(e); // won't happen, the catalogue is already in memory
+    }
+    return client;
+  }
+
+  /**
+   * Rebuild the catalogue, if any filtered manifests have changed since it was last built. The
+   * caller must hold the repository write lock.
+   */
+  private void updateTheCatalogueIfDirty() {
+    if (this.catalogueDirty) {
+      this.updateTheCatalogue(false);
+    }
+  }
+
+  /**
+   * Reflect all the pending changes in the catalogue and in the manifest overview, and commit them
+   * all at once (possibly folded together with other batches, see
+   * {@link ManifestRepository#groupCommit(String)}). The caller must hold the repository write
+   * lock.
+   */
+  private void flushPendingChanges() {
+    if (this.pendingChanges.isEmpty()) {
+      return;
+    }
+    this.updateTheCatalogueIfDirty();
+    this.manifestOverviewManager.updateManifests(this.pendingChanges.keySet());
+
+    String message;
+    if (this.pendingChanges.size() == 1) {
+      message = this.pendingChanges.values().iterator().next();
+    } else {
+      StringBuilder sb = new StringBuilder();
+      sb.append("Update ").append(this.pendingChanges.size()).append(" manifests\n");
+      for (String line : this.pendingChanges.values()) {
+        sb.append('\n').append(line);
+      }
+      message = sb.toString();
     }
+    this.pendingChanges.clear();
+    this.repo.groupCommit(message);
   }
 
   private void updateTheCatalogue(boolean commit) {
     this.repo.acquireWriteLock();
     try {
-      List<Document> manifests = new ArrayList<>();
+      Map<String, Document> manifests = new LinkedHashMap<>();
 
       List<ManifestSource> manifestSources = manifestSourceProvider.getAll();
       if (manifestSources == null) {
@@ -432,11 +746,11 @@ public class RegistryUpdaterImpl implements RegistryUpdater {
 
         try {
           if (this.cachedManifestsMap.containsKey(src.getUrl())) {
-            manifests.add(this.cachedManifestsMap.get(src.getUrl()));
+            manifests.put(src.getUrl(), this.cachedManifestsMap.get(src.getUrl()));
           } else {
             Document manifest = this.parser.parseManifest(xml, null);
             this.cachedManifestsMap.put(src.getUrl(), manifest);
-            manifests.add(manifest);
+            manifests.put(src.getUrl(), manifest);
           }
         } catch (NotValidManifest e) {
           logger.error("Ignoring {}, because couldn't load it (should not happen)", src);
@@ -446,17 +760,20 @@ public class RegistryUpdaterImpl implements RegistryUpdater {
         }
       }
 
-      // Build the catalogue document.
+      // Build the (already formatted) catalogue.
 
-      CatalogueBuilder builder = new CatalogueBuilder();
-      Document catalogueDocument = builder.build(manifests);
-      String catalogueXml = this.xmlFormatter.format(catalogueDocument);
+      String catalogueXml =
+          this.catalogueBuilder.buildXml(new ArrayList<>(manifests.values()));
 
       // Store it.
 
       this.repo.putCatalogue(catalogueXml, registryClient);
+      this.catalogueManifests = manifests;
+      this.pendingManifests.clear();
+      this.catalogueView = null;
+      this.catalogueDirty = false;
       if (commit) {
-        this.repo.commit("Update catalogue");
+        this.repo.groupCommit("Update catalogue");
       }
     } finally {
       this.repo.releaseWriteLock();
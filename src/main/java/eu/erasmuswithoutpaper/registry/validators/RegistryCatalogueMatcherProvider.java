@@ -4,7 +4,6 @@ import static org.joox.JOOX.$;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import javax.xml.parsers.DocumentBuilder;
 
 import eu.erasmuswithoutpaper.registry.common.Utils;
@@ -36,7 +35,7 @@ public class RegistryCatalogueMatcherProvider implements CatalogueMatcherProvide
     try {
       doc = docBuilder.parse(
           new ByteArrayInputStream(
-              this.repo.getCatalogue().getBytes(StandardCharsets.UTF_8)
+              this.repo.getCatalogueSnapshot().getBytes()
           )
       );
     } catch (SAXException | IOException | CatalogueNotFound e) {
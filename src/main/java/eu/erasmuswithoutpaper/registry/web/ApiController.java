@@ -2,8 +2,11 @@ package eu.erasmuswithoutpaper.registry.web;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Optional;
 
 import eu.erasmuswithoutpaper.registry.repository.CatalogueNotFound;
+import eu.erasmuswithoutpaper.registry.repository.CatalogueSnapshot;
 import eu.erasmuswithoutpaper.registry.repository.ManifestRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
@@ -14,8 +17,11 @@ import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.filter.ShallowEtagHeaderFilter;
 
 import org.apache.commons.io.IOUtils;
 
@@ -30,6 +36,7 @@ public class ApiController {
 
   private final ManifestRepository repo;
   private final SelfManifestProvider selfManifestProvider;
+  private final CatalogueDeltaProvider catalogueDeltaProvider;
   private final ResourceLoader resLoader;
 
   public static class ManifestNotFoundException extends RuntimeException {
@@ -45,46 +52,120 @@ public class ApiController {
    *     Required to fetch the current catalogue contents.
    * @param selfManifestProvider
    *     Required to fetch Registry's own manifest contents.
+   * @param catalogueDeltaProvider
+   *     Required to compute the changes between catalogue versions.
    * @param resLoader
    *     Needed in order to load XML templates for error responses.
    */
   @Autowired
   public ApiController(ManifestRepository repo, SelfManifestProvider selfManifestProvider,
-      ResourceLoader resLoader) {
+      CatalogueDeltaProvider catalogueDeltaProvider, ResourceLoader resLoader) {
     this.repo = repo;
     this.selfManifestProvider = selfManifestProvider;
+    this.catalogueDeltaProvider = catalogueDeltaProvider;
     this.resLoader = resLoader;
   }
 
+  /**
+   * Tell whether the client accepts gzip-encoded responses.
+   *
+   * @param acceptEncoding the value of the Accept-Encoding header (may be null).
+   * @return True, if gzip is listed, and not explicitly disallowed (with "q=0").
+   */
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] params = coding.split(";");
+      if (params[0].trim().equalsIgnoreCase("gzip")) {
+        return getQualityValue(params) > 0;
+      }
+    }
+    return false;
+  }
+
+  private static double getQualityValue(String[] params) {
+    for (int i = 1; i < params.length; i++) {
+      String param = params[i].trim();
+      if (param.startsWith("q=")) {
+        try {
+          return Double.parseDouble(param.substring(2));
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+
   /**
    * @return a HTTP response with the catalogue contents.
    */
   @RequestMapping("/catalogue-v1.xml")
-  public ResponseEntity<String> getCatalogue(WebRequest request) {
-    long catalogueLastModified = repo.getCatalogueLastModified();
-    if (request.checkNotModified(catalogueLastModified)) {
+  public ResponseEntity<byte[]> getCatalogue(WebRequest request) {
+    CatalogueSnapshot snapshot;
+    try {
+      snapshot = this.repo.getCatalogueSnapshot();
+    } catch (CatalogueNotFound e) {
+      return this.createCatalogueUnavailableResponse();
+    }
+
+    // The snapshot already comes with its own strong ETag, so there's no need for the global
+    // ShallowEtagHeaderFilter to buffer and hash the response.
+    if (request instanceof ServletWebRequest) {
+      ShallowEtagHeaderFilter.disableContentCaching(((ServletWebRequest) request).getRequest());
+    }
+    boolean gzip = acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+    String etag = gzip ? snapshot.getGzippedETag() : snapshot.getETag();
+    if (request.checkNotModified(etag, snapshot.getLastModified())) {
       return null;
     }
+    HttpHeaders headers = new HttpHeaders();
+    headers.setCacheControl("max-age=300, must-revalidate");
+    headers.setContentType(MediaType.APPLICATION_XML);
+    headers.setLastModified(snapshot.getLastModified());
+    headers.setExpires(System.currentTimeMillis() + 300_000);
+    headers.setETag(etag);
+    headers.setVary(Collections.singletonList(HttpHeaders.ACCEPT_ENCODING));
+    if (gzip) {
+      headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+      return new ResponseEntity<>(snapshot.getGzippedBytes(), headers, HttpStatus.OK);
+    }
+    return new ResponseEntity<>(snapshot.getBytes(), headers, HttpStatus.OK);
+  }
+
+  /**
+   * @param since the ETag of the catalogue version which the client already has.
+   * @return a HTTP response with the changes made to the catalogue since the given version (see
+   *         {@link CatalogueDeltaProvider} for the format), with the ETag of the current version.
+   *         If the given version is not known, then the full catalogue is returned instead (as in
+   *         {@link #getCatalogue(WebRequest)}).
+   */
+  @RequestMapping("/catalogue-v1-delta.xml")
+  public ResponseEntity<byte[]> getCatalogueDelta(@RequestParam String since,
+      WebRequest request) {
+    CatalogueSnapshot snapshot;
     try {
-      HttpHeaders headers = new HttpHeaders();
-      headers.setCacheControl("max-age=300, must-revalidate");
-      headers.setContentType(MediaType.APPLICATION_XML);
-      headers.setLastModified(catalogueLastModified);
-      headers.setExpires(System.currentTimeMillis() + 300_000);
-      return new ResponseEntity<>(this.repo.getCatalogue(), headers, HttpStatus.OK);
+      snapshot = this.repo.getCatalogueSnapshot();
     } catch (CatalogueNotFound e) {
-      String xml;
-      try {
-        xml = IOUtils.toString(
-            this.resLoader.getResource("classpath:default-503.xml").getInputStream(),
-            StandardCharsets.UTF_8);
-      } catch (IOException e2) {
-        xml = "Internal Server Error";
-      }
-      HttpHeaders headers = new HttpHeaders();
-      headers.setContentType(MediaType.APPLICATION_XML);
-      return new ResponseEntity<>(xml, headers, HttpStatus.SERVICE_UNAVAILABLE);
+      return this.createCatalogueUnavailableResponse();
+    }
+    if (CatalogueDeltaProvider.normalizeETag(since)
+        .equals(CatalogueDeltaProvider.normalizeETag(snapshot.getETag()))) {
+      return new ResponseEntity<>(HttpStatus.NOT_MODIFIED);
+    }
+    Optional<byte[]> delta = this.catalogueDeltaProvider.getDelta(since, snapshot);
+    if (!delta.isPresent()) {
+      return this.getCatalogue(request);
     }
+    HttpHeaders headers = new HttpHeaders();
+    headers.setCacheControl("max-age=300, must-revalidate");
+    headers.setContentType(MediaType.APPLICATION_XML);
+    headers.setLastModified(snapshot.getLastModified());
+    // Clients will need it to ask for the next delta.
+    headers.setETag(snapshot.getETag());
+    return new ResponseEntity<>(delta.get(), headers, HttpStatus.OK);
   }
 
   /**
@@ -106,4 +187,19 @@ public class ApiController {
     headers.setExpires(0);
     return new ResponseEntity<>(manifest, headers, HttpStatus.OK);
   }
+
+  private ResponseEntity<byte[]> createCatalogueUnavailableResponse() {
+    String xml;
+    try {
+      xml = IOUtils.toString(
+          this.resLoader.getResource("classpath:default-503.xml").getInputStream(),
+          StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      xml = "Internal Server Error";
+    }
+    HttpHeaders headers = new HttpHeaders();
+    headers.setContentType(MediaType.APPLICATION_XML);
+    return new ResponseEntity<>(xml.getBytes(StandardCharsets.UTF_8), headers,
+        HttpStatus.SERVICE_UNAVAILABLE);
+  }
 }
@@ -0,0 +1,521 @@
+package eu.erasmuswithoutpaper.registry.web;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import javax.xml.XMLConstants;
+
+import eu.erasmuswithoutpaper.registry.common.Utils;
+import eu.erasmuswithoutpaper.registry.documentbuilder.KnownNamespace;
+import eu.erasmuswithoutpaper.registry.repository.CatalogueDependantCache;
+import eu.erasmuswithoutpaper.registry.repository.CatalogueDependantCache.CacheKey;
+import eu.erasmuswithoutpaper.registry.repository.CatalogueNotFound;
+import eu.erasmuswithoutpaper.registry.repository.CatalogueSnapshot;
+import eu.erasmuswithoutpaper.registry.repository.ManifestRepository;
+import eu.erasmuswithoutpaper.registry.xmlformatter.XmlFormatter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.jdom2.Verifier;
+import org.jdom2.input.DOMBuilder;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Computes the differences between the catalogue versions served by this Registry Service and its
+ * current catalogue, so that clients don't need to download the whole catalogue whenever it
+ * changes.
+ *
+ * <p>
+ * The delta format is specific to this Registry Service, so it has its own namespace
+ * ({@link #NAMESPACE_URI}, with the <code>cd</code> prefix). The delta is an XML document with the
+ * <code>cd:catalogue-delta</code> root element. Its <code>base</code> and <code>target</code>
+ * attributes hold the (unquoted) ETags of the catalogues it transforms. Its children describe the
+ * changes:
+ * </p>
+ * <ul>
+ * <li><code>cd:removed-host index='...'</code> - the host at the given (0-based) position among
+ * the base catalogue's hosts needs to be removed,</li>
+ * <li><code>cd:added-host index='...'</code> - wraps a new <code>host</code> element, to be placed
+ * at the given position among the target catalogue's hosts (a host which has been replaced is both
+ * removed and added),</li>
+ * <li><code>cd:removed-hei id='...'</code> - the HEI needs to be removed from the
+ * institutions,</li>
+ * <li><code>hei id='...'</code> - the HEI has been added or changed (its full new element),</li>
+ * <li><code>cd:removed-rsa-public-key sha-256='...'</code> - the key needs to be removed from the
+ * binaries,</li>
+ * <li><code>rsa-public-key sha-256='...'</code> - a new key.</li>
+ * </ul>
+ *
+ * <p>
+ * The <code>host</code>, <code>hei</code> and <code>rsa-public-key</code> elements are copied from
+ * the target catalogue as they are, so they stay in the catalogue's namespace (which is also the
+ * default namespace of the delta document).
+ * </p>
+ *
+ * <p>
+ * Only a summary (the digests of the hosts, HEIs and keys) of each of the recent versions is
+ * remembered, and the versions are forgotten when the application is restarted. Clients with
+ * versions which are not remembered need to fetch the full catalogue.
+ * </p>
+ *
+ * <p>
+ * The current version is summarized once, in the background, right after the catalogue changes
+ * (it is kept in the {@link CatalogueDependantCache}). Until then, all clients get the full
+ * catalogue.
+ * </p>
+ */
+@Service
+@ConditionalOnWebApplication
+public class CatalogueDeltaProvider {
+
+  /**
+   * The namespace of the elements describing the changes (see {@link CatalogueDeltaProvider}).
+   */
+  public static final String NAMESPACE_URI = "urn:x-ewp-registry-service:catalogue-delta:v1";
+
+  private static final String PREFIX = "cd:";
+
+  /**
+   * The parts of a single catalogue version which are needed to compute the delta from it.
+   */
+  private static class VersionSummary {
+    private final List<String> hostDigests = new ArrayList<>();
+    private final Map<String, String> heiDigests = new LinkedHashMap<>();
+    private final List<String> keyIds = new ArrayList<>();
+  }
+
+  /**
+   * The current catalogue version, with the serialized elements which may need to be copied into
+   * the deltas. (We don't keep the parsed DOM, as it's not thread-safe, even for reading.)
+   */
+  private static class CurrentVersion {
+    /**
+     * Used when there's no current catalogue, or when it could not be parsed.
+     */
+    private static final CurrentVersion UNAVAILABLE = new CurrentVersion(null);
+
+    private final String etag;
+    private final Map<String, String> namespaces = new LinkedHashMap<>();
+    private final List<String> hosts = new ArrayList<>();
+    private final Map<String, String> heis = new LinkedHashMap<>();
+    private final Map<String, String> keys = new LinkedHashMap<>();
+    private final VersionSummary summary = new VersionSummary();
+
+    private CurrentVersion(String etag) {
+      this.etag = etag;
+    }
+
+    private long getApproximateSize() {
+      long chars = 0;
+      for (String host : this.hosts) {
+        chars += host.length() + 64;
+      }
+      for (String hei : this.heis.values()) {
+        chars += hei.length() + 64;
+      }
+      for (String key : this.keys.values()) {
+        chars += key.length() + 64;
+      }
+      return 2 * chars;
+    }
+  }
+
+  private static final Logger logger = LoggerFactory.getLogger(CatalogueDeltaProvider.class);
+
+  /**
+   * How many of the previously served catalogue versions we remember.
+   */
+  private static final int MAX_REMEMBERED_VERSIONS = 64;
+
+  /**
+   * The catalogue's namespace.
+   */
+  private static final String NS = KnownNamespace.RESPONSE_REGISTRY_V1.getNamespaceUri();
+
+  private static final CacheKey<CurrentVersion> CURRENT_VERSION = CacheKey
+      .create("catalogue-delta-summary", CurrentVersion.class, CurrentVersion::getApproximateSize)
+      .refreshingAhead();
+
+  private final XmlFormatter xmlFormatter;
+  private final ManifestRepository repo;
+  private final CatalogueDependantCache catcache;
+
+  /**
+   * Summaries of the remembered versions, keyed by their ETags.
+   */
+  private final Cache<String, VersionSummary> versions =
+      CacheBuilder.newBuilder().maximumSize(MAX_REMEMBERED_VERSIONS).build();
+
+  /**
+   * Formatted deltas, keyed by the base and the target ETags. Only deltas to the {@link #current}
+   * version are kept.
+   */
+  private final Cache<String, byte[]> deltas =
+      CacheBuilder.newBuilder().maximumSize(MAX_REMEMBERED_VERSIONS).build();
+
+  /**
+   * @param xmlFormatter to format the deltas.
+   * @param repo to read the catalogue from.
+   * @param catcache to keep the summary of the current catalogue in.
+   */
+  @Autowired
+  public CatalogueDeltaProvider(XmlFormatter xmlFormatter, ManifestRepository repo,
+      CatalogueDependantCache catcache) {
+    this.xmlFormatter = xmlFormatter;
+    this.repo = repo;
+    this.catcache = catcache;
+    // Once cached, the summary is recomputed in the background after every catalogue change.
+    this.getCurrentVersion();
+  }
+
+  /**
+   * Strip the quotes (and other decorations, such as the gzip suffix) from the given ETag.
+   *
+   * @param etag the ETag, as provided by the client.
+   * @return The bare ETag (as used by the <code>base</code> and <code>target</code> attributes).
+   */
+  static String normalizeETag(String etag) {
+    String result = etag.trim();
+    if (result.startsWith("W/")) {
+      result = result.substring(2);
+    }
+    if (result.length() >= 2 && result.startsWith("\"") && result.endsWith("\"")) {
+      result = result.substring(1, result.length() - 1);
+    }
+    if (result.endsWith("-gzip")) {
+      result = result.substring(0, result.length() - "-gzip".length());
+    }
+    return result;
+  }
+
+  /**
+   * Compute the delta between a previously served catalogue version and the given current one.
+   *
+   * @param baseETag the ETag of the client's version of the catalogue.
+   * @param snapshot the current catalogue.
+   * @return The formatted delta document, or empty if the base version is not known.
+   */
+  public Optional<byte[]> getDelta(String baseETag, CatalogueSnapshot snapshot) {
+    CurrentVersion version = this.getCurrentVersion();
+    if (!normalizeETag(snapshot.getETag()).equals(version.etag)) {
+      // Not summarized yet (or not parsable).
+      return Optional.empty();
+    }
+    String base = normalizeETag(baseETag);
+    VersionSummary summary = this.versions.getIfPresent(base);
+    if (summary == null) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(this.deltas.get(base + " " + version.etag,
+          () -> this.buildDelta(base, summary, version)));
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private CurrentVersion getCurrentVersion() {
+    return this.catcache.get(CURRENT_VERSION, this::summarizeCurrentCatalogue);
+  }
+
+  /**
+   * Parse the current catalogue, and remember its summary.
+   */
+  private CurrentVersion summarizeCurrentCatalogue() {
+    CatalogueSnapshot snapshot;
+    try {
+      snapshot = this.repo.getCatalogueSnapshot();
+    } catch (CatalogueNotFound e) {
+      return CurrentVersion.UNAVAILABLE;
+    }
+    String etag = normalizeETag(snapshot.getETag());
+    CurrentVersion version = parse(etag, snapshot.getBytes());
+    if (version == null) {
+      return CurrentVersion.UNAVAILABLE;
+    }
+    this.versions.put(etag, version.summary);
+    this.deltas.invalidateAll();
+    return version;
+  }
+
+  private byte[] buildDelta(String base, VersionSummary from, CurrentVersion to) {
+    Document doc = Utils.newSecureDocumentBuilder().newDocument();
+    Element root = doc.createElementNS(NAMESPACE_URI, PREFIX + "catalogue-delta");
+    doc.appendChild(root);
+
+    // Keep the namespace prefixes of the catalogue, so that the copied elements look the same.
+
+    root.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:cd", NAMESPACE_URI);
+    for (Map.Entry<String, String> entry : to.namespaces.entrySet()) {
+      root.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, entry.getKey(), entry.getValue());
+    }
+    root.setAttribute("base", base);
+    root.setAttribute("target", to.etag);
+
+    // Hosts have no identifiers, so they are matched by their digests, in order.
+
+    boolean[][] kept = matchSequences(from.hostDigests, to.summary.hostDigests);
+    for (int i = 0; i < from.hostDigests.size(); i++) {
+      if (!kept[0][i]) {
+        Element removed = doc.createElementNS(NAMESPACE_URI, PREFIX + "removed-host");
+        removed.setAttribute("index", Integer.toString(i));
+        root.appendChild(removed);
+      }
+    }
+    for (int j = 0; j < to.hosts.size(); j++) {
+      if (!kept[1][j]) {
+        Element added = doc.createElementNS(NAMESPACE_URI, PREFIX + "added-host");
+        added.setAttribute("index", Integer.toString(j));
+        added.appendChild(importFragment(doc, to.hosts.get(j)));
+        root.appendChild(added);
+      }
+    }
+
+    // HEIs are identified by their IDs.
+
+    for (String heiId : from.heiDigests.keySet()) {
+      if (!to.heis.containsKey(heiId)) {
+        Element removed = doc.createElementNS(NAMESPACE_URI, PREFIX + "removed-hei");
+        removed.setAttribute("id", heiId);
+        root.appendChild(removed);
+      }
+    }
+    for (Map.Entry<String, String> entry : to.heis.entrySet()) {
+      String previous = from.heiDigests.get(entry.getKey());
+      if (previous == null || !previous.equals(to.summary.heiDigests.get(entry.getKey()))) {
+        root.appendChild(importFragment(doc, entry.getValue()));
+      }
+    }
+
+    // Keys are identified by their fingerprints.
+
+    for (String keyId : from.keyIds) {
+      if (!to.keys.containsKey(keyId)) {
+        Element removed = doc.createElementNS(NAMESPACE_URI, PREFIX + "removed-rsa-public-key");
+        removed.setAttribute("sha-256", keyId);
+        root.appendChild(removed);
+      }
+    }
+    for (Map.Entry<String, String> entry : to.keys.entrySet()) {
+      if (!from.keyIds.contains(entry.getKey())) {
+        root.appendChild(importFragment(doc, entry.getValue()));
+      }
+    }
+
+    return this.xmlFormatter.format(doc).getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Parse the element serialized by {@link #serialize(Element)}, and import it into the given
+   * document.
+   */
+  private static Element importFragment(Document doc, String fragment) {
+    Document parsed;
+    try {
+      parsed = Utils.newSecureDocumentBuilder().parse(new InputSource(new StringReader(fragment)));
+    } catch (SAXException | IOException e) {
+      // We have serialized it ourselves.
+      throw new RuntimeException(e);
+    }
+    return (Element) doc.importNode(parsed.getDocumentElement(), true);
+  }
+
+  /**
+   * Serialize the element (along with the declarations of the namespaces it uses).
+   */
+  private static String serialize(Element elem) {
+    return new XMLOutputter(Format.getRawFormat()).outputString(new DOMBuilder().build(elem));
+  }
+
+  /**
+   * Find the longest common subsequence of the two lists.
+   *
+   * @return Two arrays, telling which elements of the first and the second list (respectively)
+   *         belong to the common subsequence.
+   */
+  private static boolean[][] matchSequences(List<String> first, List<String> second) {
+    boolean[][] kept = { new boolean[first.size()], new boolean[second.size()] };
+
+    // Most often, only a few hosts change. Match the common prefix and suffix first.
+
+    int start = 0;
+    while (start < first.size() && start < second.size()
+        && first.get(start).equals(second.get(start))) {
+      kept[0][start] = true;
+      kept[1][start] = true;
+      start++;
+    }
+    int end1 = first.size();
+    int end2 = second.size();
+    while (end1 > start && end2 > start && first.get(end1 - 1).equals(second.get(end2 - 1))) {
+      end1--;
+      end2--;
+      kept[0][end1] = true;
+      kept[1][end2] = true;
+    }
+
+    // Classic dynamic programming for the rest.
+
+    int len1 = end1 - start;
+    int len2 = end2 - start;
+    int[][] lengths = new int[len1 + 1][len2 + 1];
+    for (int i = len1 - 1; i >= 0; i--) {
+      for (int j = len2 - 1; j >= 0; j--) {
+        if (first.get(start + i).equals(second.get(start + j))) {
+          lengths[i][j] = lengths[i + 1][j + 1] + 1;
+        } else {
+          lengths[i][j] = Math.max(lengths[i + 1][j], lengths[i][j + 1]);
+        }
+      }
+    }
+    int pos1 = 0;
+    int pos2 = 0;
+    while (pos1 < len1 && pos2 < len2) {
+      if (first.get(start + pos1).equals(second.get(start + pos2))) {
+        kept[0][start + pos1] = true;
+        kept[1][start + pos2] = true;
+        pos1++;
+        pos2++;
+      } else if (lengths[pos1 + 1][pos2] >= lengths[pos1][pos2 + 1]) {
+        pos1++;
+      } else {
+        pos2++;
+      }
+    }
+    return kept;
+  }
+
+  /**
+   * Parse the catalogue, and compute its summary. The parsed document is not retained.
+   *
+   * @return The parsed version, or null if the contents don't look like a catalogue.
+   */
+  private static CurrentVersion parse(String etag, byte[] contents) {
+    Document doc;
+    try {
+      doc = Utils.newSecureDocumentBuilder().parse(new ByteArrayInputStream(contents));
+    } catch (SAXException | IOException e) {
+      logger.warn("Could not parse the catalogue, deltas won't be available: " + e);
+      return null;
+    }
+    Element root = doc.getDocumentElement();
+    if (!NS.equals(root.getNamespaceURI()) || !"catalogue".equals(root.getLocalName())) {
+      logger.warn("Unexpected catalogue root element, deltas won't be available.");
+      return null;
+    }
+
+    CurrentVersion version = new CurrentVersion(etag);
+    NamedNodeMap attrs = root.getAttributes();
+    for (int i = 0; i < attrs.getLength(); i++) {
+      Attr attr = (Attr) attrs.item(i);
+      if (attr.getName().startsWith("xmlns")) {
+        version.namespaces.put(attr.getName(), attr.getValue());
+      }
+    }
+    for (Element child : childElements(root)) {
+      if (!NS.equals(child.getNamespaceURI())) {
+        continue;
+      }
+      switch (child.getLocalName()) {
+        case "host":
+          version.hosts.add(serialize(child));
+          version.summary.hostDigests.add(digest(child));
+          break;
+        case "institutions":
+          for (Element hei : childElements(child)) {
+            version.heis.put(hei.getAttribute("id"), serialize(hei));
+            version.summary.heiDigests.put(hei.getAttribute("id"), digest(hei));
+          }
+          break;
+        case "binaries":
+          for (Element key : childElements(child)) {
+            version.keys.put(key.getAttribute("sha-256"), serialize(key));
+            version.summary.keyIds.add(key.getAttribute("sha-256"));
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return version;
+  }
+
+  private static List<Element> childElements(Element parent) {
+    List<Element> result = new ArrayList<>();
+    for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+      if (node.getNodeType() == Node.ELEMENT_NODE) {
+        result.add((Element) node);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Compute a digest of the element's content, which doesn't depend on the formatting and on the
+   * namespace prefixes used.
+   */
+  private static String digest(Element elem) {
+    MessageDigest md = DigestUtils.getSha256Digest();
+    updateDigest(md, elem);
+    return Hex.encodeHexString(md.digest());
+  }
+
+  private static void updateDigest(MessageDigest md, Node node) {
+    if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE) {
+      String text = node.getNodeValue();
+      if (!Verifier.isAllXMLWhitespace(text)) {
+        md.update(("\"" + text + "\"").getBytes(StandardCharsets.UTF_8));
+      }
+      return;
+    }
+    if (node.getNodeType() != Node.ELEMENT_NODE) {
+      return;
+    }
+    md.update(("<{" + node.getNamespaceURI() + "}" + node.getLocalName())
+        .getBytes(StandardCharsets.UTF_8));
+    NamedNodeMap attrs = node.getAttributes();
+    Attr[] sorted = new Attr[attrs.getLength()];
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = (Attr) attrs.item(i);
+    }
+    Arrays.sort(sorted, Comparator.comparing((Attr attr) -> String.valueOf(attr.getNamespaceURI()))
+        .thenComparing(attr -> String.valueOf(attr.getLocalName())));
+    for (Attr attr : sorted) {
+      if (attr.getName().startsWith("xmlns")) {
+        continue;
+      }
+      md.update((" {" + attr.getNamespaceURI() + "}" + attr.getLocalName() + "=\""
+          + attr.getValue() + "\"").getBytes(StandardCharsets.UTF_8));
+    }
+    md.update(">".getBytes(StandardCharsets.UTF_8));
+    for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+      updateDigest(md, child);
+    }
+    md.update("</>".getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -3,20 +3,22 @@ package eu.erasmuswithoutpaper.registry.web;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
 import eu.erasmuswithoutpaper.registry.Application;
-import eu.erasmuswithoutpaper.registry.cmatrix.CoverageMatrixGenerator;
-import eu.erasmuswithoutpaper.registry.cmatrix.CoverageMatrixGenerator.HeiComparator;
-import eu.erasmuswithoutpaper.registry.common.Utils;
+import eu.erasmuswithoutpaper.registry.cmatrix.CoverageMatrixProvider;
+import eu.erasmuswithoutpaper.registry.common.HeiSearchIndex;
 import eu.erasmuswithoutpaper.registry.configuration.Constans;
 import eu.erasmuswithoutpaper.registry.documentbuilder.BuildError;
 import eu.erasmuswithoutpaper.registry.documentbuilder.BuildParams;
@@ -31,6 +33,8 @@ import eu.erasmuswithoutpaper.registry.manifestoverview.ManifestOverviewInfo;
 import eu.erasmuswithoutpaper.registry.manifestoverview.ManifestOverviewManager;
 import eu.erasmuswithoutpaper.registry.notifier.NotifierService;
 import eu.erasmuswithoutpaper.registry.repository.CatalogueDependantCache;
+import eu.erasmuswithoutpaper.registry.repository.CatalogueDependantCache.CacheKey;
+import eu.erasmuswithoutpaper.registry.repository.CatalogueNotFound;
 import eu.erasmuswithoutpaper.registry.repository.ManifestNotFound;
 import eu.erasmuswithoutpaper.registry.repository.ManifestRepository;
 import eu.erasmuswithoutpaper.registry.sourceprovider.ManifestSource;
@@ -55,12 +59,10 @@ import eu.erasmuswithoutpaper.registry.validators.web.ManifestApiEntry;
 import eu.erasmuswithoutpaper.registryclient.HeiEntry;
 import eu.erasmuswithoutpaper.registryclient.RegistryClient;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.core.io.ResourceLoader;
-import org.springframework.core.task.TaskExecutor;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -98,7 +100,14 @@ public class UiController {
 
   private static final Logger logger = LoggerFactory.getLogger(UiController.class);
 
-  private final TaskExecutor taskExecutor;
+  /**
+   * The maximum number of HEIs returned by {@link #heiSearchJson(String, int)}.
+   */
+  private static final int HEI_SEARCH_MAX_LIMIT = 100;
+
+  private static final CacheKey<HeiSearchIndex> HEI_SEARCH_INDEX =
+      CacheKey.create("hei-search-index", HeiSearchIndex.class, HeiSearchIndex::getApproximateSize);
+
   private final ManifestUpdateStatusRepository manifestStatusRepo;
   private final ManifestRepository manifestRepository;
   private final ManifestSourceProvider sourceProvider;
@@ -107,7 +116,7 @@ public class UiController {
   private final UptimeChecker uptimeChecker;
   private final EwpDocBuilder docBuilder;
   private final ResourceLoader resLoader;
-  private final CoverageMatrixGenerator matrixGenerator;
+  private final CoverageMatrixProvider matrixProvider;
   private final RegistryClient regClient;
   private final CatalogueDependantCache catcache;
   private final ApiValidatorsManager apiValidatorsManager;
@@ -132,7 +141,6 @@ public class UiController {
   private byte[] cachedEcLogo;
 
   /**
-   * @param taskExecutor needed for running background tasks.
    * @param manifestUpdateStatuses needed to display statuses of manifests.
    * @param manifestRepository needed to display list of apis implemented by hosts in manifest.
    * @param sourceProvider needed to present the list of all sources.
@@ -141,9 +149,9 @@ public class UiController {
    * @param uptimeChecker needed to display current uptime stats.
    * @param docBuilder needed to support online document validation service.
    * @param resLoader needed to load CSS, logos etc.
-   * @param matrixGenerator needed to render "API support table".
-   * @param regClient needed to feed the {@link CoverageMatrixGenerator}.
-   * @param catcache needed to cache the result of {@link CoverageMatrixGenerator}.
+   * @param matrixProvider needed to render "API support table".
+   * @param regClient needed to feed the HEI search index.
+   * @param catcache needed to cache the HEI search index.
    * @param apiValidatorsManager needed to check if there are tests for given api and version.
    * @param validatorKeyStoreSet set of KeyStores providing credentials.
    * @param errorController used to generate 404 pages when the validator is not available.
@@ -151,15 +159,14 @@ public class UiController {
    * @param iiaHashService used to validate IIA cooperation conditions hash
    */
   @Autowired
-  public UiController(@Qualifier("customTaskExecutor") TaskExecutor taskExecutor,
-      ManifestUpdateStatusRepository manifestUpdateStatuses, ManifestRepository manifestRepository,
+  public UiController(ManifestUpdateStatusRepository manifestUpdateStatuses,
+      ManifestRepository manifestRepository,
       ManifestSourceProvider sourceProvider, RegistryUpdater updater, NotifierService notifier,
       UptimeChecker uptimeChecker, EwpDocBuilder docBuilder, ResourceLoader resLoader,
-      CoverageMatrixGenerator matrixGenerator, RegistryClient regClient,
+      CoverageMatrixProvider matrixProvider, RegistryClient regClient,
       CatalogueDependantCache catcache, ApiValidatorsManager apiValidatorsManager,
       ValidatorKeyStoreSet validatorKeyStoreSet, RegistryErrorController errorController,
       ManifestOverviewManager manifestOverviewManager, IiaHashService iiaHashService) {
-    this.taskExecutor = taskExecutor;
     this.manifestStatusRepo = manifestUpdateStatuses;
     this.manifestRepository = manifestRepository;
     this.sourceProvider = sourceProvider;
@@ -168,7 +175,7 @@ public class UiController {
     this.uptimeChecker = uptimeChecker;
     this.docBuilder = docBuilder;
     this.resLoader = resLoader;
-    this.matrixGenerator = matrixGenerator;
+    this.matrixProvider = matrixProvider;
     this.regClient = regClient;
     this.catcache = catcache;
     this.apiValidatorsManager = apiValidatorsManager;
@@ -432,6 +439,49 @@ public class UiController {
     return mav;
   }
 
+  /**
+   * Show a historical version of the catalogue, or of a single manifest.
+   *
+   * @param at Either an ISO-8601 timestamp (e.g. <code>2024-01-31T12:00:00Z</code>), or a git
+   *        revision (e.g. a commit ID).
+   * @param url URL of the manifest. If not given, then the catalogue is shown.
+   * @param original Show the original manifest, instead of the filtered one.
+   * @return The contents of the file, as they were committed at that point. HTTP 404 if the file
+   *         didn't exist at that point.
+   */
+  @RequestMapping(value = "/history", params = "at", method = RequestMethod.GET)
+  public ResponseEntity<?> history(@RequestParam String at,
+      @RequestParam(required = false) String url,
+      @RequestParam(defaultValue = "false") boolean original) {
+    String revision;
+    try {
+      Optional<String> commit = this.manifestRepository.findCommitAt(Instant.parse(at));
+      if (!commit.isPresent()) {
+        return this.errorController.get404();
+      }
+      revision = commit.get();
+    } catch (DateTimeParseException e) {
+      revision = at;
+    }
+
+    byte[] contents;
+    try {
+      if (url == null) {
+        contents = this.manifestRepository.getHistoricalCatalogue(revision);
+      } else if (original) {
+        contents = this.manifestRepository.getHistoricalManifestOriginal(url, revision);
+      } else {
+        contents = this.manifestRepository.getHistoricalManifestFiltered(url, revision);
+      }
+    } catch (CatalogueNotFound | ManifestNotFound e) {
+      return this.errorController.get404();
+    }
+    HttpHeaders headers = new HttpHeaders();
+    headers.setContentType(MediaType.APPLICATION_XML);
+    headers.setCacheControl("max-age=0, must-revalidate");
+    return new ResponseEntity<>(contents, headers, HttpStatus.OK);
+  }
+
   /**
    * Perform an on-demand reload of a single specific manifest.
    *
@@ -451,7 +501,7 @@ public class UiController {
     Optional<ManifestSource> source = this.sourceProvider.getOne(url);
 
     if (source.isPresent()) {
-      this.taskExecutor.execute(() -> updater.reloadManifestSource(source.get()));
+      this.updater.scheduleManifestSourceReload(source.get());
       return new ResponseEntity<>("", headers, HttpStatus.OK);
     } else {
       return new ResponseEntity<>("", headers, HttpStatus.BAD_REQUEST);
@@ -488,10 +538,28 @@ public class UiController {
     mav.addObject("manifestValidationUrl", "/manifestValidation");
     mav.addObject("isValidatorEnabled", Application.isValidationEnabled());
     mav.addObject("adminEmails", adminEmails);
+    mav.addObject("runtimeStatistics", this.getRuntimeStatistics());
 
     return mav;
   }
 
+  /**
+   * Collect the runtime statistics of the caches and pools, to be displayed on the status page.
+   *
+   * @return Statistics grouped by the component they describe, in display order. Each statistic
+   *         is rendered with its {@link Object#toString()}.
+   */
+  private Map<String, List<Object>> getRuntimeStatistics() {
+    Map<String, List<Object>> result = new LinkedHashMap<>();
+    result.put("XML parser pools", new ArrayList<>(this.docBuilder.getPoolStatistics()));
+    result.put("Filtered manifest cache",
+        Collections.singletonList(this.manifestRepository.getFilteredManifestCacheStatistics()));
+    result.put("Catalogue-dependant cache", new ArrayList<>(this.catcache.getStatistics()));
+    result.put("Git pushes",
+        Collections.singletonList(this.manifestRepository.getPushStatistics()));
+    return result;
+  }
+
 
   /**
    * XML Schema Validator view.
@@ -623,16 +691,7 @@ public class UiController {
   }
 
   private String getCoverageMatrixHtml(String heiFilter) {
-    if (heiFilter != null) {
-      return this.matrixGenerator.generateToHtmlTable(this.regClient, heiFilter);
-    }
-
-    String result = this.catcache.getCoverageMatrixHtml();
-    if (result == null) {
-      result = this.matrixGenerator.generateToHtmlTable(this.regClient, null);
-      this.catcache.putCoverageMatrixHtml(result);
-    }
-    return result;
+    return this.matrixProvider.getCoverageMatrixHtml(heiFilter);
   }
 
   private String getCssFingerprint() {
@@ -776,19 +835,53 @@ public class UiController {
     mav.setViewName("heiSearch");
 
     mav.addObject("pattern", pattern);
-    mav.addObject("heis", getHeisMatching(pattern));
+    mav.addObject("heis", getHeisMatching(pattern, Integer.MAX_VALUE));
 
     return mav;
   }
 
-  private List<HeiEntry> getHeisMatching(String pattern) {
+  /**
+   * A JSON variant of the HEI Search Page, meant to be used by type-ahead fields.
+   *
+   * <p>
+   * This is not part of the API and MAY be removed later on.
+   * </p>
+   *
+   * @param pattern The pattern to search for (as on the HEI Search Page).
+   * @param limit The maximum number of HEIs to return (capped at {@link #HEI_SEARCH_MAX_LIMIT}).
+   * @return A JSON array of the first matching HEIs (in "reversed domain" order), each of them
+   *         described by an object with <code>id</code>, <code>name</code> and (optional)
+   *         <code>erasmus</code> properties.
+   */
+  @RequestMapping(value = "/heiSearch.json", method = RequestMethod.GET)
+  public ResponseEntity<String> heiSearchJson(@RequestParam String pattern,
+      @RequestParam(defaultValue = "20") int limit) {
+    HttpHeaders headers = new HttpHeaders();
+    headers.setContentType(MediaType.APPLICATION_JSON);
+    headers.setCacheControl("max-age=0, must-revalidate");
+    headers.setExpires(0);
+
+    JsonArray result = new JsonArray();
+    for (HeiEntry hei : getHeisMatching(pattern, Math.min(limit, HEI_SEARCH_MAX_LIMIT))) {
+      JsonObject item = new JsonObject();
+      item.addProperty("id", hei.getId());
+      item.addProperty("name", hei.getName());
+      Collection<String> erasmusCodes = hei.getOtherIds("erasmus");
+      if (!erasmusCodes.isEmpty()) {
+        item.addProperty("erasmus", erasmusCodes.iterator().next());
+      }
+      result.add(item);
+    }
+    return new ResponseEntity<>(new Gson().toJson(result), headers, HttpStatus.OK);
+  }
+
+  private List<HeiEntry> getHeisMatching(String pattern, int limit) {
     if (pattern.isEmpty()) {
       return Collections.emptyList();
     }
-    Collection<HeiEntry> allHeis = regClient.getAllHeis();
-
-    return allHeis.stream().filter(Utils.getHeiFilterPredicate(pattern)).sorted(new HeiComparator())
-        .collect(Collectors.toList());
+    HeiSearchIndex index = this.catcache.get(HEI_SEARCH_INDEX,
+        () -> new HeiSearchIndex(this.regClient.getAllHeis()));
+    return index.search(pattern, limit);
   }
 
   /**
@@ -0,0 +1,203 @@
+package eu.erasmuswithoutpaper.registry.xmlformatter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+import com.google.common.base.Strings;
+import org.jdom2.Verifier;
+import org.jdom2.output.Format;
+
+/**
+ * Writes XML elements directly to a {@link Writer}, formatted exactly the same way as
+ * {@link XmlFormatter} would have formatted them.
+ *
+ * <p>
+ * This allows large documents with a simple structure to be serialized without building them in
+ * memory first. Only elements with either element-only or text-only content are supported (no
+ * mixed content, comments etc.). Namespace declarations are not emitted, so all the prefixes used
+ * need to be declared by the caller (e.g. in an enclosing element written with
+ * {@link #writeFormatted(String)}).
+ * </p>
+ */
+public class PrettyXmlWriter {
+
+  private static class OpenElement {
+    private final String name;
+    private final List<String[]> attributes = new ArrayList<>();
+    private boolean startTagOpen = true;
+    private boolean hasChildren;
+    private boolean hasText;
+
+    private OpenElement(String name) {
+      this.name = name;
+    }
+  }
+
+  private final Writer out;
+  private final Format format;
+  private final int baseLevel;
+  private final Deque<OpenElement> stack = new ArrayDeque<>();
+
+  /**
+   * @param out the {@link Writer} to write to.
+   * @param baseLevel the nesting level of the elements written first. For example, use 1 if you
+   *        want to write children of the root element.
+   */
+  public PrettyXmlWriter(Writer out, int baseLevel) {
+    this.out = out;
+    this.format = XmlFormatter.createFormat();
+    this.baseLevel = baseLevel;
+  }
+
+  /**
+   * Start a new element (as a child of the currently open one).
+   *
+   * @param qualifiedName the name of the element (including the prefix, if any).
+   * @throws IOException if the output fails.
+   */
+  public void startElement(String qualifiedName) throws IOException {
+    this.beforeChild();
+    this.writePadding(this.currentLevel());
+    this.out.write('<');
+    this.out.write(qualifiedName);
+    this.stack.push(new OpenElement(qualifiedName));
+  }
+
+  /**
+   * Add an attribute to the element which has just been started.
+   *
+   * @param qualifiedName the name of the attribute (including the prefix, if any).
+   * @param value the value of the attribute.
+   */
+  public void attribute(String qualifiedName, String value) {
+    OpenElement elem = this.stack.peek();
+    if (elem == null || !elem.startTagOpen) {
+      throw new IllegalStateException("Attributes must directly follow startElement");
+    }
+    elem.attributes.add(new String[] { qualifiedName, value });
+  }
+
+  /**
+   * Set the text content of the currently open element. Whitespace-only text is ignored (as it is
+   * in {@link XmlFormatter}).
+   *
+   * @param text the text to be written.
+   * @throws IOException if the output fails.
+   */
+  public void text(String text) throws IOException {
+    if (Verifier.isAllXMLWhitespace(text)) {
+      return;
+    }
+    OpenElement elem = this.stack.peek();
+    if (elem == null || elem.hasChildren) {
+      throw new IllegalStateException("Mixed content is not supported");
+    }
+    this.closeStartTag(elem);
+    elem.hasText = true;
+    this.out.write(Format.escapeText(this.format.getEscapeStrategy(),
+        this.format.getLineSeparator(), text));
+  }
+
+  /**
+   * Write a chunk of already formatted child elements (e.g. a part of an {@link XmlFormatter}
+   * output, which has been formatted at the same nesting level).
+   *
+   * @param formatted the formatted XML, starting with a line separator and indent.
+   * @throws IOException if the output fails.
+   */
+  public void writeFormatted(String formatted) throws IOException {
+    if (formatted.isEmpty()) {
+      return;
+    }
+    this.beforeChild();
+    this.out.write(formatted);
+  }
+
+  /**
+   * End the currently open element.
+   *
+   * @throws IOException if the output fails.
+   */
+  public void endElement() throws IOException {
+    OpenElement elem = this.stack.pop();
+    if (elem.startTagOpen) {
+      this.writeAttributes(elem);
+      this.out.write("/>");
+      return;
+    }
+    if (elem.hasChildren) {
+      this.writePadding(this.currentLevel());
+    }
+    this.out.write("</");
+    this.out.write(elem.name);
+    this.out.write('>');
+  }
+
+  private int currentLevel() {
+    return this.baseLevel + this.stack.size();
+  }
+
+  private void beforeChild() throws IOException {
+    OpenElement parent = this.stack.peek();
+    if (parent == null) {
+      return;
+    }
+    if (parent.hasText) {
+      throw new IllegalStateException("Mixed content is not supported");
+    }
+    this.closeStartTag(parent);
+    parent.hasChildren = true;
+  }
+
+  private void closeStartTag(OpenElement elem) throws IOException {
+    if (elem.startTagOpen) {
+      this.writeAttributes(elem);
+      this.out.write('>');
+    }
+  }
+
+  private void writeAttributes(OpenElement elem) throws IOException {
+    elem.startTagOpen = false;
+    // The element itself is not on the stack anymore, if it's being closed.
+    int level = this.stack.peek() == elem ? this.currentLevel() - 1 : this.currentLevel();
+    String levelIndent = Strings.repeat(this.format.getIndent(), level);
+    boolean multiline = elem.attributes.size() >= 2;
+    // DOM documents keep their attributes sorted by name, so XmlFormatter prints them this way.
+    elem.attributes.sort(Comparator.comparing(attr -> attr[0]));
+    for (String[] attr : elem.attributes) {
+      if (multiline) {
+        this.out.write(this.format.getLineSeparator());
+        this.out.write(levelIndent);
+        this.out.write(this.format.getIndent());
+      } else {
+        this.out.write(' ');
+      }
+      String escaped = Format.escapeAttribute(this.format.getEscapeStrategy(), attr[1]);
+      if (level == 0) {
+        // Top level element. See MyOutputProcessor.attributeEscapedEntitiesFilter.
+        escaped = escaped.replace("&#xA;", "\n");
+      }
+      this.out.write(attr[0]);
+      this.out.write("=\"");
+      this.out.write(escaped);
+      this.out.write('"');
+    }
+    if (multiline) {
+      this.out.write(this.format.getLineSeparator());
+      this.out.write(levelIndent);
+    }
+  }
+
+  private void writePadding(int level) throws IOException {
+    if (level == 0) {
+      return;
+    }
+    this.out.write(this.format.getLineSeparator());
+    this.out.write(Strings.repeat(this.format.getIndent(), level));
+  }
+}
@@ -79,19 +79,25 @@ public class XmlFormatter {
 
     /* Set up the formatter. */
 
-    Format format = Format.getPrettyFormat();
-    format.setLineSeparator(LineSeparator.NL);
-    format.setIndent("    ");
-    format.setOmitDeclaration(true);
-    format.setTextMode(TextMode.TRIM_FULL_WHITE);
-
     XMLOutputter outputter = new XMLOutputter();
     outputter.setXMLOutputProcessor(new MyOutputProcessor());
-    outputter.setFormat(format);
+    outputter.setFormat(createFormat());
 
     /* Run it. */
 
     String xml = outputter.outputString(doc);
     return xml;
   }
+
+  /**
+   * @return The {@link Format} used by this formatter (and by {@link PrettyXmlWriter}).
+   */
+  static Format createFormat() {
+    Format format = Format.getPrettyFormat();
+    format.setLineSeparator(LineSeparator.NL);
+    format.setIndent("    ");
+    format.setOmitDeclaration(true);
+    format.setTextMode(TextMode.TRIM_FULL_WHITE);
+    return format;
+  }
 }
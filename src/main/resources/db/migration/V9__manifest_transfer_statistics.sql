@@ -0,0 +1,2 @@
+alter table REG_MANIFEST_UPDATE_STATUSES add column last_bytes_transferred bigint default null;
+alter table REG_MANIFEST_UPDATE_STATUSES add column last_transfer_millis bigint default null;
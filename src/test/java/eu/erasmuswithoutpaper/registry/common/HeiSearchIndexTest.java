@@ -0,0 +1,128 @@
+package eu.erasmuswithoutpaper.registry.common;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import eu.erasmuswithoutpaper.registry.cmatrix.CoverageMatrixGenerator.HeiComparator;
+import eu.erasmuswithoutpaper.registryclient.HeiEntry;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link HeiSearchIndex}.
+ */
+public class HeiSearchIndexTest {
+
+  private static class TestHei implements HeiEntry {
+
+    private final String id;
+    private final String name;
+    private final String pic;
+    private final String erasmus;
+
+    TestHei(String id, String name, String pic, String erasmus) {
+      this.id = id;
+      this.name = name;
+      this.pic = pic;
+      this.erasmus = erasmus;
+    }
+
+    @Override
+    public String getId() {
+      return this.id;
+    }
+
+    @Override
+    public String getName() {
+      return this.name;
+    }
+
+    @Override
+    public String getName(String langCode) {
+      return this.name;
+    }
+
+    @Override
+    public String getNameEnglish() {
+      return this.name;
+    }
+
+    @Override
+    public String getNameNonEnglish() {
+      return null;
+    }
+
+    @Override
+    public Collection<String> getOtherIds(String type) {
+      String value = "pic".equals(type) ? this.pic : "erasmus".equals(type) ? this.erasmus : null;
+      return value == null ? Collections.emptyList() : Collections.singletonList(value);
+    }
+
+    @Override
+    public String toString() {
+      return this.id;
+    }
+  }
+
+  private static final List<HeiEntry> HEIS = Arrays.asList(
+      new TestHei("uw.edu.pl", "University of Warsaw", "999572294", "PL WARSZAW01"),
+      new TestHei("uj.edu.pl", "Jagiellonian University", "999638999", "PL KRAKOW01"),
+      new TestHei("pw.edu.pl", "Warsaw University of Technology", null, "PL WARSZAW02"),
+      new TestHei("uio.no", "University of Oslo", "999850072", "N  OSLO01"),
+      new TestHei("usos.edu.pl", "Uniwersytet Śląski", null, null),
+      new TestHei("b.a", "HEI with a SHORT name", "123", null),
+      new TestHei("a.a", "Another HEI", "1234", "A  A01"));
+
+  private static List<HeiEntry> scan(String pattern) {
+    return HEIS.stream().filter(Utils.getHeiFilterPredicate(pattern)).sorted(new HeiComparator())
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  public void testSameResultsAsScanning() {
+    HeiSearchIndex index = new HeiSearchIndex(HEIS);
+    List<String> patterns = new ArrayList<>(Arrays.asList("", "u", "U", "w", "edu", ".pl",
+        "warsaw", "WARSAW UNIV", "university of", "pl warszaw", "999", "9995", "2294", "94",
+        "śląsk", "ŚLĄ", "a.a", "a", "a0", "xyz", "technology", "n  oslo", "hei with", "12"));
+    for (HeiEntry hei : HEIS) {
+      patterns.add(hei.getId());
+      patterns.add(hei.getName());
+    }
+    for (String pattern : patterns) {
+      assertThat(index.search(pattern)).as(pattern).containsExactlyElementsOf(scan(pattern));
+    }
+  }
+
+  @Test
+  public void testOtherIdsMatchOnlyPrefixes() {
+    HeiSearchIndex index = new HeiSearchIndex(HEIS);
+    assertThat(index.search("99957")).extracting(HeiEntry::getId).containsExactly("uw.edu.pl");
+    assertThat(index.search("572294")).isEmpty();
+    assertThat(index.search("warszaw02")).isEmpty();
+  }
+
+  @Test
+  public void testOrderAndLimit() {
+    HeiSearchIndex index = new HeiSearchIndex(HEIS);
+    assertThat(index.getAllHeis()).extracting(HeiEntry::getId).containsExactly("a.a", "b.a",
+        "uio.no", "pw.edu.pl", "uj.edu.pl", "usos.edu.pl", "uw.edu.pl");
+    assertThat(index.search("edu.pl", 2)).extracting(HeiEntry::getId)
+        .containsExactly("pw.edu.pl", "uj.edu.pl");
+    assertThat(index.search("", 3)).extracting(HeiEntry::getId).containsExactly("a.a", "b.a",
+        "uio.no");
+    assertThat(index.search("edu.pl", 0)).isEmpty();
+  }
+
+  @Test
+  public void testEmptyIndex() {
+    HeiSearchIndex index = new HeiSearchIndex(Collections.emptyList());
+    assertThat(index.search("anything")).isEmpty();
+    assertThat(index.search("")).isEmpty();
+  }
+}
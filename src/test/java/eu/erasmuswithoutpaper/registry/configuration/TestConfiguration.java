@@ -50,9 +50,11 @@ public class TestConfiguration {
   @Bean
   ManifestRepositoryImplProperties getRepoImplProperties(
       @Value("${app.instance-name}") String committerName,
-      @Value("${app.reply-to-address}") String committerEmail) {
+      @Value("${app.reply-to-address}") String committerEmail,
+      @Value("${app.repo.group-commit-window-millis}") long groupCommitWindowMillis,
+      @Value("${app.repo.filtered-manifest-cache-bytes}") long filteredManifestCacheBytes) {
     return new ManifestRepositoryImplProperties(this.fs, this.repoPath, committerName,
-        committerEmail, false);
+        committerEmail, false, groupCommitWindowMillis, filteredManifestCacheBytes);
   }
 
   /**
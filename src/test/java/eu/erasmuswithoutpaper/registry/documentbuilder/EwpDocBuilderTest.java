@@ -1,11 +1,14 @@
 package eu.erasmuswithoutpaper.registry.documentbuilder;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.assertj.core.api.Assertions.fail;
 import static org.joox.JOOX.$;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -13,13 +16,19 @@ import javax.xml.parsers.DocumentBuilder;
 
 import eu.erasmuswithoutpaper.registry.WRTest;
 import eu.erasmuswithoutpaper.registry.common.Utils;
+import eu.erasmuswithoutpaper.registry.xmlformatter.XmlFormatter;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.DefaultResourceLoader;
 import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
 import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 
 import org.joox.Match;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -33,6 +42,12 @@ public class EwpDocBuilderTest extends WRTest {
   @Autowired
   private EwpDocBuilder builder;
 
+  @Autowired
+  private ResourceLoader resourceLoader;
+
+  @Autowired
+  private XmlFormatter xmlFormatter;
+
   @Test
   public void checkBuildErrorMessages1() {
     BuildResult result = this.builder.build(new BuildParams("<xml/>"));
@@ -346,6 +361,166 @@ public class EwpDocBuilderTest extends WRTest {
     assertThat(result.isValid()).isFalse();
   }
 
+  /**
+   * Parsers and validators are pooled and reused between builds, so the errors of one manifest
+   * must not leak to the next one.
+   */
+  @Test
+  public void testPooledParserStateDoesNotLeakErrors() {
+    for (int i = 0; i < 3; i++) {
+      BuildParams invalid = new BuildParams(this.getFile("docbuilder/invalid-manifest.xml"));
+      assertThat(this.builder.buildManifest(invalid).getErrors()).hasSize(1);
+      BuildParams partial =
+          new BuildParams(this.getFile("docbuilder/invalid-api-entry-manifest.xml"));
+      BuildResult partialResult = this.builder.buildManifest(partial);
+      assertThat(partialResult.isValid()).isTrue();
+      int partialErrors = partialResult.getErrors().size();
+      assertThat(this.builder.buildManifest(partial).getErrors()).hasSize(partialErrors);
+      BuildParams valid = new BuildParams(this.getFile("manifests/tiny-but-valid.xml"));
+      BuildResult validResult = this.builder.buildManifest(valid);
+      assertThat(validResult.isValid()).isTrue();
+      assertThat(validResult.getErrors()).isEmpty();
+    }
+  }
+
+  /**
+   * Manifests are parsed and validated in a single pass. The resulting DOM should be exactly the
+   * same as the one built by a regular {@link DocumentBuilder}.
+   */
+  @Test
+  public void testManifestDocumentMatchesParsedDocument() throws SAXException, IOException {
+    List<byte[]> inputs = new ArrayList<>();
+    inputs.add(this.getFile("latest-examples/ewp-specs-api-discovery-manifest-example.xml"));
+    inputs.add(this.getFile("manifests/sample-registry-manifest.xml"));
+    inputs.add(this.getFile("manifests/a-bit-weird-but-valid.xml"));
+    inputs.add(this.getFile("manifests/tiny-but-valid.xml"));
+    inputs.add(this.getFile("docbuilder/invalid-manifest.xml"));
+    inputs.add(("<?xml version='1.0'?><?first pi?><x xmlns='urn:x' xmlns:a='urn:a'"
+        + " xmlns:xml='http://www.w3.org/XML/1998/namespace' xml:lang='en'><?pi data?>"
+        + "<!-- comment --><a:y a:z='1' b='2'>t &amp; &#65;<![CDATA[<c> & d]]> u</a:y>"
+        + "<y xmlns='urn:y'>  <z xmlns=''/></y></x>").getBytes(StandardCharsets.UTF_8));
+
+    DocumentBuilder docBuilder = Utils.newSecureDocumentBuilder();
+    for (byte[] input : inputs) {
+      BuildResult result = this.builder.buildManifest(new BuildParams(input));
+      Document expected = docBuilder.parse(new ByteArrayInputStream(input));
+      assertThat(result.getDocument().get().isEqualNode(expected)).isTrue();
+    }
+  }
+
+  /**
+   * Parsers and validators should be reused between subsequent calls.
+   */
+  @Test
+  public void testParsersAndValidatorsAreReused() {
+    byte[] manifest = this.getFile("manifests/tiny-but-valid.xml");
+    this.builder.build(new BuildParams(manifest));
+    this.builder.buildManifest(new BuildParams(manifest));
+    List<ResettablePool.Statistics> before = this.builder.getPoolStatistics();
+
+    for (int i = 0; i < 5; i++) {
+      assertThat(this.builder.build(new BuildParams(manifest)).isValid()).isTrue();
+      assertThat(this.builder.buildManifest(new BuildParams(manifest)).isValid()).isTrue();
+    }
+
+    List<ResettablePool.Statistics> after = this.builder.getPoolStatistics();
+    assertThat(after).hasSameSizeAs(before);
+    for (int i = 0; i < after.size(); i++) {
+      assertThat(after.get(i).getMisses()).isEqualTo(before.get(i).getMisses());
+      assertThat(after.get(i).getHits()).isGreaterThan(before.get(i).getHits());
+    }
+  }
+
+  /**
+   * Schemas may be compiled in the background. The first build should wait for them, and the
+   * results should be the same as when they are compiled in the constructor.
+   */
+  @Test
+  public void testSchemasCompiledInBackground() {
+    byte[] valid = this.getFile("latest-examples/ewp-specs-api-discovery-manifest-example.xml");
+    byte[] invalid = this.getFile("docbuilder/invalid-manifest.xml");
+    EwpDocBuilder inConstructor =
+        new EwpDocBuilder(this.resourceLoader, this.xmlFormatter, false, null);
+    assertThat(inConstructor.isSchemaCompiled()).isTrue();
+
+    EwpDocBuilder inBackground = new EwpDocBuilder(this.resourceLoader, this.xmlFormatter, true,
+        new SimpleAsyncTaskExecutor());
+    BuildResult result = inBackground.build(new BuildParams(invalid));
+    assertThat(inBackground.isSchemaCompiled()).isTrue();
+    BuildResult expected = inConstructor.build(new BuildParams(invalid));
+    assertThat(result.isValid()).isFalse();
+    assertThat(result.getErrors()).extracting(BuildError::getMessage)
+        .containsExactlyElementsOf(
+            expected.getErrors().stream().map(BuildError::getMessage).toList());
+
+    assertThat(inBackground.buildManifest(new BuildParams(valid)).isValid()).isTrue();
+    assertThat(inBackground.buildManifest(new BuildParams(invalid)).getErrors())
+        .hasSameSizeAs(inConstructor.buildManifest(new BuildParams(invalid)).getErrors());
+  }
+
+  /**
+   * If the schemas compiled in the background cannot be compiled, then the application should
+   * fail to start (and the validations should tell why).
+   */
+  @Test
+  public void testBackgroundCompilationFailureIsSurfaced() {
+    ResourceLoader brokenSchemas = new DefaultResourceLoader() {
+      @Override
+      public Resource getResource(String location) {
+        if (location.endsWith(".xsd")) {
+          return new ByteArrayResource("<not-a-schema/>".getBytes(StandardCharsets.UTF_8));
+        }
+        return EwpDocBuilderTest.this.resourceLoader.getResource(location);
+      }
+    };
+    EwpDocBuilder builder =
+        new EwpDocBuilder(brokenSchemas, this.xmlFormatter, true, new SimpleAsyncTaskExecutor());
+    assertThatThrownBy(builder::afterSingletonsInstantiated)
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessage("The XML Schemas could not be compiled")
+        .hasRootCauseInstanceOf(SAXException.class);
+    byte[] valid = this.getFile("latest-examples/ewp-specs-api-discovery-manifest-example.xml");
+    assertThatThrownBy(() -> builder.build(new BuildParams(valid)))
+        .isInstanceOf(IllegalStateException.class);
+  }
+
+  /**
+   * Measure the per-manifest validation latency. Since manifests are parsed and validated in a
+   * single pass, with a shared JAXB context and pooled unmarshallers, {@link
+   * EwpDocBuilder#buildManifest} should cost about as much as a plain {@link EwpDocBuilder#build}.
+   *
+   * <p>
+   * Timings depend on the machine, so this test is run only when requested with
+   * {@code -Dewp.latencyTests=true}.
+   * </p>
+   */
+  @Test
+  @EnabledIfSystemProperty(named = "ewp.latencyTests", matches = "true")
+  public void testManifestValidationLatency() {
+    byte[] manifest = this.getFile("latest-examples/ewp-specs-api-discovery-manifest-example.xml");
+    int iterations = 50;
+    for (int i = 0; i < iterations; i++) {
+      assertThat(this.builder.build(new BuildParams(manifest)).isValid()).isTrue();
+      assertThat(this.builder.buildManifest(new BuildParams(manifest)).isValid()).isTrue();
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      this.builder.build(new BuildParams(manifest));
+    }
+    final long plain = (System.nanoTime() - start) / iterations;
+
+    start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      this.builder.buildManifest(new BuildParams(manifest));
+    }
+    final long manifestBuild = (System.nanoTime() - start) / iterations;
+
+    // A fresh JAXB context (or a second parsing pass) per manifest would cost several times more.
+    assertThat(manifestBuild).as("buildManifest latency (ns), with build taking %d ns", plain)
+        .isLessThan(2 * plain + 1_000_000);
+  }
+
   /**
    * @param element A DOM element, somewhere within an XML Schema document
    * @return A human-readable path of this element (with most of the ancestry skipped to make it
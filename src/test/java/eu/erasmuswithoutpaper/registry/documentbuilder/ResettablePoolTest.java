@@ -0,0 +1,65 @@
+package eu.erasmuswithoutpaper.registry.documentbuilder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link ResettablePool}.
+ */
+public class ResettablePoolTest {
+
+  @Test
+  public void testObjectsAreResetAndReused() {
+    AtomicInteger created = new AtomicInteger();
+    ResettablePool<List<String>> pool =
+        new ResettablePool<>("test", 2, () -> {
+          created.incrementAndGet();
+          return new ArrayList<>();
+        }, List::clear);
+
+    List<String> first = pool.borrow();
+    first.add("dirty");
+    pool.release(first);
+    List<String> second = pool.borrow();
+    assertThat(second).isSameAs(first).isEmpty();
+    assertThat(created.get()).isEqualTo(1);
+
+    ResettablePool.Statistics stats = pool.getStatistics();
+    assertThat(stats.getName()).isEqualTo("test");
+    assertThat(stats.getHits()).isEqualTo(1);
+    assertThat(stats.getMisses()).isEqualTo(1);
+  }
+
+  @Test
+  public void testPoolIsBounded() {
+    ResettablePool<Object> pool = new ResettablePool<>("test", 2, Object::new, object -> {
+    });
+    List<Object> borrowed = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      borrowed.add(pool.borrow());
+    }
+    borrowed.forEach(pool::release);
+
+    for (int i = 0; i < 3; i++) {
+      pool.borrow();
+    }
+    assertThat(pool.getStatistics().getHits()).isEqualTo(2);
+    assertThat(pool.getStatistics().getMisses()).isEqualTo(4);
+  }
+
+  @Test
+  public void testObjectsWhichCannotBeResetAreDropped() {
+    ResettablePool<Object> pool = new ResettablePool<>("test", 2, Object::new, object -> {
+      throw new IllegalStateException();
+    });
+    Object first = pool.borrow();
+    pool.release(first);
+    assertThat(pool.borrow()).isNotSameAs(first);
+    assertThat(pool.getStatistics().getHits()).isZero();
+  }
+}
@@ -0,0 +1,102 @@
+package eu.erasmuswithoutpaper.registry.internet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.message.BasicClassicHttpResponse;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link PooledEwpClient}.
+ */
+public class PooledEwpClientTest {
+
+  private static final String URL = "https://example.com/endpoint";
+
+  @Test
+  public void testRepeatedResponseHeadersAreJoined() {
+    BasicClassicHttpResponse response = new BasicClassicHttpResponse(201);
+    response.addHeader("Vary", "Accept");
+    response.addHeader("vary", "Accept-Encoding");
+    response.addHeader("Content-Type", "text/plain");
+    response.setEntity(new ByteArrayEntity("body".getBytes(StandardCharsets.UTF_8), null));
+
+    Response result = PooledEwpClient.toResponse(response);
+    assertThat(result.getStatus()).isEqualTo(201);
+    assertThat(result.getHeader("Vary")).isEqualTo("Accept, Accept-Encoding");
+    assertThat(result.getHeader("content-type")).isEqualTo("text/plain");
+    assertThat(result.getBody()).isEqualTo("body".getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testResponseWithoutEntity() {
+    Response result = PooledEwpClient.toResponse(new BasicClassicHttpResponse(204));
+    assertThat(result.getStatus()).isEqualTo(204);
+    assertThat(result.getBody()).isEmpty();
+  }
+
+  @Test
+  public void testDefaultContentType() throws Exception {
+    Request request = new Request("POST", URL);
+    request.setBody("a=b".getBytes(StandardCharsets.UTF_8));
+    HttpUriRequestBase httpRequest = PooledEwpClient.toHttpRequest(request, null);
+    assertThat(httpRequest.getHeaders("Content-Type")).hasSize(1);
+    assertThat(httpRequest.getFirstHeader("Content-Type").getValue())
+        .isEqualTo("application/x-www-form-urlencoded");
+    assertThat(httpRequest.getEntity().getContentLength()).isEqualTo(3);
+
+    request.putHeader("content-type", "application/xml");
+    httpRequest = PooledEwpClient.toHttpRequest(request, null);
+    assertThat(httpRequest.getHeaders("Content-Type")).hasSize(1);
+    assertThat(httpRequest.getFirstHeader("Content-Type").getValue())
+        .isEqualTo("application/xml");
+
+    // Requests without a body don't get any.
+    httpRequest = PooledEwpClient.toHttpRequest(new Request("GET", URL), null);
+    assertThat(httpRequest.containsHeader("Content-Type")).isFalse();
+    assertThat(httpRequest.getEntity()).isNull();
+  }
+
+  @Test
+  public void testSignedEmptyContentLengthIsKept() throws Exception {
+    Request request = new Request("POST", URL);
+    request.putHeader("Content-Length", "0");
+    HttpUriRequestBase httpRequest = PooledEwpClient.toHttpRequest(request, null);
+    // The header itself is added (from the entity) when the request is sent.
+    assertThat(httpRequest.containsHeader("Content-Length")).isFalse();
+    assertThat(httpRequest.getEntity()).isNotNull();
+    assertThat(httpRequest.getEntity().getContentLength()).isZero();
+    assertThat(httpRequest.getEntity().isChunked()).isFalse();
+  }
+
+  @Test
+  public void testCallerTransferEncodingIsSkipped() throws Exception {
+    Request request = new Request("PUT", URL);
+    request.putHeader("Transfer-Encoding", "chunked");
+    request.putHeader("X-Custom", "value");
+    request.setBodyAndContentLength("hello".getBytes(StandardCharsets.UTF_8));
+    HttpUriRequestBase httpRequest = PooledEwpClient.toHttpRequest(request, 5000);
+    assertThat(httpRequest.containsHeader("Transfer-Encoding")).isFalse();
+    assertThat(httpRequest.containsHeader("Content-Length")).isFalse();
+    assertThat(httpRequest.getFirstHeader("X-Custom").getValue()).isEqualTo("value");
+    assertThat(httpRequest.getEntity().getContentLength()).isEqualTo(5);
+    assertThat(httpRequest.getEntity().isChunked()).isFalse();
+    assertThat(httpRequest.getConfig().getResponseTimeout().toMilliseconds()).isEqualTo(5000);
+  }
+
+  @Test
+  public void testNonHttpsUrlsAreRejected() {
+    PooledEwpClient client = new PooledEwpClient(null, null);
+    try {
+      assertThatThrownBy(() -> client.execute(new Request("GET", "http://example.com/"), null))
+          .isInstanceOf(RuntimeException.class)
+          .hasMessage("Expecting HTTPS connection, got http://example.com/ instead.");
+    } finally {
+      client.shutdown();
+    }
+  }
+}
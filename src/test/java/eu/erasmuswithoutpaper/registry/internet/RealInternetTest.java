@@ -0,0 +1,207 @@
+package eu.erasmuswithoutpaper.registry.internet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for {@link RealInternet#fetchUrl(String)}.
+ */
+public class RealInternetTest {
+
+  private static final int LIMIT = 1000;
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+      gz.write(data);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] sampleContents(int length) {
+    byte[] result = new byte[length];
+    for (int i = 0; i < length; i++) {
+      result[i] = (byte) ('a' + i % 26);
+    }
+    return result;
+  }
+
+  @TempDir
+  private Path tempDir;
+
+  private RealInternet internet;
+  private HttpServer server;
+  private ExecutorService serverExecutor;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    this.internet = new RealInternet(Optional.empty(), Collections.emptyList(), "Test",
+        "test@example.com", null, null, LIMIT);
+    this.server =
+        HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    this.serverExecutor = Executors.newCachedThreadPool();
+    this.server.setExecutor(this.serverExecutor);
+    this.server.start();
+  }
+
+  @AfterEach
+  public void tearDown() {
+    this.server.stop(0);
+    this.serverExecutor.shutdownNow();
+    this.internet.destroy();
+  }
+
+  private String serve(String path, HttpHandler handler) {
+    this.server.createContext(path, exchange -> {
+      try {
+        handler.handle(exchange);
+      } catch (IOException e) {
+        // The client has given up reading.
+      } finally {
+        exchange.close();
+      }
+    });
+    return "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+        + this.server.getAddress().getPort() + path;
+  }
+
+  private String writeFile(String name, byte[] contents) throws IOException {
+    return Files.write(this.tempDir.resolve(name), contents).toUri().toString();
+  }
+
+  @Test
+  public void testFilesUpToTheLimitAreFetched() throws IOException {
+    byte[] contents = sampleContents(LIMIT);
+    FetchedUrl fetched = this.internet.fetchUrl(this.writeFile("limit.xml", contents));
+    assertThat(fetched.getContents()).isEqualTo(contents);
+    assertThat(fetched.getBytesTransferred()).isEqualTo(LIMIT);
+  }
+
+  @Test
+  public void testFilesOverTheLimitAreRejected() throws IOException {
+    String url = this.writeFile("over.xml", sampleContents(LIMIT + 1));
+    assertThatThrownBy(() -> this.internet.fetchUrl(url)).isInstanceOf(IOException.class)
+        .hasMessage("The contents of " + url + " exceed the limit of " + LIMIT + " bytes.");
+  }
+
+  @Test
+  public void testGzippedContentsAreDecompressed() throws IOException {
+    byte[] contents = sampleContents(LIMIT);
+    byte[] compressed = gzip(contents);
+    String url = this.serve("/gzip", exchange -> {
+      exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+      exchange.sendResponseHeaders(200, compressed.length);
+      exchange.getResponseBody().write(compressed);
+    });
+    FetchedUrl fetched = this.internet.fetchUrl(url);
+    assertThat(fetched.getContents()).isEqualTo(contents);
+    // The compressed size is what has been transferred.
+    assertThat(compressed.length).isLessThan(LIMIT);
+    assertThat(fetched.getBytesTransferred()).isEqualTo(compressed.length);
+  }
+
+  @Test
+  public void testDecompressedSizeIsLimited() throws IOException {
+    byte[] compressed = gzip(new byte[LIMIT + 1]);
+    String url = this.serve("/bomb", exchange -> {
+      exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+      exchange.sendResponseHeaders(200, compressed.length);
+      exchange.getResponseBody().write(compressed);
+    });
+    assertThatThrownBy(() -> this.internet.fetchUrl(url)).isInstanceOf(IOException.class)
+        .hasMessageContaining("exceed the limit");
+  }
+
+  @Test
+  public void testUndeclaredSizeIsLimitedWhileReading() throws IOException {
+    String url = this.serve("/chunked", exchange -> {
+      // Zero means "chunked" here, so no Content-Length is sent.
+      exchange.sendResponseHeaders(200, 0);
+      OutputStream out = exchange.getResponseBody();
+      for (int i = 0; i < 4; i++) {
+        out.write(sampleContents(LIMIT / 2));
+        out.flush();
+      }
+    });
+    assertThatThrownBy(() -> this.internet.fetchUrl(url)).isInstanceOf(IOException.class)
+        .hasMessageContaining("exceed the limit");
+  }
+
+  @Test
+  public void testUndeclaredSizeIsReadInChunks() throws IOException {
+    // Larger than a few chunks, and not a multiple of their size.
+    byte[] contents = sampleContents(200_000);
+    String url = this.serve("/chunks", exchange -> {
+      exchange.sendResponseHeaders(200, 0);
+      exchange.getResponseBody().write(contents);
+    });
+    RealInternet larger = new RealInternet(Optional.empty(), Collections.emptyList(), "Test",
+        "test@example.com", null, null, contents.length);
+    try {
+      FetchedUrl fetched = larger.fetchUrl(url);
+      assertThat(fetched.getContents()).isEqualTo(contents);
+      assertThat(fetched.getBytesTransferred()).isEqualTo(contents.length);
+    } finally {
+      larger.destroy();
+    }
+  }
+
+  @Test
+  public void testDeclaredSizeIsRejectedUpFront() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    String url = this.serve("/large", exchange -> {
+      exchange.sendResponseHeaders(200, LIMIT + 1);
+      OutputStream out = exchange.getResponseBody();
+      out.flush();
+      // The body is sent only after the client has already given up.
+      try {
+        release.await(20, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      out.write(new byte[LIMIT + 1]);
+    });
+    try {
+      // Trying to read the body would end with a read timeout instead.
+      assertThatThrownBy(() -> this.internet.fetchUrl(url)).isInstanceOf(IOException.class)
+          .hasMessageContaining("exceed the limit");
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  public void testTransferredBytesAreCounted() throws IOException {
+    byte[] contents = sampleContents(LIMIT / 2);
+    String url = this.serve("/plain", exchange -> {
+      exchange.sendResponseHeaders(200, contents.length);
+      exchange.getResponseBody().write(contents);
+    });
+    FetchedUrl fetched = this.internet.fetchUrl(url);
+    assertThat(fetched.getContents()).isEqualTo(contents);
+    assertThat(fetched.getBytesTransferred()).isEqualTo(contents.length);
+    assertThat(this.internet.getUrl(url)).isEqualTo(contents);
+  }
+}
@@ -0,0 +1,164 @@
+package eu.erasmuswithoutpaper.registry.repository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import eu.erasmuswithoutpaper.registry.repository.CatalogueDependantCache.CacheKey;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link CatalogueDependantCache}.
+ */
+public class CatalogueDependantCacheTest {
+
+  private static final CacheKey<String> KEY =
+      CacheKey.create("key", String.class, value -> 2L * value.length());
+
+  private static final CacheKey<String> EAGER_KEY =
+      CacheKey.create("eager-key", String.class, value -> 2L * value.length()).refreshingAhead();
+
+  private final List<Runnable> tasks = new ArrayList<>();
+  private final AtomicInteger loads = new AtomicInteger();
+  private final Supplier<String> loader = () -> "value" + this.loads.incrementAndGet();
+
+  private void runTasks() {
+    List<Runnable> copy = new ArrayList<>(this.tasks);
+    this.tasks.clear();
+    copy.forEach(Runnable::run);
+  }
+
+  private CatalogueCacheStatistics getStatistics(CatalogueDependantCache cache, CacheKey<?> key) {
+    return cache.getStatistics().stream().filter(stats -> stats.getName().equals(key.getName()))
+        .findFirst().get();
+  }
+
+  @Test
+  public void testStaleValuesAreServedWhileRefreshing() {
+    CatalogueDependantCache cache = new CatalogueDependantCache(1_000_000, this.tasks::add);
+    assertThat(cache.get(KEY, this.loader)).isEqualTo("value1");
+    assertThat(cache.get(KEY, this.loader)).isEqualTo("value1");
+
+    cache.onCatalogueChanged("v2");
+    assertThat(cache.get(KEY, this.loader)).isEqualTo("value1");
+    assertThat(cache.get(KEY, this.loader)).isEqualTo("value1");
+    assertThat(this.tasks).hasSize(1);
+    this.runTasks();
+    assertThat(cache.get(KEY, this.loader)).isEqualTo("value2");
+
+    CatalogueCacheStatistics stats = this.getStatistics(cache, KEY);
+    assertThat(stats.getHits()).isEqualTo(2);
+    assertThat(stats.getStaleHits()).isEqualTo(2);
+    assertThat(stats.getMisses()).isEqualTo(1);
+    assertThat(stats.getLoads()).isEqualTo(2);
+    assertThat(stats.getEntries()).isEqualTo(2);
+    assertThat(stats.getSizeBytes()).isEqualTo(24);
+  }
+
+  @Test
+  public void testOlderVersionsAreDropped() {
+    CatalogueDependantCache cache = new CatalogueDependantCache(1_000_000, this.tasks::add);
+    assertThat(cache.get(KEY, "a", this.loader)).isEqualTo("value1");
+    cache.onCatalogueChanged("v2");
+    cache.onCatalogueChanged("v3");
+    assertThat(cache.get(KEY, "a", this.loader)).isEqualTo("value2");
+    assertThat(this.tasks).isEmpty();
+    assertThat(this.getStatistics(cache, KEY).getEntries()).isEqualTo(1);
+  }
+
+  @Test
+  public void testParamsAreSeparate() {
+    CatalogueDependantCache cache = new CatalogueDependantCache(1_000_000, this.tasks::add);
+    assertThat(cache.get(KEY, "a", this.loader)).isEqualTo("value1");
+    assertThat(cache.get(KEY, "b", this.loader)).isEqualTo("value2");
+    assertThat(cache.get(KEY, "a", this.loader)).isEqualTo("value1");
+  }
+
+  @Test
+  public void testRefreshingAhead() {
+    CatalogueDependantCache cache = new CatalogueDependantCache(1_000_000, this.tasks::add);
+    assertThat(cache.get(EAGER_KEY, this.loader)).isEqualTo("value1");
+    assertThat(cache.get(KEY, this.loader)).isEqualTo("value2");
+
+    cache.onCatalogueChanged("v2");
+    assertThat(this.tasks).hasSize(1);
+    this.runTasks();
+    assertThat(this.loads.get()).isEqualTo(3);
+    assertThat(cache.get(EAGER_KEY, this.loader)).isEqualTo("value3");
+    assertThat(this.getStatistics(cache, EAGER_KEY).getStaleHits()).isZero();
+
+    // Same version again is not a change.
+    cache.onCatalogueChanged("v2");
+    assertThat(this.tasks).isEmpty();
+  }
+
+  @Test
+  public void testWithoutExecutor() {
+    CatalogueDependantCache cache = new CatalogueDependantCache(1_000_000, null);
+    assertThat(cache.get(EAGER_KEY, this.loader)).isEqualTo("value1");
+    cache.onCatalogueChanged("v2");
+    assertThat(cache.get(EAGER_KEY, this.loader)).isEqualTo("value2");
+  }
+
+  @Test
+  public void testEviction() {
+    CatalogueDependantCache cache = new CatalogueDependantCache(20, this.tasks::add);
+    assertThat(cache.get(KEY, "a", this.loader)).isEqualTo("value1");
+    assertThat(cache.get(KEY, "b", this.loader)).isEqualTo("value2");
+    assertThat(this.getStatistics(cache, KEY).getEntries()).isEqualTo(1);
+    assertThat(cache.get(KEY, "a", this.loader)).isEqualTo("value3");
+    assertThat(cache.getMaxSizeBytes()).isEqualTo(20);
+  }
+
+  @Test
+  public void testFailedLoadsAreNotCached() {
+    CatalogueDependantCache cache = new CatalogueDependantCache(1_000_000, this.tasks::add);
+    assertThatThrownBy(() -> cache.get(KEY, () -> {
+      throw new IllegalStateException("failed");
+    })).isInstanceOf(IllegalStateException.class).hasMessage("failed");
+    assertThat(cache.get(KEY, this.loader)).isEqualTo("value1");
+    CatalogueCacheStatistics stats = this.getStatistics(cache, KEY);
+    assertThat(stats.getFailedLoads()).isEqualTo(1);
+    assertThat(stats.getLoads()).isEqualTo(1);
+    assertThat(stats.getMisses()).isEqualTo(2);
+  }
+
+  @Test
+  public void testConcurrentReadersShareTheLoad() throws Exception {
+    CatalogueDependantCache cache = new CatalogueDependantCache(1_000_000, this.tasks::add);
+    CountDownLatch loading = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Supplier<String> slowLoader = () -> {
+      loading.countDown();
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return "value" + this.loads.incrementAndGet();
+    };
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<String> first = executor.submit(() -> cache.get(KEY, slowLoader));
+      assertThat(loading.await(10, TimeUnit.SECONDS)).isTrue();
+      Future<String> second = executor.submit(() -> cache.get(KEY, slowLoader));
+      Thread.sleep(100);
+      release.countDown();
+      assertThat(first.get(10, TimeUnit.SECONDS)).isEqualTo("value1");
+      assertThat(second.get(10, TimeUnit.SECONDS)).isEqualTo("value1");
+      assertThat(this.loads.get()).isEqualTo(1);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -1,23 +1,52 @@
 package eu.erasmuswithoutpaper.registry.repository;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.assertj.core.api.Assertions.fail;
 
+import java.io.File;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import eu.erasmuswithoutpaper.registry.WRTest;
+import eu.erasmuswithoutpaper.registry.documentbuilder.KnownNamespace;
+import eu.erasmuswithoutpaper.registry.repository.CatalogueDependantCache.CacheKey;
+import eu.erasmuswithoutpaper.registryclient.CatalogueFetcher.Http200RegistryResponse;
+import eu.erasmuswithoutpaper.registryclient.ClientImpl;
+import eu.erasmuswithoutpaper.registryclient.ClientImplOptions;
 import eu.erasmuswithoutpaper.registryclient.RegistryClient;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.Status;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.transport.URIish;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 /**
  * Tests for {@link ManifestRepositoryImpl}.
  */
 public class ManifestRepositoryTest extends WRTest {
 
+  private static final CacheKey<String> TEST_CACHE_KEY =
+      CacheKey.create("test", String.class, value -> 2L * value.length());
+
   private static String manifestUrl1;
   private static String manifestUrl2;
 
@@ -36,6 +65,15 @@ public class ManifestRepositoryTest extends WRTest {
   @Autowired
   private CatalogueDependantCache catcache;
 
+  @Autowired
+  private ManifestRepositoryImplProperties repoProperties;
+
+  /**
+   * Holds the throwaway repositories (see {@link #newRepository(File, boolean, long)}).
+   */
+  @TempDir
+  private Path tempDir;
+
   @AfterEach
   public void tearDown() {
     this.repo.deleteAll(client);
@@ -44,21 +82,28 @@ public class ManifestRepositoryTest extends WRTest {
   @Test
   public void testCatalogueDependantCache() {
     this.repo.deleteAll(client);
+    AtomicInteger loads = new AtomicInteger();
+    Supplier<String> loader = () -> "value" + loads.incrementAndGet();
 
     this.repo.putCatalogue("1", client);
-    this.catcache.putCoverageMatrixHtml("1");
-    assertThat(this.catcache.getCoverageMatrixHtml()).isEqualTo("1");
+    assertThat(this.catcache.get(TEST_CACHE_KEY, loader)).isEqualTo("value1");
+    assertThat(this.catcache.get(TEST_CACHE_KEY, loader)).isEqualTo("value1");
 
     this.repo.putCatalogue("1", client);
-    assertThat(this.catcache.getCoverageMatrixHtml()).isEqualTo("1");
+    assertThat(this.catcache.get(TEST_CACHE_KEY, loader)).isEqualTo("value1");
 
+    // Test task executor is synchronous, so the stale value is refreshed before get returns.
     this.repo.putCatalogue("2", client);
-    assertThat(this.catcache.getCoverageMatrixHtml()).isNull();
-    this.catcache.putCoverageMatrixHtml("2");
-    assertThat(this.catcache.getCoverageMatrixHtml()).isEqualTo("2");
+    assertThat(this.catcache.get(TEST_CACHE_KEY, loader)).isEqualTo("value2");
+    assertThat(this.catcache.get(TEST_CACHE_KEY, loader)).isEqualTo("value2");
 
+    // Values are keyed by the catalogue contents, so these are still valid.
     this.repo.putCatalogue("1", client);
-    assertThat(this.catcache.getCoverageMatrixHtml()).isNull();
+    assertThat(this.catcache.get(TEST_CACHE_KEY, loader)).isEqualTo("value1");
+
+    this.repo.deleteAll(client);
+    assertThat(this.catcache.get(TEST_CACHE_KEY, loader)).isEqualTo("value3");
+    assertThat(loads.get()).isEqualTo(3);
   }
 
   /**
@@ -106,6 +151,330 @@ public class ManifestRepositoryTest extends WRTest {
     assertThat(this.repo.getAllFilePaths()).contains(expectedCatalogueFileName);
   }
 
+  /**
+   * {@link ManifestRepositoryImpl#commit(String)} stages only the files which were changed via the
+   * repository. Make sure that it leaves nothing behind - the working copy should always be clean
+   * after a commit.
+   */
+  @Test
+  public void testCommitLeavesCleanWorkingCopy() throws Exception {
+    this.repo.deleteAll(client);
+    this.repo.commit("commit things which were changed before");
+
+    try (Git git = Git.open(new File(this.repoProperties.getPath()))) {
+      this.repo.putOriginalManifest(manifestUrl1, "original".getBytes(StandardCharsets.UTF_8));
+      this.repo.putFilteredManifest(manifestUrl1, "filtered");
+      this.repo.putOriginalManifest(manifestUrl2, "original".getBytes(StandardCharsets.UTF_8));
+      this.repo.putCatalogue("catalogue", client);
+      assertThat(this.repo.commit("add things")).isTrue();
+      assertThat(git.status().call().isClean()).isTrue();
+
+      this.repo.putFilteredManifest(manifestUrl1, "filtered, changed");
+      this.repo.deleteManifest(manifestUrl2);
+      assertThat(git.status().call().isClean()).isFalse();
+      assertThat(this.repo.commit("change things")).isTrue();
+      Status status = git.status().call();
+      assertThat(status.isClean()).isTrue();
+      assertThat(this.repo.commit("nothing changed")).isFalse();
+
+      // Writing the same contents back should not produce an empty commit.
+      this.repo.putFilteredManifest(manifestUrl1, "filtered");
+      this.repo.putFilteredManifest(manifestUrl1, "filtered, changed");
+      assertThat(this.repo.commit("nothing changed either")).isFalse();
+
+      this.repo.deleteAll(client);
+      assertThat(this.repo.commit("delete everything")).isTrue();
+      assertThat(git.status().call().isClean()).isTrue();
+    }
+  }
+
+  /**
+   * In the group-commit mode, changes are collected until the window elapses, and then committed
+   * together, with all the messages included.
+   */
+  @Test
+  public void testGroupCommit() throws Exception {
+    File dir = this.newDirectory("group-commit");
+    Git.init().setDirectory(dir).call().close();
+    ManifestRepositoryImpl groupRepo = this.newRepository(dir, false, 3_600_000);
+    try (Git git = Git.open(dir)) {
+      int initialCommits = this.getCommitMessages(git).size();
+
+      groupRepo.putFilteredManifest(manifestUrl1, "first");
+      assertThat(groupRepo.groupCommit("Update manifest: " + manifestUrl1)).isFalse();
+      groupRepo.putFilteredManifest(manifestUrl2, "second");
+      assertThat(groupRepo.groupCommit("Update manifest (2 notices): " + manifestUrl2)).isFalse();
+      assertThat(groupRepo.flushGroupCommit()).isFalse();
+      assertThat(this.getCommitMessages(git)).hasSize(initialCommits);
+
+      // A regular commit doesn't steal the queued changes.
+      groupRepo.putFilteredManifest(manifestUrl1, "third");
+      assertThat(groupRepo.commit("Direct change")).isTrue();
+      List<String> messages = this.getCommitMessages(git);
+      assertThat(messages).hasSize(initialCommits + 1);
+      assertThat(messages.get(0)).isEqualTo("Group commit of 3 changes\n\n"
+          + "Update manifest: " + manifestUrl1 + "\n\n"
+          + "Update manifest (2 notices): " + manifestUrl2 + "\n\n"
+          + "Direct change\n");
+      assertThat(git.status().call().isClean()).isTrue();
+
+      // Queued changes are not lost on shutdown.
+      groupRepo.deleteManifest(manifestUrl2);
+      assertThat(groupRepo.groupCommit("Delete manifest: " + manifestUrl2)).isFalse();
+      groupRepo.destroy();
+      messages = this.getCommitMessages(git);
+      assertThat(messages).hasSize(initialCommits + 2);
+      assertThat(messages.get(0)).isEqualTo("Delete manifest: " + manifestUrl2);
+    }
+  }
+
+  /**
+   * Changes should be detected properly, also for the files which were written before the
+   * repository was (re)started. No temporary files should be left behind.
+   */
+  @Test
+  public void testChangeDetection() throws Exception {
+    File dir = this.newDirectory("changes");
+    Git.init().setDirectory(dir).call().close();
+
+    ManifestRepositoryImpl first = this.newRepository(dir, false, 0);
+    assertThat(first.putFilteredManifest(manifestUrl1, "first")).isTrue();
+    assertThat(first.putFilteredManifest(manifestUrl1, "first")).isFalse();
+    assertThat(first.putFilteredManifest(manifestUrl1, "second")).isTrue();
+    assertThat(first.commit("Add manifest")).isTrue();
+    first.destroy();
+
+    ManifestRepositoryImpl second = this.newRepository(dir, false, 0);
+    try {
+      assertThat(second.putFilteredManifest(manifestUrl1, "second")).isFalse();
+      assertThat(second.putFilteredManifest(manifestUrl1, "third")).isTrue();
+      assertThat(second.getManifestFiltered(manifestUrl1)).isEqualTo("third");
+      assertThat(second.deleteManifest(manifestUrl1)).isTrue();
+      assertThat(second.putFilteredManifest(manifestUrl1, "third")).isTrue();
+      assertThat(second.getAllFilePaths()).containsExactlyInAnyOrder("index.xml",
+          "manifests/com/example.com/bb937788ce84767ff64935e70c3856bd8c7bd16d-filtered.xml");
+      assertThat(new File(dir, ".git/ewp-tmp").list()).isEmpty();
+    } finally {
+      second.destroy();
+    }
+  }
+
+  /**
+   * Filtered manifests should be served from memory, and the cache should always reflect the
+   * latest put and delete calls.
+   */
+  @Test
+  public void testFilteredManifestCache() throws Exception {
+    File dir = this.newDirectory("cache");
+    Git.init().setDirectory(dir).call().close();
+
+    ManifestRepositoryImpl first = this.newRepository(dir, false, 0);
+    first.putFilteredManifest(manifestUrl1, "first");
+    first.commit("Add manifest");
+    first.destroy();
+
+    ManifestRepositoryImpl second = this.newRepository(dir, false, 0);
+    try {
+      assertThat(second.getManifestFiltered(manifestUrl1)).isEqualTo("first");
+      assertThat(second.getManifestFiltered(manifestUrl1)).isEqualTo("first");
+      ManifestCacheStatistics stats = second.getFilteredManifestCacheStatistics();
+      assertThat(stats.getMisses()).isEqualTo(1);
+      assertThat(stats.getHits()).isEqualTo(1);
+      assertThat(stats.getEntries()).isEqualTo(1);
+      assertThat(stats.getSizeBytes()).isEqualTo(manifestUrl1.length() + "first".length());
+
+      second.putFilteredManifest(manifestUrl1, "second");
+      assertThat(second.getManifestFiltered(manifestUrl1)).isEqualTo("second");
+      assertThat(second.deleteManifest(manifestUrl1)).isTrue();
+      assertThatThrownBy(() -> second.getManifestFiltered(manifestUrl1))
+          .isInstanceOf(ManifestNotFound.class);
+      assertThat(second.getFilteredManifestCacheStatistics().getEntries()).isZero();
+    } finally {
+      second.destroy();
+    }
+  }
+
+  /**
+   * The index should be written once per commit (not on every put), and loaded back on restart.
+   */
+  @Test
+  public void testIndexIsWrittenOnCommit() throws Exception {
+    File dir = this.newDirectory("index");
+    Git.init().setDirectory(dir).call().close();
+    File indexFile = new File(dir, "index.xml");
+
+    ManifestRepositoryImpl first = this.newRepository(dir, false, 0);
+    String emptyIndex = FileUtils.readFileToString(indexFile, StandardCharsets.UTF_8);
+    first.putOriginalManifest(manifestUrl1, "original".getBytes(StandardCharsets.UTF_8));
+    first.putFilteredManifest(manifestUrl1, "filtered");
+    first.putFilteredManifest(manifestUrl2, "filtered");
+    assertThat(first.getAllFilteredManifestUrls()).containsExactly(manifestUrl1, manifestUrl2);
+    assertThat(FileUtils.readFileToString(indexFile, StandardCharsets.UTF_8))
+        .isEqualTo(emptyIndex);
+    assertThat(first.commit("Add manifests")).isTrue();
+    assertThat(FileUtils.readFileToString(indexFile, StandardCharsets.UTF_8))
+        .contains(manifestUrl1, manifestUrl2);
+    first.deleteManifest(manifestUrl2);
+    first.destroy();
+
+    ManifestRepositoryImpl second = this.newRepository(dir, false, 0);
+    try {
+      assertThat(second.getAllFilteredManifestUrls()).containsExactly(manifestUrl1);
+    } finally {
+      second.destroy();
+    }
+  }
+
+  /**
+   * Manifests should be writable while other threads hold the shared lock, but not while someone
+   * holds the global write lock.
+   */
+  @Test
+  public void testManifestWritesDontNeedGlobalLock() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      this.repo.acquireReadLock();
+      try {
+        Future<Boolean> put =
+            executor.submit(() -> this.repo.putFilteredManifest(manifestUrl1, "first"));
+        assertThat(put.get(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(this.repo.getManifestFiltered(manifestUrl1)).isEqualTo("first");
+      } finally {
+        this.repo.releaseReadLock();
+      }
+
+      Future<Boolean> put;
+      this.repo.acquireWriteLock();
+      try {
+        put = executor.submit(() -> this.repo.putFilteredManifest(manifestUrl2, "second"));
+        assertThatThrownBy(() -> put.get(200, TimeUnit.MILLISECONDS))
+            .isInstanceOf(TimeoutException.class);
+      } finally {
+        this.repo.releaseWriteLock();
+      }
+      assertThat(put.get(10, TimeUnit.SECONDS)).isTrue();
+      assertThat(this.repo.getManifestFiltered(manifestUrl2)).isEqualTo("second");
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Previously committed contents should be readable without touching the working copy.
+   */
+  @Test
+  public void testHistoricalReads() throws Exception {
+    File dir = this.newDirectory("history");
+    Git.init().setDirectory(dir).call().close();
+
+    ManifestRepositoryImpl repo = this.newRepository(dir, false, 0);
+    try (RegistryClient client = this.newClient()) {
+      assertThat(repo.findCommitAt(Instant.EPOCH)).isEmpty();
+      repo.putCatalogue("catalogue 1", client);
+      repo.putFilteredManifest(manifestUrl1, "filtered 1");
+      repo.putOriginalManifest(manifestUrl1, "original 1".getBytes(StandardCharsets.UTF_8));
+      repo.commit("First");
+      String first = repo.findCommitAt(Instant.now()).get();
+      repo.putCatalogue("catalogue 2", client);
+      repo.deleteManifest(manifestUrl1);
+      repo.commit("Second");
+      String second = repo.findCommitAt(Instant.now()).get();
+      assertThat(second).isNotEqualTo(first);
+
+      assertThat(repo.getHistoricalCatalogue(first))
+          .isEqualTo("catalogue 1".getBytes(StandardCharsets.UTF_8));
+      assertThat(repo.getHistoricalCatalogue(first.substring(0, 10)))
+          .isSameAs(repo.getHistoricalCatalogue(first));
+      assertThat(repo.getHistoricalManifestFiltered(manifestUrl1, first))
+          .isEqualTo("filtered 1".getBytes(StandardCharsets.UTF_8));
+      assertThat(repo.getHistoricalManifestOriginal(manifestUrl1, first))
+          .isEqualTo("original 1".getBytes(StandardCharsets.UTF_8));
+      assertThat(repo.getHistoricalCatalogue("master"))
+          .isEqualTo("catalogue 2".getBytes(StandardCharsets.UTF_8));
+      assertThat(repo.getHistoricalCatalogue("master~1"))
+          .isEqualTo("catalogue 1".getBytes(StandardCharsets.UTF_8));
+      assertThatThrownBy(() -> repo.getHistoricalManifestFiltered(manifestUrl1, second))
+          .isInstanceOf(ManifestNotFound.class);
+      assertThatThrownBy(() -> repo.getHistoricalCatalogue("no-such-revision"))
+          .isInstanceOf(CatalogueNotFound.class);
+    } finally {
+      repo.destroy();
+    }
+  }
+
+  /**
+   * Maintenance should pack all the loose objects, without losing any history.
+   */
+  @Test
+  public void testMaintenance() throws Exception {
+    File dir = this.newDirectory("gc");
+    Git.init().setDirectory(dir).call().close();
+
+    ManifestRepositoryImpl repo = this.newRepository(dir, false, 0);
+    try {
+      for (int i = 0; i < 3; i++) {
+        repo.putFilteredManifest(manifestUrl1, "version " + i);
+        repo.commit("Version " + i);
+      }
+      MaintenanceStatistics stats = repo.runMaintenance();
+      assertThat(stats.getLooseObjectsBefore()).isPositive();
+      assertThat(stats.getLooseObjectsAfter()).isZero();
+      assertThat(stats.getPackedObjectsAfter()).isGreaterThanOrEqualTo(
+          stats.getLooseObjectsBefore());
+      assertThat(stats.getPackFilesAfter()).isEqualTo(1);
+      assertThat(stats.getBitmapsAfter()).isPositive();
+
+      repo.putFilteredManifest(manifestUrl1, "version 3");
+      assertThat(repo.commit("Version 3")).isTrue();
+      assertThat(repo.getManifestFiltered(manifestUrl1)).isEqualTo("version 3");
+    } finally {
+      repo.destroy();
+    }
+    try (Git git = Git.open(dir)) {
+      assertThat(git.log().call()).hasSize(5);
+    }
+  }
+
+  /**
+   * Pushing should transfer the snapshot of the master branch, and back off after failures.
+   */
+  @Test
+  public void testPush() throws Exception {
+    File origin = this.newDirectory("origin");
+    Git.init().setBare(true).setInitialBranch("master").setDirectory(origin).call().close();
+    File dir = this.newDirectory("push");
+    try (Git git = Git.init().setInitialBranch("master").setDirectory(dir).call()) {
+      git.commit().setMessage("Initial commit").call();
+      git.remoteAdd().setName("origin").setUri(new URIish(origin.toURI().toURL())).call();
+      git.push().call();
+    }
+    ManifestRepositoryImpl pushingRepo = this.newRepository(dir, true, 0);
+    try (Git git = Git.open(dir); Git remote = Git.open(origin);
+        RegistryClient client = this.newClient()) {
+      assertThat(pushingRepo.push()).isTrue();
+      assertThat(remote.getRepository().resolve("master"))
+          .isEqualTo(git.getRepository().resolve("master"));
+      assertThat(pushingRepo.push()).isFalse();
+      assertThat(pushingRepo.getPushStatistics().getSuccessfulPushes()).isEqualTo(1);
+
+      // Make the remote unavailable.
+      FileUtils.deleteDirectory(origin);
+      pushingRepo.putCatalogue("catalogue", client);
+      assertThat(pushingRepo.commit("Update catalogue")).isTrue();
+      assertThatThrownBy(pushingRepo::push).isInstanceOf(Exception.class);
+      PushStatistics stats = pushingRepo.getPushStatistics();
+      assertThat(stats.getFailedPushes()).isEqualTo(1);
+      assertThat(stats.getConsecutiveFailures()).isEqualTo(1);
+      assertThat(stats.getNextAttemptTime()).isGreaterThan(System.currentTimeMillis());
+
+      // Backing off - no new attempts are made.
+      assertThat(pushingRepo.push()).isFalse();
+      assertThat(pushingRepo.getPushStatistics().getFailedPushes()).isEqualTo(1);
+    } finally {
+      pushingRepo.destroy();
+    }
+  }
+
   /**
    * Test if {@link ManifestRepositoryImpl#deleteAll()} deletes all files, even if the "pairs" are
    * inconsistent.
@@ -208,6 +577,43 @@ public class ManifestRepositoryTest extends WRTest {
         "manifests/pl/b%C5%BAd%C5%BAi%C4%85gwa.pl/d1a3a550edb437de22b59feac93f04a32e0729da");
   }
 
+  private List<String> getCommitMessages(Git git) throws Exception {
+    List<String> messages = new ArrayList<>();
+    for (RevCommit commit : git.log().call()) {
+      messages.add(commit.getFullMessage());
+    }
+    return messages;
+  }
+
+  private File newDirectory(String name) throws Exception {
+    return Files.createDirectory(this.tempDir.resolve(name)).toFile();
+  }
+
+  /**
+   * Create a throwaway repository. It doesn't share its {@link CatalogueDependantCache} with the
+   * application, so it may be used with {@link #newClient()}.
+   */
+  private ManifestRepositoryImpl newRepository(File dir, boolean enablePushing,
+      long groupCommitWindowMillis) {
+    ManifestRepositoryImplProperties props =
+        new ManifestRepositoryImplProperties(FileSystems.getDefault(), dir.getAbsolutePath(),
+            "Committer", "committer@example.com", enablePushing, groupCommitWindowMillis,
+            1_000_000);
+    return new ManifestRepositoryImpl(props, new CatalogueDependantCache(1_000_000, null));
+  }
+
+  /**
+   * @return A client to be refreshed by the throwaway repositories (instead of the application's
+   *         one). It always sees an empty catalogue.
+   */
+  private RegistryClient newClient() {
+    byte[] empty = ("<catalogue xmlns=\"" + KnownNamespace.RESPONSE_REGISTRY_V1.getNamespaceUri()
+        + "\"><institutions/></catalogue>").getBytes(StandardCharsets.UTF_8);
+    ClientImplOptions options = new ClientImplOptions();
+    options.setCatalogueFetcher(etag -> new Http200RegistryResponse(empty, null, null));
+    return new ClientImpl(options);
+  }
+
   private void testPath(String urlstring, String expectedPathPrefix) {
     assertThat(this.repo.getManifestPathPrefix(urlstring)).isEqualTo(expectedPathPrefix);
   }
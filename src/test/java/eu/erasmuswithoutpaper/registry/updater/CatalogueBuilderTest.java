@@ -0,0 +1,80 @@
+package eu.erasmuswithoutpaper.registry.updater;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import eu.erasmuswithoutpaper.registry.WRTest;
+import eu.erasmuswithoutpaper.registry.updater.ManifestParser.NotValidManifest;
+import eu.erasmuswithoutpaper.registry.xmlformatter.XmlFormatter;
+
+import org.springframework.beans.factory.annotation.Autowired;
+
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+
+/**
+ * Tests for the {@link CatalogueBuilder}.
+ */
+public class CatalogueBuilderTest extends WRTest {
+
+  @Autowired
+  private ManifestParser parser;
+
+  @Autowired
+  private XmlFormatter xmlFormatter;
+
+  /**
+   * The catalogue built from the official manifest example (and our own manifest) should be the
+   * official catalogue example. The other outputs are checked against the expected files.
+   */
+  @Test
+  public void testCatalogueMatchesExpectedOutput() throws NotValidManifest {
+    Document registry = this.parse("manifests/sample-registry-manifest.xml");
+    Document example = this.parse("latest-examples/ewp-specs-api-discovery-manifest-example.xml");
+    Document keys = this.parse("rsa-public-key-tests/manifest1.xml");
+
+    assertThat(new CatalogueBuilder(this.xmlFormatter).buildXml(Arrays.asList(registry, example)))
+        .isEqualTo(
+            this.getFileAsString("latest-examples/ewp-specs-api-registry-catalogue-example.xml"));
+    assertThat(
+        new CatalogueBuilder(this.xmlFormatter).buildXml(Arrays.asList(example, keys, registry)))
+            .isEqualTo(this.getFileAsString("catalogue-builder/catalogue-with-keys.xml"));
+    assertThat(new CatalogueBuilder(this.xmlFormatter).buildXml(Collections.emptyList()))
+        .isEqualTo(this.getFileAsString("catalogue-builder/catalogue-empty.xml"));
+  }
+
+  /**
+   * A long-lived builder (which reuses the fragments of previously seen manifests) should produce
+   * exactly the same catalogues as a fresh one.
+   */
+  @Test
+  public void testIncrementalBuildsMatchFreshBuilds() throws NotValidManifest {
+    Document registry = this.parse("manifests/sample-registry-manifest.xml");
+    Document example = this.parse("latest-examples/ewp-specs-api-discovery-manifest-example.xml");
+    Document keys = this.parse("rsa-public-key-tests/manifest1.xml");
+
+    CatalogueBuilder builder = new CatalogueBuilder(this.xmlFormatter);
+    for (List<Document> manifests : this.getManifestSets(registry, example, keys)) {
+      String incremental = builder.buildXml(manifests);
+      String fresh = new CatalogueBuilder(this.xmlFormatter).buildXml(manifests);
+      assertThat(incremental).isEqualTo(fresh);
+    }
+
+    assertThat(builder.buildXml(Arrays.asList(registry, example))).isEqualTo(
+        this.getFileAsString("latest-examples/ewp-specs-api-registry-catalogue-example.xml"));
+  }
+
+  private List<List<Document>> getManifestSets(Document registry, Document example,
+      Document keys) {
+    return Arrays.asList(Arrays.asList(registry, example), Collections.singletonList(example),
+        Arrays.asList(example, keys, registry), Collections.<Document>emptyList(),
+        Arrays.asList(keys, registry));
+  }
+
+  private Document parse(String filename) throws NotValidManifest {
+    return this.parser.parseManifest(this.getFile(filename), null);
+  }
+}
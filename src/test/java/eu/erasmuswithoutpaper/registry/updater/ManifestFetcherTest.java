@@ -0,0 +1,156 @@
+package eu.erasmuswithoutpaper.registry.updater;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.erasmuswithoutpaper.registry.internet.Internet;
+import eu.erasmuswithoutpaper.registry.internet.Request;
+import eu.erasmuswithoutpaper.registry.internet.Response;
+import eu.erasmuswithoutpaper.registry.sourceprovider.ManifestSource;
+import eu.erasmuswithoutpaper.registry.updater.ManifestFetcher.FetchedManifest;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the {@link ManifestFetcher}.
+ */
+public class ManifestFetcherTest {
+
+  /**
+   * An {@link Internet} which takes a while to respond, and remembers how many requests it was
+   * handling at the same time.
+   */
+  private static class SlowInternet implements Internet {
+
+    private final AtomicInteger current = new AtomicInteger();
+    private final AtomicInteger maxTotal = new AtomicInteger();
+    private final ConcurrentMap<String, AtomicInteger> currentPerHost = new ConcurrentHashMap<>();
+    private final AtomicInteger maxPerHost = new AtomicInteger();
+    private final AtomicInteger finished = new AtomicInteger();
+    private final ConcurrentMap<String, Integer> finishedBeforeStart = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] getUrl(String url) throws IOException {
+      this.finishedBeforeStart.put(url, this.finished.get());
+      String host = url.split("/")[2];
+      AtomicInteger hostCounter = this.currentPerHost.computeIfAbsent(host,
+          h -> new AtomicInteger());
+      this.maxTotal.accumulateAndGet(this.current.incrementAndGet(), Math::max);
+      this.maxPerHost.accumulateAndGet(hostCounter.incrementAndGet(), Math::max);
+      try {
+        Thread.sleep(200);
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      } finally {
+        hostCounter.decrementAndGet();
+        this.current.decrementAndGet();
+        this.finished.incrementAndGet();
+      }
+      if (url.endsWith("/missing")) {
+        throw new IOException("Not found: " + url);
+      }
+      return url.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Response makeRequest(Request request) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response makeRequest(Request request, Integer timeout) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void queueEmail(List<String> recipients, String subject, String contents) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  @Test
+  public void testFetchAllIsParallelAndKeepsOrder() throws IOException {
+    SlowInternet internet = new SlowInternet();
+    ManifestFetcher fetcher = new ManifestFetcher(internet, 8, 2);
+    try {
+      List<ManifestSource> sources = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        sources.add(new ManifestSource("https://host" + i + ".example.com/manifest.xml",
+            new ArrayList<>()));
+      }
+      sources.add(new ManifestSource("https://host0.example.com/missing", new ArrayList<>()));
+
+      long start = System.nanoTime();
+      List<FetchedManifest> results = fetcher.fetchAll(sources);
+      long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+      assertThat(results).hasSize(sources.size());
+      for (int i = 0; i < 8; i++) {
+        assertThat(new String(results.get(i).getContents(), StandardCharsets.UTF_8))
+            .isEqualTo(sources.get(i).getUrl());
+      }
+      assertThatThrownBy(() -> results.get(8).getContents()).isInstanceOf(IOException.class);
+
+      // Transfer statistics are recorded for each successfully fetched source.
+      assertThat(results.get(0).getTransfer()).hasValueSatisfying(transfer -> {
+        assertThat(transfer.getBytesTransferred()).isEqualTo(sources.get(0).getUrl().length());
+        assertThat(transfer.getTransferMillis()).isGreaterThanOrEqualTo(200);
+      });
+      assertThat(results.get(8).getTransfer()).isEmpty();
+
+      // Sequential fetching would take at least 9 * 200 ms.
+      assertThat(internet.maxTotal.get()).isGreaterThan(1);
+      assertThat(elapsedMillis).isLessThan(9 * 200);
+    } finally {
+      fetcher.destroy();
+    }
+  }
+
+  @Test
+  public void testPerHostLimitIsRespected() {
+    SlowInternet internet = new SlowInternet();
+    ManifestFetcher fetcher = new ManifestFetcher(internet, 8, 2);
+    try {
+      List<ManifestSource> sources = new ArrayList<>();
+      for (int i = 0; i < 6; i++) {
+        sources.add(
+            new ManifestSource("https://same.example.com/manifest" + i + ".xml", new ArrayList<>()));
+      }
+      fetcher.fetchAll(sources);
+      assertThat(internet.maxPerHost.get()).isEqualTo(2);
+    } finally {
+      fetcher.destroy();
+    }
+  }
+
+  @Test
+  public void testBusyHostDoesNotDelayOtherHosts() {
+    SlowInternet internet = new SlowInternet();
+    ManifestFetcher fetcher = new ManifestFetcher(internet, 4, 2);
+    try {
+      List<ManifestSource> sources = new ArrayList<>();
+      for (int i = 0; i < 12; i++) {
+        sources.add(
+            new ManifestSource("https://busy.example.com/manifest" + i + ".xml", new ArrayList<>()));
+      }
+      String otherUrl = "https://other.example.com/manifest.xml";
+      sources.add(new ManifestSource(otherUrl, new ArrayList<>()));
+      fetcher.fetchAll(sources);
+
+      // The busy host never gets more than its 2 threads, so the other host doesn't need to wait.
+      assertThat(internet.maxPerHost.get()).isEqualTo(2);
+      assertThat(internet.finishedBeforeStart.get(otherUrl)).isZero();
+      assertThat(internet.finished.get()).isEqualTo(13);
+    } finally {
+      fetcher.destroy();
+    }
+  }
+}
@@ -3,12 +3,17 @@ package eu.erasmuswithoutpaper.registry.updater;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.joox.JOOX.$;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import eu.erasmuswithoutpaper.registry.WRTest;
 import eu.erasmuswithoutpaper.registry.common.Severity;
@@ -19,8 +24,11 @@ import eu.erasmuswithoutpaper.registry.documentbuilder.EwpDocBuilder;
 import eu.erasmuswithoutpaper.registry.documentbuilder.KnownNamespace;
 import eu.erasmuswithoutpaper.registry.internet.FakeInternet;
 import eu.erasmuswithoutpaper.registry.notifier.NotifierService;
+import eu.erasmuswithoutpaper.registry.repository.CatalogueDependantCache;
+import eu.erasmuswithoutpaper.registry.repository.CatalogueDependantCache.CacheKey;
 import eu.erasmuswithoutpaper.registry.repository.CatalogueNotFound;
 import eu.erasmuswithoutpaper.registry.repository.ManifestRepositoryImpl;
+import eu.erasmuswithoutpaper.registry.repository.ManifestRepositoryImplProperties;
 import eu.erasmuswithoutpaper.registry.sourceprovider.ManifestSource;
 import eu.erasmuswithoutpaper.registry.sourceprovider.ManifestSourceFactory;
 import eu.erasmuswithoutpaper.registry.sourceprovider.TestManifestSourceProvider;
@@ -30,6 +38,8 @@ import eu.erasmuswithoutpaper.registryclient.RegistryClient;
 
 import org.springframework.beans.factory.annotation.Autowired;
 
+import com.google.common.collect.Iterables;
+import org.eclipse.jgit.api.Git;
 import org.joox.Match;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
@@ -46,6 +56,12 @@ public class RegistryUpdaterTest extends WRTest {
 
   private static String url3;
 
+  /**
+   * A refresh-ahead key, which gets reloaded once per each new version of the catalogue.
+   */
+  private static final CacheKey<Integer> CATALOGUE_VERSIONS =
+      CacheKey.create("test-catalogue-versions", Integer.class, value -> 16L).refreshingAhead();
+
   @BeforeAll
   public static void setUpClass() {
     url1 = "https://example.com/manifest.xml";
@@ -85,6 +101,12 @@ public class RegistryUpdaterTest extends WRTest {
   @Autowired
   private ManifestSourceFactory manifestFactory;
 
+  @Autowired
+  private ManifestRepositoryImplProperties repoProperties;
+
+  @Autowired
+  private CatalogueDependantCache catcache;
+
   private Match lastCatalogue;
   private List<String> lastEmails;
 
@@ -297,6 +319,121 @@ public class RegistryUpdaterTest extends WRTest {
     assertThat(this.lastCatalogue.xpath("r:host/r:apis-implemented/in2:institutions")).hasSize(1);
   }
 
+  /**
+   * Manifests changed within a single reload cycle should be committed together, but constraints
+   * should still see the manifests imported earlier in the same cycle.
+   */
+  @Test
+  public void testChangesAreCommittedOncePerReload() throws Exception {
+    this.internet.putURL(url1, this.getFile("api-unique/manifest1.xml"));
+    this.internet.putURL(url2, this.getFile("api-unique/manifest-duplicate.xml"));
+    this.sourceProvider.addSource(manifestFactory.newRegularSource(url1, Arrays.asList()));
+    this.sourceProvider.addSource(manifestFactory.newRegularSource(url2, Arrays.asList()));
+    this.updater.onSourcesUpdated();
+
+    int commitsBefore = this.countCommits();
+    this.timePasses();
+    assertThat(this.countCommits()).isEqualTo(commitsBefore + 1);
+    this.assertManifestStatuses("OK", "Error", null);
+    this.assertNoticesMatch(url2, "(?s).*API institutions is already in the registry under URL: "
+        + "https://example.com/institutions.*");
+    assertThat(this.lastCatalogue.xpath("r:host/r:apis-implemented/in2:institutions")).hasSize(1);
+
+    // Nothing changed, so nothing should be committed.
+
+    this.timePasses();
+    assertThat(this.countCommits()).isEqualTo(commitsBefore + 1);
+  }
+
+  /**
+   * Regular sources depend on the catalogue (because of the uniqueness constraints), but the
+   * catalogue should still be rebuilt only once per reload, no matter how many of them changed.
+   */
+  @Test
+  public void testCatalogueIsRebuiltOncePerReload() {
+    this.internet.putURL(url1, this.getFile("api-unique/manifest1.xml"));
+    this.internet.putURL(url2, this.getFile("api-unique/manifest2.xml"));
+    this.internet.putURL(url3, this.getFile("endpoint-unique/manifest-duplicate.xml"));
+    this.sourceProvider.addSource(manifestFactory.newRegularSource(url1, Arrays.asList()));
+    this.sourceProvider.addSource(manifestFactory.newRegularSource(url2, Arrays.asList()));
+    this.sourceProvider.addSource(manifestFactory.newRegularSource(url3, Arrays.asList()));
+    this.updater.onSourcesUpdated();
+
+    AtomicInteger catalogueVersions = new AtomicInteger();
+    this.catcache.get(CATALOGUE_VERSIONS, catalogueVersions::incrementAndGet);
+    assertThat(catalogueVersions.get()).isEqualTo(1);
+
+    this.timePasses();
+    assertThat(catalogueVersions.get()).isEqualTo(2);
+
+    // The third manifest is still checked against the other two, imported in the same reload.
+
+    this.assertManifestStatuses("OK", "OK", "Error");
+    this.assertNoticesMatch(url3, "(?s).*API institutions is already in the registry under URL: "
+        + "https://example.com/institutions2.*", "(?s).*discovery/url elements.*");
+    assertThat(this.lastCatalogue.xpath("r:host/r:apis-implemented/in2:institutions")).hasSize(2);
+  }
+
+  /**
+   * Imports don't hold the repository write lock, so they must be able to look up their notifier
+   * flags while {@link RegistryUpdaterImpl#onSourcesUpdated()} is modifying them.
+   */
+  @Test
+  public void testImportsRunWhileSourcesAreUpdated() throws Exception {
+    this.internet.putURL(url1, this.getFile("api-unique/manifest1.xml"));
+    ManifestSource ms1 = manifestFactory.newRegularSource(url1, Arrays.asList());
+    this.sourceProvider.addSource(ms1);
+    List<ManifestSource> others = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      others.add(manifestFactory.newRegularSource("https://example.com/other" + i + ".xml",
+          Arrays.asList()));
+    }
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> sourcesUpdates = executor.submit(() -> {
+        for (int round = 0; round < 5; round++) {
+          for (ManifestSource other : others) {
+            this.sourceProvider.addSource(other);
+          }
+          for (ManifestSource other : others) {
+            this.sourceProvider.removeSource(other);
+          }
+        }
+      });
+      while (!sourcesUpdates.isDone()) {
+        this.updater.reloadManifestSource(ms1);
+      }
+      sourcesUpdates.get();
+    } finally {
+      executor.shutdownNow();
+    }
+    this.timePasses();
+    this.assertManifestStatuses("OK", null, null);
+  }
+
+  /**
+   * The statistics of the last transfer are stored along with the status of the manifest.
+   */
+  @Test
+  public void testTransferStatisticsAreStored() {
+    byte[] contents = this.getFile("api-unique/manifest1.xml");
+    this.internet.putURL(url1, contents);
+    this.sourceProvider.addSource(manifestFactory.newRegularSource(url1, Arrays.asList()));
+    this.timePasses();
+    ManifestUpdateStatus status = this.updateStatuses.findById(url1).get();
+    assertThat(status.getLastBytesTransferred()).contains((long) contents.length);
+    assertThat(status.getLastTransferMillis()).isPresent();
+    assertThat(status.getLastTransferFormatted()).startsWith(contents.length + " bytes in ");
+
+    this.internet.removeURL(url1);
+    this.timePasses();
+    status = this.updateStatuses.findById(url1).get();
+    assertThat(status.getLastBytesTransferred()).isEmpty();
+    assertThat(status.getLastTransferMillis()).isEmpty();
+    assertThat(status.getLastTransferFormatted()).isEqualTo("(none)");
+  }
+
   @Test
   public void testEndpointUniqueConstraint() {
     this.assertManifestStatuses(null, null, null);
@@ -562,6 +699,12 @@ public class RegistryUpdaterTest extends WRTest {
     return sb.toString();
   }
 
+  private int countCommits() throws Exception {
+    try (Git git = Git.open(new File(this.repoProperties.getPath()))) {
+      return Iterables.size(git.log().call());
+    }
+  }
+
   private Match parseURL(String url) {
     byte[] contents;
     try {
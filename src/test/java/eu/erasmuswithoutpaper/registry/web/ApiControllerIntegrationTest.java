@@ -2,8 +2,13 @@ package eu.erasmuswithoutpaper.registry.web;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 import eu.erasmuswithoutpaper.registry.WRIntegrationTest;
 import eu.erasmuswithoutpaper.registry.constraints.RestrictInstitutionsCovered;
@@ -11,8 +16,10 @@ import eu.erasmuswithoutpaper.registry.documentbuilder.BuildParams;
 import eu.erasmuswithoutpaper.registry.documentbuilder.BuildResult;
 import eu.erasmuswithoutpaper.registry.documentbuilder.EwpDocBuilder;
 import eu.erasmuswithoutpaper.registry.documentbuilder.KnownElement;
+import eu.erasmuswithoutpaper.registry.documentbuilder.KnownNamespace;
 import eu.erasmuswithoutpaper.registry.internet.FakeInternet;
 import eu.erasmuswithoutpaper.registry.notifier.NotifierService;
+import eu.erasmuswithoutpaper.registry.repository.CatalogueNotFound;
 import eu.erasmuswithoutpaper.registry.repository.ManifestRepositoryImpl;
 import eu.erasmuswithoutpaper.registry.sourceprovider.ManifestSourceFactory;
 import eu.erasmuswithoutpaper.registry.sourceprovider.TestManifestSourceProvider;
@@ -20,14 +27,17 @@ import eu.erasmuswithoutpaper.registry.updater.RegistryUpdaterTest;
 import eu.erasmuswithoutpaper.registryclient.RegistryClient;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.HttpStatusCode;
 import org.springframework.http.ResponseEntity;
 import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.context.request.ServletWebRequest;
 
+import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.Test;
 
 /**
@@ -102,6 +112,113 @@ public class ApiControllerIntegrationTest extends WRIntegrationTest {
     assertThat(response.getBody()).isEqualTo("<xml/>");
   }
 
+  /**
+   * Check if the catalogue is served compressed to clients which accept it, and if conditional
+   * requests are handled properly.
+   */
+  @Test
+  public void servesTheCatalogueSnapshot() throws IOException {
+    this.repo.putCatalogue("<xml>gzipped</xml>", client);
+
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/catalogue-v1.xml");
+    request.addHeader(HttpHeaders.ACCEPT_ENCODING, "deflate, gzip;q=0.8");
+    ResponseEntity<byte[]> response = this.apiController
+        .getCatalogue(new ServletWebRequest(request, new MockHttpServletResponse()));
+    assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING)).isEqualTo("gzip");
+    assertThat(response.getHeaders().getVary()).containsExactly(HttpHeaders.ACCEPT_ENCODING);
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(response.getBody()))) {
+      assertThat(IOUtils.toString(in, StandardCharsets.UTF_8)).isEqualTo("<xml>gzipped</xml>");
+    }
+    String gzippedEtag = response.getHeaders().getETag();
+
+    request = new MockHttpServletRequest("GET", "/catalogue-v1.xml");
+    response = this.apiController
+        .getCatalogue(new ServletWebRequest(request, new MockHttpServletResponse()));
+    assertThat(response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING)).isNull();
+    assertThat(new String(response.getBody(), StandardCharsets.UTF_8))
+        .isEqualTo("<xml>gzipped</xml>");
+    String etag = response.getHeaders().getETag();
+    assertThat(etag).matches("\"[0-9a-f]{64}\"").isNotEqualTo(gzippedEtag);
+
+    request = new MockHttpServletRequest("GET", "/catalogue-v1.xml");
+    request.addHeader(HttpHeaders.IF_NONE_MATCH, etag);
+    MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+    response = this.apiController.getCatalogue(new ServletWebRequest(request, servletResponse));
+    assertThat(response).isNull();
+    assertThat(servletResponse.getStatus()).isEqualTo(HttpStatus.NOT_MODIFIED.value());
+
+    // A new version of the catalogue gets a new ETag.
+    this.repo.putCatalogue("<xml>changed</xml>", client);
+    request = new MockHttpServletRequest("GET", "/catalogue-v1.xml");
+    request.addHeader(HttpHeaders.IF_NONE_MATCH, etag);
+    response = this.apiController
+        .getCatalogue(new ServletWebRequest(request, new MockHttpServletResponse()));
+    assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(response.getHeaders().getETag()).isNotEqualTo(etag);
+  }
+
+  /**
+   * Check if clients which already have a previous version of the catalogue can get just the
+   * changes.
+   */
+  @Test
+  public void servesCatalogueDeltas() throws CatalogueNotFound {
+    String start = "<catalogue xmlns='" + KnownNamespace.RESPONSE_REGISTRY_V1.getNamespaceUri()
+        + "'>";
+    this.repo.putCatalogue(start + "<host><x>1</x></host><host><x>2</x></host>"
+        + "<institutions><hei id='a.pl'><name>A</name></hei><hei id='b.pl'><name>B</name></hei>"
+        + "<hei id='c.pl'><name>C</name></hei></institutions>"
+        + "<binaries><rsa-public-key sha-256='k1'>AAA</rsa-public-key></binaries></catalogue>",
+        client);
+    // The version is remembered as soon as it's created (before anyone fetches it).
+    String baseEtag = this.repo.getCatalogueSnapshot().getETag();
+
+    String current = start + "<host><x>1</x></host><host><x>3</x></host>"
+        + "<institutions><hei id='a.pl'><name>A</name></hei><hei id='b.pl'><name>B2</name></hei>"
+        + "<hei id='d.pl'><name>D</name></hei></institutions>"
+        + "<binaries><rsa-public-key sha-256='k2'>BBB</rsa-public-key></binaries></catalogue>";
+    this.repo.putCatalogue(current, client);
+
+    MockHttpServletRequest request =
+        new MockHttpServletRequest("GET", "/catalogue-v1-delta.xml");
+    ResponseEntity<byte[]> response = this.apiController.getCatalogueDelta(baseEtag,
+        new ServletWebRequest(request, new MockHttpServletResponse()));
+    assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+    String delta = new String(response.getBody(), StandardCharsets.UTF_8);
+    assertThat(delta).contains("<cd:catalogue-delta",
+        "xmlns:cd=\"" + CatalogueDeltaProvider.NAMESPACE_URI + "\"",
+        "base=\"" + baseEtag.replace("\"", ""), "<cd:removed-host index=\"1\"/>",
+        "<cd:added-host index=\"1\">", "<host>", "<x>3</x>", "<hei id=\"b.pl\">",
+        "<name>B2</name>", "<hei id=\"d.pl\">", "<cd:removed-hei id=\"c.pl\"/>",
+        "<cd:removed-rsa-public-key sha-256=\"k1\"/>",
+        "<rsa-public-key sha-256=\"k2\">BBB</rsa-public-key>");
+    assertThat(delta).doesNotContain("<x>1</x>", "a.pl", "<x>2</x>");
+    assertThat(response.getHeaders().getETag())
+        .isEqualTo(this.repo.getCatalogueSnapshot().getETag());
+
+    // Unknown versions get the full catalogue.
+    response = this.apiController.getCatalogueDelta("\"unknown\"",
+        new ServletWebRequest(request, new MockHttpServletResponse()));
+    assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(new String(response.getBody(), StandardCharsets.UTF_8)).isEqualTo(current);
+
+    // Clients with the current version get nothing.
+    String currentEtag = response.getHeaders().getETag();
+    response = this.apiController.getCatalogueDelta(currentEtag,
+        new ServletWebRequest(request, new MockHttpServletResponse()));
+    assertThat(response.getStatusCode()).isEqualTo(HttpStatus.NOT_MODIFIED);
+  }
+
+  @Test
+  public void testAcceptsGzip() {
+    assertThat(ApiController.acceptsGzip(null)).isFalse();
+    assertThat(ApiController.acceptsGzip("gzip")).isTrue();
+    assertThat(ApiController.acceptsGzip("br, GZIP;q=0.5")).isTrue();
+    assertThat(ApiController.acceptsGzip("gzip;q=0, deflate")).isFalse();
+    assertThat(ApiController.acceptsGzip("x-gzip-but-not-really, identity")).isFalse();
+  }
+
   /**
    * Check if the manifests are being served. Same, as above - just testing if it is properly
    * connected with {@link SelfManifestProvider}.
@@ -253,7 +370,9 @@ public class ApiControllerIntegrationTest extends WRIntegrationTest {
    */
   private String getCatalogueBodyWithoutBinaries() {
     MockHttpServletRequest servletRequest = new MockHttpServletRequest();
-    String body = this.apiController.getCatalogue(new ServletWebRequest(servletRequest)).getBody();
+    String body = new String(
+        this.apiController.getCatalogue(new ServletWebRequest(servletRequest)).getBody(),
+        StandardCharsets.UTF_8);
     // Replace fingerprints
     body = body.replaceAll("\"[0-9a-f]{64,64}\"", "\"(SHA-256 fingerprint here)\"");
     // Replace base64 values... (this one is hackish, but it's enough for tests).
@@ -24,6 +24,17 @@ public class UiControllerIntegrationTest extends WRIntegrationTest {
     assertThat(response.getBody()).contains("body {");
   }
 
+  @Test
+  public void testCoveragePage() {
+    ResponseEntity<String> response = this.template.getForEntity("/coverage", String.class);
+    assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(response.getBody()).contains("<table class='ewpst__table'>");
+
+    response = this.template.getForEntity("/coverage?pattern=no-such-hei", String.class);
+    assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(response.getBody()).contains("<table class='ewpst__table'><thead>");
+  }
+
   @Test
   public void testIndexPage() {
     ResponseEntity<String> response = this.template.getForEntity("/", String.class);
@@ -32,4 +43,18 @@ public class UiControllerIntegrationTest extends WRIntegrationTest {
     assertThat(response.getBody()).contains("Registry Service");
   }
 
+  @Test
+  public void testStatusPageShowsRuntimeStatistics() {
+    ResponseEntity<String> response = this.template.getForEntity("/status", String.class);
+    assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(response.getBody()).contains("Runtime Statistics");
+    assertThat(response.getBody()).contains("XML parser pools");
+    assertThat(response.getBody()).containsPattern("\\d+ hits, \\d+ misses");
+    assertThat(response.getBody()).contains("Filtered manifest cache");
+    assertThat(response.getBody()).containsPattern("\\d+ manifests \\(\\d+ of \\d+ bytes\\)");
+    assertThat(response.getBody()).contains("Catalogue-dependant cache");
+    assertThat(response.getBody()).contains("Git pushes");
+    assertThat(response.getBody()).containsPattern("last lock wait \\d+ us");
+  }
+
 }
@@ -0,0 +1,71 @@
+package eu.erasmuswithoutpaper.registry.xmlformatter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import javax.xml.parsers.DocumentBuilder;
+
+import eu.erasmuswithoutpaper.registry.common.Utils;
+
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+
+/**
+ * Tests for {@link PrettyXmlWriter}.
+ */
+public class PrettyXmlWriterTest {
+
+  private XmlFormatter xmlFormatter = new XmlFormatter();
+
+  @Test
+  public void testOutputMatchesXmlFormatter() throws Exception {
+    String input = "<root xmlns='urn:x' xmlns:a='urn:a' a:attr='1'>"
+        + "<list>"
+        + "<item id='a&amp;b &lt;&quot;c&quot;&gt;'>Text &amp; more &lt;text&gt;&#xD;\nline</item>"
+        + "<item id='2' a:other='x'>  padded  </item>"
+        + "<item>   </item>"
+        + "<item/>"
+        + "<nested><item id='3'/></nested>"
+        + "</list>"
+        + "<empty/>"
+        + "</root>";
+
+    StringWriter out = new StringWriter();
+    out.write("<root\n    xmlns=\"urn:x\"\n    xmlns:a=\"urn:a\"\n    a:attr=\"1\"\n>");
+    PrettyXmlWriter writer = new PrettyXmlWriter(out, 1);
+    writer.startElement("list");
+    writer.startElement("item");
+    writer.attribute("id", "a&b <\"c\">");
+    writer.text("Text & more <text>\r\nline");
+    writer.endElement();
+    writer.startElement("item");
+    writer.attribute("id", "2");
+    writer.attribute("a:other", "x");
+    writer.text("  padded  ");
+    writer.endElement();
+    writer.startElement("item");
+    writer.text("   ");
+    writer.endElement();
+    writer.startElement("item");
+    writer.endElement();
+    writer.startElement("nested");
+    writer.startElement("item");
+    writer.attribute("id", "3");
+    writer.endElement();
+    writer.endElement();
+    writer.endElement();
+    writer.writeFormatted("\n    <empty/>");
+    out.write("\n</root>\n");
+
+    assertThat(out.toString()).isEqualTo(this.format(input));
+  }
+
+  private String format(String input) throws Exception {
+    DocumentBuilder docbuilder = Utils.newSecureDocumentBuilder();
+    Document doc =
+        docbuilder.parse(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)));
+    return this.xmlFormatter.format(doc);
+  }
+}